@@ -17,6 +17,8 @@ import relations.helpers.WordRelatorFull;
 import relations.helpers.WordRelatorNormalize;
 import relations.holoc.WordRelatorContinuousHolographic;
 import relations.ngram.WordRelatorNGram;
+import relations.ri.WordRelatorParallelRandomIndexing;
+import relations.sgns.WordRelatorSkipGram;
 import relations.sspace.*;
 import relations.wordnet.WordRelatorWordNet;
 import wizard.Wizard;
@@ -43,6 +45,8 @@ public class RelationLoader {
 		relationTypes.add(WordRelatorHAL.class);
 		relationTypes.add(WordRelatorLSA.class);
 		relationTypes.add(WordRelatorRandomIndexing.class);
+		relationTypes.add(WordRelatorParallelRandomIndexing.class);
+		relationTypes.add(WordRelatorSkipGram.class);
 		relationTypes.add(WordRelatorContinuousHolographic.class);
 		relationTypes.add(WordRelatorAverage.class);
 		relationTypes.add(WordRelatorNormalize.class);
@@ -12,6 +12,7 @@ import java.util.Vector;
 
 import javax.swing.*;
 
+import tools.LearningProgress;
 import tools.ReadFileFormat;
 import tools.TASABook;
 
@@ -83,19 +84,21 @@ public abstract class WordRelator implements Serializable {
 				label.setText("Pre-loading file.");
 				
 				String result = ReadFileFormat.readFile(f);
+				LearningProgress meter = new LearningProgress();
+				meter.showOn(progress, label);
 				if(result != null) {
 					
 					String[] sentences = result.split("[\r\n]+");
-					label.setText("Learning data.");
-					progress.setMaximum(sentences.length);
+					meter.setTotalBytes(result.length(), 0);
 					
 					// Split by paragraphs.
 					for(int i=0;i<sentences.length;i++) {
-						progress.setValue(i);
-						learn(sentences[i]);
+						learn(sentences[i], meter);
+						meter.addBytes(sentences[i].length() + 1);
 					}
 				}
-				progress.setValue(progress.getMaximum());
+				meter.finish();
+				publish();
 				
 			}
 		}).start();
@@ -128,14 +131,19 @@ public abstract class WordRelator implements Serializable {
 						e.printStackTrace();
 					}
 					
-					label.setText("Learning data.");
-					progress.setMaximum(lines.size());
+					LearningProgress meter = new LearningProgress();
+					meter.showOn(progress, label);
+					long length = 0;
+					for(String l : lines) {
+						length += l.length() + 1;
+					}
+					meter.setTotalBytes(length, 0);
 					for(int i=0;i<lines.size();i++) {
-						progress.setValue(i);
-						learn(lines.get(i));
+						learn(lines.get(i), meter);
+						meter.addBytes(lines.get(i).length() + 1);
 					}
-					progress.setValue(progress.getMaximum());
-					label.setText("Done learning.");
+					meter.finish();
+					publish();
 				}
 			}).start();
 			
@@ -148,19 +156,41 @@ public abstract class WordRelator implements Serializable {
 		for(String paragraph : document.split("[\r\n]+")) {
 			learn(paragraph);
 		}
+		publish();
+	}
+	
+	/**
+	 * Make what has been learned visible to queries.
+	 * Relators that answer queries from a published snapshot override this,
+	 * the rest answer from what they are learning as it changes.
+	 */
+	public void publish() {
 	}
 	
 	/**
 	 * Learn a single paragraph.
 	 * @param paragraph
 	 */
-	public synchronized void learn(String paragraph) {
+	public void learn(String paragraph) {
+		learn(paragraph, null);
+	}
+	
+	/**
+	 * Learn a single paragraph, counting its sentences and words.
+	 * @param paragraph
+	 * @param progress	May be null.
+	 */
+	public synchronized void learn(String paragraph, LearningProgress progress) {
 		for(SentenceCleaner cleaner : cleaners) {
 			paragraph = cleaner.clean(paragraph);
 		}
 		
 		for(String sentence : paragraph.split("[.?!]")) {
-			learn(sentence.split(" +"));
+			String[] words = sentence.split(" +");
+			learn(words);
+			if(progress != null) {
+				progress.addSentence(words.length);
+			}
 		}
 	}
 	
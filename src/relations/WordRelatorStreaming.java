@@ -0,0 +1,215 @@
+package relations;
+
+import gui.SentenceCleaner;
+import gui.WordMap;
+
+import java.awt.Color;
+import java.io.*;
+import java.util.List;
+
+import javax.swing.JLabel;
+import javax.swing.JProgressBar;
+
+import relations.beagle.CorpusReader;
+import tools.LearningProgress;
+import tools.ReadFileFormat;
+
+/**
+ * A relator whose model trains on whole files streamed from disk.
+ * Plain text files are trained on directly. Web pages are spooled to a temporary file first, and so are
+ * the other formats ReadFileFormat reads once they are converted to text.
+ * Sentences learned one at a time are spooled too, and trained on together when the relator is published.
+ * Words of files and web pages are counted in the word map before they are trained on, as learned sentences are.
+ */
+public abstract class WordRelatorStreaming extends WordRelator {
+
+	private static final long serialVersionUID = 2470931846511208227L;
+
+	// Sentences learned from text, trained on when the relator is published.
+	private transient File pending;
+	private transient PrintWriter pendingOut;
+
+	public WordRelatorStreaming(Color color, String name, WordMap wordMap) {
+		super(color, name, wordMap);
+	}
+
+	/**
+	 * Train the model on a plain text file.
+	 * @param f
+	 * @param cleaners	Applied to every line, null if the text is already clean.
+	 * @param progress
+	 * @throws IOException
+	 */
+	protected abstract void train(File f, List<SentenceCleaner> cleaners, LearningProgress progress) throws IOException;
+
+	/**
+	 * Train on a plain text file, streamed from disk, and count its words in the word map.
+	 * @param f
+	 * @param progress
+	 * @throws IOException
+	 */
+	public void train(File f, LearningProgress progress) throws IOException {
+		count(f);
+		train(f, cleaners, progress);
+	}
+
+	/**
+	 * Count the words of a plain text file in the word map, split and cleaned the same way they are trained on.
+	 * @param f
+	 * @throws IOException
+	 */
+	private void count(File f) throws IOException {
+		if(wordMap == null) {
+			return;
+		}
+		CorpusReader r = CorpusReader.open(f, 0);
+		try {
+			String line;
+			while((line = r.readLine()) != null) {
+				if(cleaners != null) {
+					for(SentenceCleaner cleaner : cleaners) {
+						line = cleaner.clean(line);
+					}
+				}
+				for(String sentence : line.split("[.?!]")) {
+					String[] words = sentence.trim().split(" +");
+					if(words[0].length() > 0) {
+						super.learn(words);
+					}
+				}
+			}
+		} finally {
+			r.close();
+		}
+	}
+
+	public boolean learn(final File f, final JProgressBar progress, final JLabel label) {
+		(new Thread() {
+			public void run() {
+				File text = f;
+				LearningProgress meter = new LearningProgress();
+				try {
+					if(!ReadFileFormat.isPlainText(f)) {
+						label.setText("Pre-loading file.");
+						String result = ReadFileFormat.readFile(f);
+						if(result == null) {
+							meter.showOn(progress, label);
+							meter.finish();
+							return;
+						}
+						text = spool(result);
+					}
+					meter.showOn(progress, label);
+					train(text, meter);
+				} catch (IOException e) {
+					e.printStackTrace();
+					meter.finish();
+				} finally {
+					if(text != f) {
+						text.delete();
+					}
+				}
+			}
+		}).start();
+		return true;
+	}
+
+	/**
+	 * Write text to a temporary file, so it trains the same way as a file.
+	 * @param text
+	 * @return
+	 * @throws IOException
+	 */
+	private static File spool(String text) throws IOException {
+		File temp = File.createTempFile("corpus", ".txt");
+		Writer out = new BufferedWriter(new FileWriter(temp));
+		try {
+			out.write(text);
+		} finally {
+			out.close();
+		}
+		return temp;
+	}
+
+	public boolean learn(final InputStream input, final JProgressBar progress, final JLabel label) {
+		(new Thread() {
+			public void run() {
+				label.setText("Downloading web page.");
+				progress.setValue(0);
+				LearningProgress meter = new LearningProgress();
+				meter.showOn(progress, label);
+				File temp = null;
+				try {
+					// Spooled to disk so it trains the same way as a file.
+					temp = File.createTempFile("corpus", ".txt");
+					OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+					try {
+						byte[] buffer = new byte[1 << 16];
+						int read;
+						while((read = input.read(buffer)) > 0) {
+							out.write(buffer, 0, read);
+						}
+					} finally {
+						out.close();
+					}
+					train(temp, meter);
+				} catch (IOException e) {
+					e.printStackTrace();
+					meter.finish();
+				} finally {
+					if(temp != null) {
+						temp.delete();
+					}
+				}
+			}
+		}).start();
+		return true;
+	}
+
+	/**
+	 * Sentences are kept on disk and trained on together when the relator is published.
+	 */
+	public void learn(String[] sentence) {
+		super.learn(sentence);
+		synchronized(this) {
+			try {
+				if(pendingOut == null) {
+					pending = File.createTempFile("corpus", ".txt");
+					pendingOut = new PrintWriter(new BufferedWriter(new FileWriter(pending)));
+				}
+				StringBuilder line = new StringBuilder();
+				for(String word : sentence) {
+					line.append(word).append(' ');
+				}
+				pendingOut.println(line);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public void publish() {
+		File text;
+		synchronized(this) {
+			if(pendingOut == null) {
+				return;
+			}
+			pendingOut.close();
+			pendingOut = null;
+			text = pending;
+		}
+		try {
+			// Already cleaned when it was learned.
+			train(text, null, new LearningProgress());
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			text.delete();
+		}
+	}
+
+	public void finalizeSpace() {
+		publish();
+		super.finalizeSpace();
+	}
+}
@@ -3,6 +3,9 @@ package relations.beagle;
 import java.io.*;
 import java.net.URLConnection;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.regex.Pattern;
 
 import javax.swing.JFileChooser;
 import javax.swing.event.ChangeEvent;
@@ -10,6 +13,8 @@ import javax.swing.event.ChangeListener;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 import tools.KBox;
+import tools.VectorKernels;
+import tools.LearningProgress;
 import tools.WeightedObject;
 
 /**
@@ -26,7 +31,7 @@ public class BEAGLE implements Serializable {
 	// Define parts of BEAGLE.
 	private int[] E1;
 	private int[] E2;
-	private Thought PSI;
+	private double[] PSI;
 	private HashSet<String> stopList;
 
 	// All changeable options.
@@ -37,14 +42,38 @@ public class BEAGLE implements Serializable {
 	private String contextString = null;
 	private Context context = null;
 	
-	// Set of thoughts referenced by their representations.
-	public Hashtable<String,Thought> thoughts = new Hashtable<String,Thought>();
+	// Summed indicators of each set of contexts paragraphs were routed to.
+	private transient HashMap<String,Route> routes;
+	
+	// Vectors of every word referenced by word id.
+	public VectorStore store;
 
 	// When something changes in the context of this BEAGLE model, inform these listeners.
 	private LinkedList<ChangeListener> changeListeners = new LinkedList<ChangeListener>();
 	
 	// This represents the thought at the end of a sentence.
-	private Thought sentenceTerminate;
+	private static final String sentenceTerminate = "sentenceterminate";
+	
+	// Scratch space for learning, one set for each learning thread.
+	private transient ThreadLocal<Scratch> scratch;
+	
+	// Approximate nearest neighbour graphs, built when first queried.
+	private transient HNSWIndex lexicalIndex;
+	private transient HNSWIndex environmentalIndex;
+	
+	// Byte coded vectors, built when first queried.
+	private transient QuantizedVectors lexicalCodes;
+	private transient QuantizedVectors environmentalCodes;
+	
+	// Analogy and composition queries, set up when first queried.
+	private transient CompositeSearch compositeSearch;
+	
+	// Paragraphs handed to a learning thread at a time.
+	private static final int PARAGRAPH_BATCH = 64;
+	
+	// Frozen copy of the model that queries may read while learning goes on, and when it was taken.
+	private transient volatile BEAGLE published;
+	private transient long lastPublished = System.currentTimeMillis();
 		
 	public static String typeName = "BEAGLE";
 	
@@ -58,46 +87,166 @@ public class BEAGLE implements Serializable {
 		options = module;
 		
 		// Create the static vector sets.
-		E1 = VectorTools.getRandomOrder(options.dimensions);
-		E2 = VectorTools.getRandomOrder(options.dimensions);
-		PSI = new Thought("PSI",options.dimensions);
+		if(options.generateEnvironmental) {
+			// Everything random is derived from the seed.
+			EnvironmentalGenerator generator = new EnvironmentalGenerator(options.seed, options.dimensions, options.environmentalCacheSize);
+			E1 = generator.getOrder(1);
+			E2 = generator.getOrder(2);
+			PSI = generator.getPSI();
+			store = new VectorStore(options.dimensions, false, generator);
+		} else {
+			E1 = VectorTools.getRandomOrder(options.dimensions);
+			E2 = VectorTools.getRandomOrder(options.dimensions);
+			PSI = VectorTools.newGaussian(options.dimensions);
+			store = new VectorStore(options.dimensions);
+		}
 		
 		// Load all words.
 		if(dictionary != null) {
 			// Build from the given word list.
-			thoughts = Thought.buildWordSet(dictionary, options.dimensions);
+			for(String word : dictionary) {
+				store.addWord(word);
+			}
 		} else {
 			// Build using the setup standard function.
 			//setup();			
 		}
 		
-		sentenceTerminate = new Thought("sentenceterminate",options.dimensions);
-		thoughts.put(sentenceTerminate.representation, sentenceTerminate);
+		store.addWord(sentenceTerminate);
+	}
+	
+	/**
+	 * A frozen copy of a model.
+	 * @param source
+	 * @param store		Snapshot of the source vectors.
+	 */
+	private BEAGLE(BEAGLE source, VectorStore store) {
+		options = source.options;
+		E1 = source.E1;
+		E2 = source.E2;
+		PSI = source.PSI;
+		stopList = (source.stopList == null) ? null : new HashSet<String>(source.stopList);
+		contexts = new Hashtable<String,Context>(source.contexts);
+		contextString = source.contextString;
+		context = source.context;
+		this.store = store;
 	}
 
 	public void clearStopListFromThoughts() {
 		for(String word : stopList) {
-			thoughts.remove(word);
+			store.remove(word);
 		}
 	}
 	
 	/**
 	 * Load the vector data from a file.
+	 * Binary model files are memory mapped, older serialized files are read and converted.
 	 * @param vectorFile
 	 */
-	@SuppressWarnings("unchecked")
 	public void loadVectors(File vectorFile) {
+		loadVectors(vectorFile, true);
+	}
+	
+	/**
+	 * Load the vector data from a file.
+	 * @param vectorFile
+	 * @param map	If true the vectors of a binary model file are memory mapped rather than read.
+	 */
+	public void loadVectors(File vectorFile, boolean map) {
+		try {
+			if(!ModelFile.isModelFile(vectorFile)) {
+				loadSerializedVectors(vectorFile);
+				return;
+			}
+			
+			useModel(ModelFile.read(vectorFile, map));
+		} catch(IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Load a binary model file to answer queries with as little heap as possible.
+	 * The vectors are memory mapped rather than read, and top N queries scan byte codes a quarter of the size
+	 * of the float vectors, rescoring only the best candidates against the mapped vectors. The heap then holds
+	 * the word table and the codes, the operating system pages vectors in as candidates are rescored.
+	 * The lexical codes are built here so the first query does not wait for them, environmental codes are
+	 * only built once an environmental query needs them.
+	 * @param modelFile
+	 * @throws IOException
+	 */
+	public void serveQuantized(File modelFile) throws IOException {
+		if(!ModelFile.isModelFile(modelFile)) {
+			throw new IOException(modelFile + " is not a binary model file, convert it with ModelFile first.");
+		}
+		useModel(ModelFile.read(modelFile, true));
+		options.approximateSearch = false;
+		options.quantizedSearch = true;
+		getCodes(true);
+	}
+	
+	/**
+	 * Take the vectors and shape of a model read from a binary model file.
+	 * @param model
+	 */
+	void useModel(ModelFile model) {
+		store = model.store;
+		published = null;
+		E1 = model.E1;
+		E2 = model.E2;
+		PSI = model.PSI;
+		stopList = model.stopList;
+		
+		// The vectors decide the shape of the model.
+		options.dimensions = model.options.dimensions;
+		options.combineOperator = model.options.combineOperator;
+		options.windowSize = model.options.windowSize;
+		options.learnContext = model.options.learnContext;
+		options.learnOrder = model.options.learnOrder;
+		options.generateEnvironmental = model.options.generateEnvironmental;
+		options.seed = model.options.seed;
+		options.environmentalCacheSize = model.options.environmentalCacheSize;
+	}
+	
+	/**
+	 * Load vector data saved with object serialization before the binary model format.
+	 * @param vectorFile
+	 */
+	@SuppressWarnings("unchecked")
+	private void loadSerializedVectors(File vectorFile) {
 		FileInputStream fis = null;
 		ObjectInputStream in = null;
 		try {
 			fis = new FileInputStream(vectorFile);
 			in = new ObjectInputStream(fis);
-			thoughts = (Hashtable<String,Thought>)in.readObject();
+			Object vectors = in.readObject();
 			E1 = (int[])in.readObject();
 			E2 = (int[])in.readObject();
-			PSI = (Thought)in.readObject();
-			stopList = (HashSet<String>)in.readObject();	
-			sentenceTerminate = (Thought)in.readObject();			
+			
+			if(vectors instanceof VectorStore) {
+				store = (VectorStore)vectors;
+				PSI = (double[])in.readObject();
+				stopList = (HashSet<String>)in.readObject();
+			} else {
+				// Models saved before the vector store kept a table of thoughts.
+				Hashtable<String,Thought> thoughts = (Hashtable<String,Thought>)vectors;
+				PSI = ((Thought)in.readObject()).getLegacyEnvironmental();
+				stopList = (HashSet<String>)in.readObject();
+				
+				// The sentence terminator is already in the table.
+				in.readObject();
+				store = toStore(thoughts, PSI.length);
+			}
+			in.close();
+			published = null;
+			
+			options.dimensions = store.getDimensions();
+			EnvironmentalGenerator generator = store.getGenerator();
+			options.generateEnvironmental = (generator != null);
+			if(generator != null) {
+				options.seed = generator.seed;
+				options.environmentalCacheSize = generator.cacheSize;
+			}
 		} catch(IOException ex) {
 			ex.printStackTrace();
 		} catch (ClassNotFoundException e) {
@@ -105,6 +254,24 @@ public class BEAGLE implements Serializable {
 		}
 	}
 
+	/**
+	 * Copy thoughts saved before the vector store into a new store.
+	 * @param thoughts
+	 * @param dimensions
+	 * @return
+	 */
+	public static VectorStore toStore(Map<String,Thought> thoughts, int dimensions) {
+		VectorStore store = new VectorStore(dimensions);
+		for(Map.Entry<String,Thought> entry : thoughts.entrySet()) {
+			Thought thought = entry.getValue();
+			int id = store.addWord(entry.getKey());
+			store.setCount(id, thought.count);
+			store.lexical.set(id, thought.getLegacyLexical());
+			store.environmental.set(id, thought.getLegacyEnvironmental());
+		}
+		return store;
+	}
+
 	/**
 	 * Load the options data from a file.
 	 * @param optionFile
@@ -124,26 +291,25 @@ public class BEAGLE implements Serializable {
 	}
 
 	/**
-	 * Save the vector data to a file.
+	 * Save the vector data to a binary model file.
 	 * @param vectorFile
 	 */
 	public void saveVectors(File vectorFile) {
-		FileOutputStream fos = null;
-		ObjectOutputStream out = null;
 		try	{
-			fos = new FileOutputStream(vectorFile);
-			out = new ObjectOutputStream(fos);
-			out.writeObject(thoughts);
-			out.writeObject(E1);
-			out.writeObject(E2);
-			out.writeObject(PSI);
-			out.writeObject(stopList);	
-			out.writeObject(sentenceTerminate);
-			out.close();
+			writeModel(vectorFile);
 		} catch(IOException ex) {
 			ex.printStackTrace();
 		}
 	}
+	
+	/**
+	 * Write the vectors to a binary model file.
+	 * @param vectorFile
+	 * @throws IOException
+	 */
+	void writeModel(File vectorFile) throws IOException {
+		ModelFile.write(vectorFile, options, E1, E2, PSI, stopList, store);
+	}
 
 	/**
 	 * Save the options data to a file.
@@ -166,9 +332,7 @@ public class BEAGLE implements Serializable {
 	 * Resets the word counts to zero.
 	 */
 	public void resetCounts() {
-		for(Thought t : thoughts.values()) {
-			t.count = 0;
-		}
+		store.resetCounts();
 	}
 
 	public void addChangeListener(ChangeListener c) { changeListeners.add(c); }
@@ -243,239 +407,815 @@ public class BEAGLE implements Serializable {
 	 * Normalize all lexical vectors to length 5.
 	 */
 	public void normalize() {
-		for(Thought t : thoughts.values()) {
-			t.lexical = VectorTools.setLen(t.lexical,5);
+		for(int id=0;id<store.size();id++) {
+			store.lexical.scale(id, 5 / store.lexical.norm(id));
+			store.markDirty(id);
 		}
 		informChangeListeners();
 	}
 		
 	/**
 	 * This will learn a corpus from a file.
-	 * Makes a call to the BufferedReader version.
+	 * The listener is told the fraction learned a few times a second.
 	 * @param corpus
-	 * @param learnContext
-	 * @param learnOrder
+	 * @param listener	May be null.
 	 * @throws IOException 
 	 */
 	public void learnCorpus(File corpus, ChangeListener listener) throws IOException {
-		BufferedReader r;
+		learnCorpus(corpus, progressFor(listener));
+	}
+	
+	/**
+	 * This will learn a corpus from a file.
+	 * @param corpus
+	 * @param progress	Counts what was learned.
+	 * @throws IOException
+	 */
+	public void learnCorpus(File corpus, LearningProgress progress) throws IOException {
+		CorpusReader r;
 		
 		try {
 			// Simply open the reader and pass it on.
-			r = new BufferedReader(new FileReader(corpus));
-			learnCorpus(r,corpus.length(),listener);
+			r = CorpusReader.open(corpus, 0);
+			try {
+				learnCorpus(r,corpus.length(),null,null,progress);
+			} finally {
+				r.close();
+			}
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		}
 	}
 	
+	/**
+	 * Learn a corpus into several contexts in a single pass.
+	 * Each paragraph is learned in the contexts the router names, see ContextTags for tagged corpora.
+	 * @param corpus
+	 * @param router
+	 * @param progress
+	 * @throws IOException
+	 */
+	public void learnCorpus(File corpus, ContextRouter router, LearningProgress progress) throws IOException {
+		CorpusReader r = CorpusReader.open(corpus, 0);
+		try {
+			learnCorpus(r,corpus.length(),null,router,progress);
+		} finally {
+			r.close();
+		}
+	}
+	
 	public void learnCorpus(URLConnection corpus, ChangeListener listener) throws IOException {
-		BufferedReader r = new BufferedReader(new InputStreamReader(corpus.getInputStream()));
-		learnCorpus(r,corpus.getContentLength(),listener);
+		CorpusReader r = new CorpusReader(corpus.getInputStream(), 0);
+		try {
+			learnCorpus(r,corpus.getContentLength(),null,null,progressFor(listener));
+		} finally {
+			r.close();
+		}
+	}
+	
+	/**
+	 * Progress that passes the fraction learned on to a listener.
+	 * @param listener	May be null.
+	 * @return
+	 */
+	private static LearningProgress progressFor(final ChangeListener listener) {
+		final LearningProgress progress = new LearningProgress();
+		if(listener != null) {
+			progress.addChangeListener(new ChangeListener() {
+				public void stateChanged(ChangeEvent e) {
+					listener.stateChanged(new ChangeEvent(progress.getFraction()));
+				}
+			});
+		}
+		return progress;
+	}
+	
+	/**
+	 * Learn a corpus from a file, checkpointing the model every few minutes
+	 * so an interrupted run can be picked up with resumeCorpus.
+	 * @param corpus
+	 * @param checkpoint	Directory to keep the checkpoint in.
+	 * @param progress
+	 * @throws IOException
+	 */
+	public void learnCorpus(File corpus, File checkpoint, LearningProgress progress) throws IOException {
+		CorpusReader r = CorpusReader.open(corpus, 0);
+		try {
+			learnCorpus(r,corpus.length(),new CorpusCheckpoint(checkpoint, options.checkpointSeconds),null,progress);
+		} finally {
+			r.close();
+		}
+	}
+	
+	/**
+	 * Restore the model from a checkpoint written by learnCorpus and learn the rest of the corpus.
+	 * @param corpus	The same corpus the checkpoint was written for.
+	 * @param checkpoint
+	 * @param progress
+	 * @throws IOException
+	 */
+	public void resumeCorpus(File corpus, File checkpoint, LearningProgress progress) throws IOException {
+		CorpusCheckpoint c = new CorpusCheckpoint(checkpoint, options.checkpointSeconds);
+		long offset = c.restore(this);
+		
+		CorpusReader r = CorpusReader.open(corpus, offset);
+		try {
+			learnCorpus(r,corpus.length(),c,null,progress);
+		} finally {
+			r.close();
+		}
 	}
 
 	/**
-	 * This will look through every line in the BufferedReader and learn it.
+	 * This will look through every line in the reader and learn it.
 	 * @param r
-	 * @param learnContext
-	 * @param learnOrder
+	 * @param length
+	 * @param checkpoint	Written whenever due and at the end, may be null.
+	 * @param router	Contexts of each paragraph, null to learn in the current context.
+	 * @param progress
 	 * @throws IOException 
 	 */
-	private void learnCorpus(BufferedReader r, long length, ChangeListener listener) throws IOException {
+	private void learnCorpus(CorpusReader r, long length, CorpusCheckpoint checkpoint, ContextRouter router, LearningProgress progress) throws IOException {
+		progress.setTotalBytes(length, r.position());
+		if(options.threads > 1) {
+			learnCorpusParallel(r, length, checkpoint, router, progress);
+			return;
+		}
+		
 		String paragraph;
-		long read = 0;
+		long read = r.position();
 		
 		// Read each paragraph.
 		while((paragraph = r.readLine()) != null) {
-			read += paragraph.length() + 1;
 			
-			// Read each line.
-			for(String s : paragraph.split("[.?!]")) {
-				
-				// Convert to thought modules.
-				Thought[] thoughts = toThought(s);
-				
-				// Run appropriate learning techniques.
-				if(options.learnContext) { learnContext(thoughts, false); }
-				if(options.learnOrder) { learnOrder(thoughts, false); }
-				
-				if(listener != null) {
-					listener.stateChanged(new ChangeEvent((double)read/length));
-				}
+			learnParagraph(paragraph, router, progress);
+			progress.addBytes(r.position() - read);
+			read = r.position();
+			
+			if(checkpoint != null && checkpoint.isDue()) {
+				checkpoint.write(this, r.position());
 			}
+			publishIfDue();
+		}
+		
+		if(checkpoint != null) {
+			checkpoint.write(this, r.position());
 		}
 		
+		progress.finish();
+		if(options.publishSeconds > 0) {
+			publish();
+		}
+		
+		// Lexical vectors have moved too far for the graph built over them.
+		dropLexicalIndex();
+		finishLearning();
+		
 		// Do this quietly, then inform at the end.
 		informChangeListeners();
 	}
-		
+	
 	/**
-	 * Find the sum of the environmental vectors that define a sentence.
-	 * @param sentence
-	 * @return
+	 * Learn the corpus on several threads.
+	 * Paragraphs are read, routed and converted to word ids here, then handed to the learning threads in batches.
+	 * New words are added while reading, so their ids and random vectors are given in the same order as on one thread.
+	 * Lexical updates are purely additive so each thread adds straight into the shared store,
+	 * which serializes the updates to any one word through striped locks.
+	 * The result matches a single threaded run up to summation order.
+	 * Checkpoints are written once every batch handed out so far has been learned.
+	 * Anything thrown by a learning thread, errors included, stops the reading at the next batch and no checkpoint is written after it.
+	 * @param r
+	 * @param length
+	 * @param checkpoint	May be null.
+	 * @param router	May be null.
+	 * @param progress	Sentences are counted by the learning threads, bytes as they are read.
+	 * @throws IOException
 	 */
-	public double[] sentenceLexicalMiddle(Thought[] sentence) { 
-		if(sentence.length == 0) {
-			return null;
+	private void learnCorpusParallel(CorpusReader r, long length, CorpusCheckpoint checkpoint, final ContextRouter router, final LearningProgress progress) throws IOException {
+		final BlockingQueue<Paragraph[]> queue = new ArrayBlockingQueue<Paragraph[]>(options.threads * 4);
+		final Paragraph[] finished = new Paragraph[0];
+		final Throwable[] failure = new Throwable[1];
+		final int[] learned = new int[1];
+		
+		Thread[] workers = new Thread[options.threads];
+		for(int i=0;i<workers.length;i++) {
+			workers[i] = new Thread("BEAGLE learner " + i) {
+				public void run() {
+					try {
+						Paragraph[] batch;
+						while((batch = queue.take()) != finished) {
+							try {
+								for(Paragraph paragraph : batch) {
+									if(paragraph == null) {
+										continue;
+									}
+									for(int i=0;i<paragraph.sentences.length;i++) {
+										learnIds(paragraph.sentences[i], paragraph.route, paragraph.counts[i]);
+										progress.addSentence(paragraph.sentences[i].length);
+									}
+								}
+							} catch(Throwable e) {
+								// Keep draining so the reader is never blocked, it stops at its next batch.
+								synchronized(failure) {
+									if(failure[0] == null) {
+										failure[0] = e;
+									}
+								}
+							} finally {
+								synchronized(learned) {
+									learned[0]++;
+									learned.notifyAll();
+								}
+							}
+						}
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			workers[i].start();
 		}
 		
-		double[] middle = new double[options.dimensions];
-		for(Thought thought : sentence) {
-			VectorTools.setAdd(thought.lexical, middle);
+		boolean interrupted = false;
+		try {
+			String line;
+			long read = r.position();
+			Paragraph[] batch = new Paragraph[PARAGRAPH_BATCH];
+			int size = 0;
+			int submitted = 0;
+			
+			// Read each paragraph.
+			while((line = r.readLine()) != null) {
+				batch[size++] = parseParagraph(line, router);
+				
+				if(size == batch.length) {
+					queue.put(batch);
+					submitted++;
+					checkFailure(failure);
+					batch = new Paragraph[PARAGRAPH_BATCH];
+					size = 0;
+					publishIfDue();
+					
+					progress.addBytes(r.position() - read);
+					read = r.position();
+				}
+				
+				if(checkpoint != null && checkpoint.isDue()) {
+					// Hand out what was read and wait until it is all learned.
+					queue.put(Arrays.copyOf(batch, size));
+					submitted++;
+					size = 0;
+					waitForBatches(learned, submitted);
+					checkFailure(failure);
+					checkpoint.write(this, r.position());
+				}
+			}
+			queue.put(Arrays.copyOf(batch, size));
+			progress.addBytes(r.position() - read);
+		} catch (InterruptedException e) {
+			interrupted = true;
+			for(Thread worker : workers) {
+				worker.interrupt();
+			}
+			throw new InterruptedIOException("Learning interrupted.");
+		} finally {
+			if(!interrupted) {
+				// Tell every thread to stop and wait for them, also when reading failed.
+				try {
+					for(int i=0;i<workers.length;i++) {
+						queue.put(finished);
+					}
+					for(Thread worker : workers) {
+						worker.join();
+					}
+				} catch (InterruptedException e) {
+					for(Thread worker : workers) {
+						worker.interrupt();
+					}
+					Thread.currentThread().interrupt();
+				}
+			}
 		}
-		return middle;
+		
+		checkFailure(failure);
+		
+		if(checkpoint != null) {
+			checkpoint.write(this, r.position());
+		}
+		
+		progress.finish();
+		if(options.publishSeconds > 0) {
+			publish();
+		}
+		
+		// Lexical vectors have moved too far for the graph built over them.
+		dropLexicalIndex();
+		finishLearning();
+		
+		// Do this quietly, then inform at the end.
+		informChangeListeners();
 	}
 	
 	/**
-	 * Find the sum of the environmental vectors that define a sentence.
-	 * @param sentence
+	 * Mark the lexical vectors as done learning for now, so the next approximate lexical query builds its graph over them.
+	 * Rebuilding the graph after every learned sentence would cost more than scanning every word, so while lexical
+	 * vectors are still being learned one sentence at a time those queries scan exactly instead. Corpus learning
+	 * calls this when it finishes, and published snapshots and loaded models are settled already.
+	 */
+	public void finishLearning() {
+		store.settleLexical();
+	}
+	
+	/**
+	 * A frozen copy of the model as it is now.
+	 * Its vectors are shared with this model until one of them changes, so it is cheap to take,
+	 * and it can be queried from any thread without locks while this model keeps learning.
 	 * @return
 	 */
-	public double[] sentenceEnvironmentalMiddle(Thought[] sentence) { 
-		if(sentence.length == 0) {
-			return null;
-		}
-		
-		double[] middle = new double[options.dimensions];
-		for(Thought thought : sentence) {
-			VectorTools.setAdd(thought.environmental, middle);
-		}
-		return middle;
+	public BEAGLE snapshot() {
+		return new BEAGLE(this, store.snapshot());
 	}
 	
 	/**
-	 * Setup loads all words and initializes their lexical and environmental vectors.
+	 * Take a new snapshot for queries to read.
 	 */
-	public void setup() {
-
-		// Load the stop list.
-		if(options.stopListPath != null && options.stopListPath.isFile()) {
-			stopList = Thought.loadStoplist(options.stopListPath);
-		} else {
-			final JFileChooser chooser = new JFileChooser("data");
-		    chooser.setFileFilter(new FileNameExtensionFilter("Stoplist files", "stp"));
-			int returnVal = chooser.showDialog(null,"Select Stoplist file.");
-			if(returnVal == JFileChooser.APPROVE_OPTION) {
-				options.stopListPath = chooser.getSelectedFile();
-				stopList = Thought.loadStoplist(options.stopListPath);
-			} else {
-				stopList = new HashSet<String>();
-			}
-		}
-		
-		// Load words.
-		if(options.wordSetPath != null && options.wordSetPath.isFile()) {
-			thoughts = Thought.buildWordSet(Thought.loadWordsSimple(options.wordSetPath, options.dimensions));
-		} else {
-			final JFileChooser chooser = new JFileChooser("data");
-		    chooser.setFileFilter(new FileNameExtensionFilter("Word set file.", "wrd"));
-			int returnVal = chooser.showDialog(null,"Select word set file.");
-			if(returnVal == JFileChooser.APPROVE_OPTION) {
-				options.wordSetPath = chooser.getSelectedFile();
-				thoughts = Thought.buildWordSet(Thought.loadWordsSimple(options.wordSetPath, options.dimensions));
-			} else {
-				thoughts = new Hashtable<String, Thought>();
-			}
-		}
+	public void publish() {
+		published = snapshot();
+		lastPublished = System.currentTimeMillis();
 	}
 	
 	/**
-	 * Find the top n nearest words to this one.
-	 * @param word	Word to compare to.
+	 * Publish if options.publishSeconds have passed since the last snapshot.
+	 * Learning in several threads publishes between batches, so a snapshot may hold part of a batch,
+	 * but never part of a vector.
 	 */
-	public KBox<Thought> topNContext(String word) {
-		
-		// If we have not been given a context.
-		if(context == null) {
-			
-			// Get thought centroid.
-			Thought[] thoughts = toThought(word);
-			double[] lexicalThought = sentenceLexicalMiddle(thoughts);
-			
-			// Exit if no word found.
-			if(lexicalThought == null) {
-				return null;
-			}
-			
-			return topNLexicalMatchesNonStoplisted(lexicalThought);
-			
-		} else {
-
-			/*
-			 * todo:
-			 */
-			Thought[] thoughts = toThought(word);
-			double[] environmentalThought = sentenceEnvironmentalMiddle(thoughts);
-			
-			double[] decode = VectorTools.getPointwiseMultiply(environmentalThought, context.indicator);
-			return topNLexicalMatchesNonStoplisted(decode);
+	public void publishIfDue() {
+		if(options.publishSeconds > 0 && System.currentTimeMillis() - lastPublished >= options.publishSeconds * 1000L) {
+			publish();
 		}
 	}
 	
 	/**
-	 * Get the top n thoughts that should directly follow this one.
+	 * The model queries should read.
+	 * @return	The last published snapshot, or this model if none was published.
 	 */
-	public KBox<Thought> topNNext(String word) {
-		switch(options.combineOperator) {
-			case OptionsModule.CONVOLUTION:
-				return topNNextConvolusion(word);
-			case OptionsModule.RPM:
-				return topNNextRPM(word);
+	public BEAGLE getPublished() {
+		BEAGLE snapshot = published;
+		return (snapshot == null) ? this : snapshot;
+	}
+	
+	/**
+	 * Wait until the learning threads have finished a number of batches.
+	 * @param learned	Batches finished, notified as it grows.
+	 * @param batches
+	 * @throws InterruptedException
+	 */
+	private static void waitForBatches(int[] learned, int batches) throws InterruptedException {
+		synchronized(learned) {
+			while(learned[0] < batches) {
+				learned.wait();
+			}
 		}
-		return null;
 	}
 	
 	/**
-	 * Get the top n thoughts that should directly follow this one based on RPM encoding.
-	 * @param word
-	 * @return
+	 * Stop learning if a learning thread failed.
+	 * @param failure	The first failure of any learning thread, null while none failed.
 	 */
-	private KBox<Thought> topNNextRPM(String word) {
-		
-		Thought tWord = thoughts.get(word);
-		
-		// Exit if no word found.
-		if(tWord == null) {
-			return null;
+	private static void checkFailure(Throwable[] failure) {
+		synchronized(failure) {
+			if(failure[0] != null) {
+				throw new RuntimeException("Learning failed.", failure[0]);
+			}
 		}
-		
-		double[] lex = tWord.lexical;		
-		double[] rotated = VectorTools.rotate(lex, 1);		
-		return topNEnvironmentalMatches(rotated);
 	}
 	
 	/**
-	 * Get the top n thoughts that should directly follow this one based on Convolution encoding.
-	 * @param word
-	 * @return
+	 * Write what a checkpoint needs beyond the vectors to carry on learning.
+	 * @param out
+	 * @throws IOException
 	 */
-	private KBox<Thought> topNNextConvolusion(String word) {
-
-		Thought tWord = thoughts.get(word);
+	void writeLearningState(ObjectOutputStream out) throws IOException {
+		out.writeObject(options);
+		out.writeObject(VectorTools.rand);
 		
-		// Exit if no word found.
-		if(tWord == null) {
-			return null;
+		Hashtable<String,double[]> indicators = new Hashtable<String,double[]>();
+		for(Map.Entry<String,Context> e : contexts.entrySet()) {
+			indicators.put(e.getKey(), e.getValue().indicator);
 		}
-				
-		double[] a = VectorTools.rearangeForward(PSI.environmental, E1);
-		double[] b = VectorTools.corelate(a, tWord.lexical);
-		double[] c = VectorTools.rearangeBackward(b, E2);			
-		return topNEnvironmentalMatches(c);
+		out.writeObject(indicators);
+		out.writeObject(context == null ? null : contextString);
 	}
 	
 	/**
-	 * Find the top N matches comparing lexical vectors.
-	 * @param representation
-	 * @param word
+	 * Read the state written by writeLearningState.
+	 * The thread count of this model is kept.
+	 * @param in
+	 * @throws IOException
+	 * @throws ClassNotFoundException
 	 */
-	public KBox<Thought> topNLexicalMatches(double[] representation) {
-		KBox<Thought> kBox = new KBox<Thought>(options.numResults,true);
-		for(Thought comp : thoughts.values()) {
-			double angle = VectorTools.getCosine(representation, comp.lexical);
-			kBox.add(new WeightedObject<Thought>(comp, angle));
+	@SuppressWarnings("unchecked")
+	void readLearningState(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		OptionsModule saved = (OptionsModule)in.readObject();
+		saved.threads = options.threads;
+		options = saved;
+		VectorTools.rand = (Random)in.readObject();
+		
+		contexts = new Hashtable<String,Context>();
+		routes = null;
+		Hashtable<String,double[]> indicators = (Hashtable<String,double[]>)in.readObject();
+		for(Map.Entry<String,double[]> e : indicators.entrySet()) {
+			Context c = new Context(options.dimensions);
+			c.indicator = e.getValue();
+			contexts.put(e.getKey(), c);
 		}
-		return kBox;
+		contextString = (String)in.readObject();
+		context = (contextString == null) ? null : contexts.get(contextString);
+		informChangeListeners();
+	}
+	
+	/**
+	 * Learn each sentence of a paragraph.
+	 * @param paragraph
+	 * @param router	Contexts to learn in, null for the current context.
+	 * @param progress
+	 */
+	private void learnParagraph(String paragraph, ContextRouter router, LearningProgress progress) {
+		Route route = null;
+		if(router != null) {
+			route = routeOf(router.route(paragraph));
+			if(route == null) {
+				return;
+			}
+			paragraph = router.text(paragraph);
+		}
+		
+		// Read each line.
+		for(String s : paragraph.split("[.?!]")) {
+			progress.addSentence(learnSentence(s, route));
+		}
+	}
+	
+	/**
+	 * Learn a single sentence with the selected learning techniques.
+	 * @param sentence
+	 * @param route		Contexts to learn in, null for the current context.
+	 * @return	Number of words in the sentence.
+	 */
+	private int learnSentence(String sentence, Route route) {
+		
+		// Convert to word ids.
+		int[] ids = toIds(sentence);
+		
+		learnIds(ids, route);
+		return ids.length;
+	}
+	
+	/**
+	 * Route a paragraph and convert its sentences to word ids, adding new words as learning one sentence at a time would.
+	 * The words are counted here too and the counts each sentence is weighted by are kept with it,
+	 * so the weights do not depend on the order the learning threads reach the sentences.
+	 * @param paragraph
+	 * @param router	Contexts to learn in, null for the current context.
+	 * @return	Null if the paragraph is not routed anywhere.
+	 */
+	private Paragraph parseParagraph(String paragraph, ContextRouter router) {
+		Route route = null;
+		if(router != null) {
+			route = routeOf(router.route(paragraph));
+			if(route == null) {
+				return null;
+			}
+			paragraph = router.text(paragraph);
+		}
+		
+		String[] sentences = paragraph.split("[.?!]");
+		int[][] ids = new int[sentences.length][];
+		int[][] counts = new int[sentences.length][];
+		for(int i=0;i<sentences.length;i++) {
+			ids[i] = toIds(sentences[i]);
+			counts[i] = new int[0];
+			
+			// Count as learnContext and learnOrder would.
+			if(options.learnContext) {
+				if(options.updateWordCount) {
+					for(int id : ids[i]) {
+						store.incrementCount(id);
+					}
+				}
+				int[] kept = options.stopList ? removeStoplisted(ids[i]) : ids[i];
+				counts[i] = new int[kept.length];
+				for(int j=0;j<kept.length;j++) {
+					counts[i][j] = store.getCount(kept[j]);
+				}
+			}
+			if(options.learnOrder && options.updateWordCount) {
+				for(int id : ids[i]) {
+					store.incrementCount(id);
+				}
+			}
+		}
+		return new Paragraph(route, ids, counts);
+	}
+	
+	/**
+	 * Learn a sentence already converted to word ids in the current context.
+	 * @param ids
+	 */
+	void learnIds(int[] ids) {
+		learnIds(ids, null);
+	}
+	
+	/**
+	 * Learn a sentence already converted to word ids with the selected learning techniques.
+	 * @param ids
+	 * @param route		Contexts to learn in, null for the current context.
+	 */
+	private void learnIds(int[] ids, Route route) {
+		learnIds(ids, route, null);
+	}
+	
+	/**
+	 * @param ids
+	 * @param route
+	 * @param counts	Counts taken when the sentence was read by parseParagraph, null to count the words now.
+	 */
+	private void learnIds(int[] ids, Route route, int[] counts) {
+		if(options.learnContext) { learnContext(ids, route, counts); }
+		if(options.learnOrder) { learnOrder(ids, false, counts == null); }
+	}
+	
+	/**
+	 * Replace the stop list.
+	 * @param words
+	 */
+	void useStopList(HashSet<String> words) {
+		stopList = words;
+	}
+	
+	/**
+	 * Count the words of a sentence the way learning it would, without learning it.
+	 * @param ids
+	 */
+	void countIds(int[] ids) {
+		if(!options.updateWordCount) {
+			return;
+		}
+		int times = (options.learnContext ? 1 : 0) + (options.learnOrder ? 1 : 0);
+		for(int id : ids) {
+			for(int t=0;t<times;t++) {
+				store.incrementCount(id);
+			}
+		}
+	}
+	
+	/**
+	 * Learn the paragraphs of a corpus up to a byte offset on this thread, in the current context.
+	 * @param r		Positioned at the first paragraph to learn.
+	 * @param end	Offset to stop at, the paragraph that starts there is not learned.
+	 * @param progress
+	 * @throws IOException
+	 */
+	void learnRange(CorpusReader r, long end, LearningProgress progress) throws IOException {
+		progress.setTotalBytes(end - r.position(), 0);
+		long read = r.position();
+		String paragraph;
+		while(read < end && (paragraph = r.readLine()) != null) {
+			learnParagraph(paragraph, null, progress);
+			progress.addBytes(r.position() - read);
+			read = r.position();
+		}
+		progress.finish();
+	}
+	
+	/**
+	 * Find the contexts a paragraph was routed to, creating any that are new.
+	 * @param names
+	 * @return	Null if there are none.
+	 */
+	private Route routeOf(String[] names) {
+		if(names == null || names.length == 0) {
+			return null;
+		}
+		
+		String key = Arrays.toString(names);
+		synchronized(contexts) {
+			if(routes == null) {
+				routes = new HashMap<String,Route>();
+			}
+			Route route = routes.get(key);
+			if(route == null) {
+				route = new Route();
+				for(String name : names) {
+					if(name.equals("Global")) {
+						route.global = true;
+						continue;
+					}
+					Context c = contexts.get(name);
+					if(c == null) {
+						c = new Context(options.dimensions);
+						contexts.put(name, c);
+					}
+					if(route.indicator == null) {
+						route.indicator = new double[options.dimensions];
+					}
+					VectorTools.setAdd(c.indicator, route.indicator);
+				}
+				routes.put(key, route);
+			}
+			return route;
+		}
+	}
+		
+	/**
+	 * Find the sum of the environmental vectors that define a sentence.
+	 * @param sentence
+	 * @return
+	 */
+	public double[] sentenceLexicalMiddle(int[] sentence) { 
+		if(sentence.length == 0) {
+			return null;
+		}
+		
+		double[] middle = new double[options.dimensions];
+		for(int id : sentence) {
+			store.lexical.addTo(id, 1, middle);
+		}
+		return middle;
+	}
+	
+	/**
+	 * Find the sum of the environmental vectors that define a sentence.
+	 * @param sentence
+	 * @return
+	 */
+	public double[] sentenceEnvironmentalMiddle(int[] sentence) { 
+		if(sentence.length == 0) {
+			return null;
+		}
+		
+		double[] middle = new double[options.dimensions];
+		for(int id : sentence) {
+			store.addEnvironmentalTo(id, 1, middle);
+		}
+		return middle;
+	}
+	
+	/**
+	 * Setup loads all words and initializes their lexical and environmental vectors.
+	 */
+	public void setup() {
+
+		// Load the stop list.
+		if(options.stopListPath != null && options.stopListPath.isFile()) {
+			stopList = Thought.loadStoplist(options.stopListPath);
+		} else {
+			final JFileChooser chooser = new JFileChooser("data");
+		    chooser.setFileFilter(new FileNameExtensionFilter("Stoplist files", "stp"));
+			int returnVal = chooser.showDialog(null,"Select Stoplist file.");
+			if(returnVal == JFileChooser.APPROVE_OPTION) {
+				options.stopListPath = chooser.getSelectedFile();
+				stopList = Thought.loadStoplist(options.stopListPath);
+			} else {
+				stopList = new HashSet<String>();
+			}
+		}
+		
+		// Load words.
+		store = new VectorStore(options.dimensions, false, store.getGenerator());
+		if(options.wordSetPath != null && options.wordSetPath.isFile()) {
+			Thought.loadWordsSimple(options.wordSetPath, store);
+		} else {
+			final JFileChooser chooser = new JFileChooser("data");
+		    chooser.setFileFilter(new FileNameExtensionFilter("Word set file.", "wrd"));
+			int returnVal = chooser.showDialog(null,"Select word set file.");
+			if(returnVal == JFileChooser.APPROVE_OPTION) {
+				options.wordSetPath = chooser.getSelectedFile();
+				Thought.loadWordsSimple(options.wordSetPath, store);
+			}
+		}
+	}
+	
+	/**
+	 * Find the top n nearest words to this one.
+	 * @param word	Word to compare to.
+	 */
+	public KBox<Thought> topNContext(String word) {
+		double[] query = contextQuery(word);
+		
+		// Exit if no word found.
+		if(query == null) {
+			return null;
+		}
+		
+		return topNLexicalMatchesNonStoplisted(query);
+	}
+	
+	/**
+	 * Find the top n nearest words to each of these in one batch.
+	 * This is much faster than asking for each word alone.
+	 * @param words	Words to compare to.
+	 * @return		The matches of each word, null where no word was found.
+	 */
+	public KBox<Thought>[] topNContext(String[] words) {
+		double[][] queries = new double[words.length][];
+		for(int i=0;i<words.length;i++) {
+			queries[i] = contextQuery(words[i]);
+		}
+		
+		// Stop listed words are not skipped for lexical matches.
+		return topNMatches(queries, true, false);
+	}
+	
+	/**
+	 * Build the vector that the nearest words to this one are found with.
+	 * @param word
+	 * @return	Null if no word was found.
+	 */
+	private double[] contextQuery(String word) {
+		
+		// If we have not been given a context.
+		if(context == null) {
+			
+			// Get thought centroid.
+			int[] ids = toIds(word);
+			return sentenceLexicalMiddle(ids);
+			
+		} else {
+
+			/*
+			 * todo:
+			 */
+			int[] ids = toIds(word);
+			double[] environmentalThought = sentenceEnvironmentalMiddle(ids);
+			
+			// Exit if no word found.
+			if(environmentalThought == null) {
+				return null;
+			}
+			
+			return VectorTools.getPointwiseMultiply(environmentalThought, context.indicator);
+		}
+	}
+	
+	/**
+	 * Get the top n thoughts that should directly follow this one.
+	 */
+	public KBox<Thought> topNNext(String word) {
+		switch(options.combineOperator) {
+			case OptionsModule.CONVOLUTION:
+				return topNNextConvolusion(word);
+			case OptionsModule.RPM:
+				return topNNextRPM(word);
+		}
+		return null;
+	}
+	
+	/**
+	 * Get the top n thoughts that should directly follow this one based on RPM encoding.
+	 * @param word
+	 * @return
+	 */
+	private KBox<Thought> topNNextRPM(String word) {
+		
+		int id = store.getId(word);
+		
+		// Exit if no word found.
+		if(id < 0) {
+			return null;
+		}
+		
+		double[] lex = store.lexical.get(id);		
+		double[] rotated = VectorTools.rotate(lex, 1);		
+		return topNEnvironmentalMatches(rotated);
+	}
+	
+	/**
+	 * Get the top n thoughts that should directly follow this one based on Convolution encoding.
+	 * @param word
+	 * @return
+	 */
+	private KBox<Thought> topNNextConvolusion(String word) {
+
+		int id = store.getId(word);
+		
+		// Exit if no word found.
+		if(id < 0) {
+			return null;
+		}
+				
+		double[] b = getHolographic().corelate(PSI, E1, store.lexical.get(id), null, new double[options.dimensions]);
+		double[] c = VectorTools.rearangeBackward(b, E2);			
+		return topNEnvironmentalMatches(c);
+	}
+	
+	/**
+	 * Find the top N matches comparing lexical vectors.
+	 * @param representation
+	 * @param word
+	 */
+	public KBox<Thought> topNLexicalMatches(double[] representation) {
+		return topNMatches(representation, true, false);
 	}
 	
 	/**
@@ -484,14 +1224,8 @@ public class BEAGLE implements Serializable {
 	 * @param word
 	 */
 	private KBox<Thought> topNLexicalMatchesNonStoplisted(double[] representation) {
-		KBox<Thought> kBox = new KBox<Thought>(options.numResults,true);
-		for(Thought comp : thoughts.values()) {
-			//if(!stopList.contains(comp.representation)) {
-				double angle = VectorTools.getCosine(representation, comp.lexical);
-				kBox.add(new WeightedObject<Thought>(comp, angle));
-			//}
-		}
-		return kBox;
+		// Stop listed words are not skipped for lexical matches.
+		return topNMatches(representation, true, false);
 	}
 	
 	/**
@@ -500,12 +1234,7 @@ public class BEAGLE implements Serializable {
 	 * @param word
 	 */
 	private KBox<Thought> topNEnvironmentalMatches(double[] representation) {
-		KBox<Thought> kBox = new KBox<Thought>(options.numResults,true);
-		for(Thought comp : thoughts.values()) {
-			double angle = VectorTools.getCosine(representation, comp.environmental);
-			kBox.add(new WeightedObject<Thought>(comp, angle));
-		}
-		return kBox;
+		return topNMatches(representation, false, false);
 	}
 	
 	/**
@@ -514,11 +1243,267 @@ public class BEAGLE implements Serializable {
 	 * @param word
 	 */
 	public KBox<Thought> topNEnvironmentalMatchesNonStoplisted(double[] representation) {
+		return topNMatches(representation, false, true);
+	}
+	
+	/**
+	 * Find the top N cosine matches against one set of vectors.
+	 * Uses the approximate index when selected in the options.
+	 * @param representation
+	 * @param lexical			Compare to lexical vectors, otherwise environmental.
+	 * @param skipStoplisted
+	 * @return
+	 */
+	private KBox<Thought> topNMatches(double[] representation, boolean lexical, boolean skipStoplisted) {
+		if(options.approximateSearch) {
+			return topNMatchesIndexed(representation, lexical, skipStoplisted);
+		}
+		if(options.quantizedSearch) {
+			return topNMatchesQuantized(representation, lexical, skipStoplisted);
+		}
+		return topNMatchesExact(representation, lexical, skipStoplisted);
+	}
+	
+	/**
+	 * Find the top N cosine matches by scanning byte coded vectors and rescoring the best candidates.
+	 * @param representation
+	 * @param lexical			Compare to lexical vectors, otherwise environmental.
+	 * @param skipStoplisted
+	 * @return
+	 */
+	public KBox<Thought> topNMatchesQuantized(double[] representation, boolean lexical, boolean skipStoplisted) {
+		boolean[] skip = null;
+		if(skipStoplisted) {
+			skip = new boolean[store.size()];
+			for(int id=0;id<skip.length;id++) {
+				skip[id] = stopList.contains(store.getWord(id));
+			}
+		}
+		
+		QuantizedVectors codes = getCodes(lexical);
+		BatchSearch.Matches matches = codes.search(representation, options.numResults, options.numResults * options.rescoreFactor, skip);
+		
 		KBox<Thought> kBox = new KBox<Thought>(options.numResults,true);
-		for(Thought comp : thoughts.values()) {
-			if(!stopList.contains(comp.representation)) {
-				double angle = VectorTools.getCosine(representation, comp.environmental);
-				kBox.add(new WeightedObject<Thought>(comp, angle));
+		for(int i=0;i<matches.ids.length;i++) {
+			kBox.add(new WeightedObject<Thought>(store.getThought(matches.ids[i]), matches.similarities[i]));
+		}
+		return kBox;
+	}
+	
+	/**
+	 * Fraction of the exact top N that a search mode also finds, averaged over the queries.
+	 * @param representations
+	 * @param lexical			Compare to lexical vectors, otherwise environmental.
+	 * @param quantized			Measure the quantized search, otherwise the index.
+	 * @return
+	 */
+	public double measureRecall(double[][] representations, boolean lexical, boolean quantized) {
+		double recall = 0;
+		for(double[] representation : representations) {
+			HashSet<Integer> exact = new HashSet<Integer>();
+			for(WeightedObject<Thought> match : topNMatchesExact(representation, lexical, false).getObjects()) {
+				exact.add(match.object.id);
+			}
+			
+			KBox<Thought> found = quantized ? topNMatchesQuantized(representation, lexical, false) : topNMatchesIndexed(representation, lexical, false);
+			int hits = 0;
+			for(WeightedObject<Thought> match : found.getObjects()) {
+				if(exact.contains(match.object.id)) {
+					hits++;
+				}
+			}
+			recall += exact.isEmpty() ? 1 : (double)hits / exact.size();
+		}
+		return recall / representations.length;
+	}
+	
+	/**
+	 * Get the byte coded vectors, coding them again if words were added or removed.
+	 * @param lexical
+	 * @return
+	 */
+	private synchronized QuantizedVectors getCodes(boolean lexical) {
+		QuantizedVectors codes = lexical ? lexicalCodes : environmentalCodes;
+		if(codes == null || codes.getStore() != store || codes.isStale()) {
+			codes = new QuantizedVectors(store, lexical);
+			if(lexical) {
+				lexicalCodes = codes;
+			} else {
+				environmentalCodes = codes;
+			}
+		}
+		return codes;
+	}
+	
+	/**
+	 * Find the exact top N cosine matches of many vectors in one batch.
+	 * @param representations	Query vectors, null entries give null results.
+	 * @param lexical			Compare to lexical vectors, otherwise environmental.
+	 * @param skipStoplisted
+	 * @return
+	 */
+	public KBox<Thought>[] topNMatches(double[][] representations, boolean lexical, boolean skipStoplisted) {
+		boolean[] skip = null;
+		if(skipStoplisted) {
+			skip = new boolean[store.size()];
+			for(int id=0;id<skip.length;id++) {
+				skip[id] = stopList.contains(store.getWord(id));
+			}
+		}
+		
+		BatchSearch search = new BatchSearch(store, lexical, options.threads);
+		return toKBoxes(search.search(representations, options.numResults, skip));
+	}
+	
+	/**
+	 * a is to b as c is to what.
+	 * The answer is the word closest to b - a + c, leaving out the three words.
+	 * @param a
+	 * @param b
+	 * @param c
+	 * @return	Null if any of the words is unknown.
+	 */
+	public KBox<Thought> analogy(String a, String b, String c) {
+		return analogies(new String[][] {{a, b, c}})[0];
+	}
+	
+	/**
+	 * Answer many analogies in one scan of the lexical vectors.
+	 * @param probes	Each is {a, b, c}.
+	 * @return			One result per probe, null where a word is unknown.
+	 */
+	public KBox<Thought>[] analogies(String[][] probes) {
+		CompositeSearch.Query[] queries = new CompositeSearch.Query[probes.length];
+		for(int i=0;i<probes.length;i++) {
+			queries[i] = CompositeSearch.Query.analogy(cleanLine(probes[i][0]), cleanLine(probes[i][1]), cleanLine(probes[i][2]));
+		}
+		return compose(queries);
+	}
+	
+	/**
+	 * Find the words closest to weighted sums of normalized lexical vectors, in one scan for all queries.
+	 * @param queries
+	 * @return	One result per query, null where a word is unknown.
+	 */
+	public KBox<Thought>[] compose(CompositeSearch.Query[] queries) {
+		return toKBoxes(getCompositeSearch().search(queries, options.numResults, null));
+	}
+	
+	/**
+	 * Get the composition search, setting it up again if words were added or removed.
+	 * @return
+	 */
+	private synchronized CompositeSearch getCompositeSearch() {
+		if(compositeSearch == null || compositeSearch.getStore() != store || compositeSearch.isStale()) {
+			compositeSearch = new CompositeSearch(store, options.threads);
+		}
+		return compositeSearch;
+	}
+	
+	/**
+	 * Turn matches into thoughts, only the matches that made the top N are built.
+	 * @param matches
+	 * @return
+	 */
+	private KBox<Thought>[] toKBoxes(BatchSearch.Matches[] matches) {
+		KBox<Thought>[] kBoxes = newKBoxes(matches.length);
+		for(int i=0;i<matches.length;i++) {
+			if(matches[i] != null) {
+				kBoxes[i] = new KBox<Thought>(options.numResults,true);
+				for(int j=0;j<matches[i].ids.length;j++) {
+					kBoxes[i].add(new WeightedObject<Thought>(store.getThought(matches[i].ids[j]), matches[i].similarities[j]));
+				}
+			}
+		}
+		return kBoxes;
+	}
+	
+	/**
+	 * An empty array of thought boxes.
+	 * @param n
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	private static KBox<Thought>[] newKBoxes(int n) {
+		return (KBox<Thought>[])new KBox<?>[n];
+	}
+	
+	/**
+	 * Find the approximate top N cosine matches through the nearest neighbour index.
+	 * Lexical matches are found exactly while the lexical vectors are still being learned, see finishLearning.
+	 * @param representation
+	 * @param lexical			Compare to lexical vectors, otherwise environmental.
+	 * @param skipStoplisted
+	 * @return
+	 */
+	public KBox<Thought> topNMatchesIndexed(double[] representation, boolean lexical, boolean skipStoplisted) {
+		KBox<Thought> kBox = new KBox<Thought>(options.numResults,true);
+		
+		// Look a little deeper when stop listed words will be skipped.
+		int k = options.numResults;
+		if(skipStoplisted && stopList != null) {
+			k += stopList.size();
+		}
+		
+		HNSWIndex index = getIndex(lexical);
+		if(index == null) {
+			return topNMatchesExact(representation, lexical, skipStoplisted);
+		}
+		HNSWIndex.Neighbour[] found = index.search(representation, k, Math.max(options.indexSearch, k));
+		for(HNSWIndex.Neighbour n : found) {
+			if(!skipStoplisted || !stopList.contains(store.getWord(n.id))) {
+				kBox.add(new WeightedObject<Thought>(store.getThought(n.id), n.similarity()));
+			}
+		}
+		return kBox;
+	}
+	
+	/**
+	 * Get the nearest neighbour index, building it or inserting new words as needed.
+	 * @param lexical
+	 * @return	Null for a lexical index while the lexical vectors are still being learned.
+	 */
+	private synchronized HNSWIndex getIndex(boolean lexical) {
+		HNSWIndex index = lexical ? lexicalIndex : environmentalIndex;
+		if(index == null || index.getStore() != store || index.isStale()) {
+			if(lexical && !store.isLexicalSettled()) {
+				return null;
+			}
+			index = new HNSWIndex(store, lexical, options.indexNeighbours, options.indexConstruction, options.seed);
+			if(lexical) {
+				lexicalIndex = index;
+			} else {
+				environmentalIndex = index;
+			}
+		}
+		index.update();
+		return index;
+	}
+	
+	/**
+	 * Throw away the lexical index and codes so they are rebuilt over the current vectors on the next query.
+	 */
+	public synchronized void dropLexicalIndex() {
+		lexicalIndex = null;
+		lexicalCodes = null;
+		compositeSearch = null;
+	}
+	
+	/**
+	 * Scan every word for the top N cosine matches against one set of vectors.
+	 * This is exact, and is kept to check the index against.
+	 * @param representation
+	 * @param lexical			Compare to lexical vectors, otherwise environmental.
+	 * @param skipStoplisted
+	 * @return
+	 */
+	public KBox<Thought> topNMatchesExact(double[] representation, boolean lexical, boolean skipStoplisted) {
+		KBox<Thought> kBox = new KBox<Thought>(options.numResults,true);
+		double norm = VectorTools.dist(representation);
+		for(int id=0;id<store.size();id++) {
+			if(!skipStoplisted || !stopList.contains(store.getWord(id))) {
+				double angle = lexical ? store.lexical.cosine(id, representation, norm) : store.environmentalCosine(id, representation, norm);
+				kBox.add(new WeightedObject<Thought>(store.getThought(id), angle));
 			}
 		}
 		return kBox;
@@ -531,18 +1516,22 @@ public class BEAGLE implements Serializable {
 	 */
 	public static String cleanLine(String s) {
 		s = s.toLowerCase();
-		s = s.replaceAll("  +", " ");
-		s = s.replaceAll("[^a-zÀÂÄÈÉÊËÎÏÔŒÙÛÜŸàâäèéêëîïôœùûüÿ ]", "");
+		s = SPACES.matcher(s).replaceAll(" ");
+		s = NOT_LETTERS.matcher(s).replaceAll("");
 		s = s.trim();
 		return s;
 	}
 	
+	// Compiled once, every sentence learned is cleaned.
+	private static final Pattern SPACES = Pattern.compile("  +");
+	private static final Pattern NOT_LETTERS = Pattern.compile("[^a-zÀÂÄÈÉÊËÎÏÔŒÙÛÜŸàâäèéêëîïôœùûüÿ ]");
+	
 	/**
-	 * Convert a string into a list of thoughts.
+	 * Convert a string into a list of word ids.
 	 * @param sentence
 	 * @return
 	 */
-	public Thought[] toThought(String sentence) {		
+	public int[] toIds(String sentence) {		
 		
 		// First we need to clean the line up a little bit.
 		sentence = cleanLine(sentence);
@@ -550,111 +1539,165 @@ public class BEAGLE implements Serializable {
 		// Break into words.
 		String[] words = sentence.split(" ");
 		
-		return toThought(words);
+		return toIds(words);
 	}
 	
-	public Thought[] toThought(String[] words) {
-		Vector<Thought> matches = new Vector<Thought>();
+	public int[] toIds(String[] words) {
+		int[] matches = new int[words.length];
+		int found = 0;
 		
 		// For each word.
 		for(String word : words) {
 			
 			// If you have a thought for that word, then use it.
-			Thought t = thoughts.get(word);
+			int id = store.getId(word);
 			
-			if(t != null) {
-				matches.add(t);
+			if(id >= 0) {
+				matches[found++] = id;
 			} else {
 				// We have not found a word match.
 				if(options.autoAddWords) {
 					// We are going to add this word to the dictionary.
-					Thought newWord = Thought.addWord(word, options.dimensions, thoughts);
-					matches.add(newWord);
+					matches[found++] = store.addWord(word);
 				}
 			}
 		}
 		
-		// Convert to array.
-		Thought[] ret = new Thought[matches.size()];
-		matches.copyInto(ret);
-				
+		return (found == matches.length) ? matches : Arrays.copyOf(matches, found);
+	}
+	
+	/**
+	 * Convert a string into a list of thoughts.
+	 * @param sentence
+	 * @return
+	 */
+	public Thought[] toThought(String sentence) {
+		return toThought(toIds(sentence));
+	}
+	
+	public Thought[] toThought(String[] words) {
+		return toThought(toIds(words));
+	}
+	
+	private Thought[] toThought(int[] ids) {
+		Thought[] ret = new Thought[ids.length];
+		for(int i=0;i<ids.length;i++) {
+			ret[i] = store.getThought(ids[i]);
+		}
 		return ret;
 	}
 	
 	/**
 	 * Remove words that appear on the stop list.
-	 * @param thoughts
+	 * @param ids
 	 * @return
 	 */
-	public Thought[] removeStoplisted(Thought[] thoughts) {
+	public int[] removeStoplisted(int[] ids) {
 		
-		Vector<Thought> newList = new Vector<Thought>();
-		for(Thought thought : thoughts) {
-			if(!stopList.contains(thought.representation)) {
-				newList.add(thought);
+		int[] newList = new int[ids.length];
+		int kept = 0;
+		for(int id : ids) {
+			if(!stopList.contains(store.getWord(id))) {
+				newList[kept++] = id;
 			}
 		}
 		
-		// Convert to array.
-		Thought[] ret = new Thought[newList.size()];
-		newList.copyInto(ret);
-		return ret;
+		return Arrays.copyOf(newList, kept);
 	}
 		
 	/**
 	 * Learn contextual information about each word in this sentence.
-	 * @param thoughts
+	 * @param ids
+	 */
+	public void learnContext(int[] ids, boolean update) {		
+		learnContext(ids, (Route)null);
+		
+		// Update if asked to.
+		if(update) {
+			informChangeListeners();
+		}
+	}
+	
+	/**
+	 * Learn contextual information in the contexts of a route.
+	 * @param ids
+	 * @param route		Null for the current context.
+	 */
+	private void learnContext(int[] ids, Route route) {
+		learnContext(ids, route, null);
+	}
+	
+	/**
+	 * Learn contextual information about each word in a sentence.
+	 * @param ids
+	 * @param route		Null for the current context.
+	 * @param counts	Counts of the words left after the stop list, taken when the sentence was read.
+	 * 					Null to count the words now.
 	 */
-	public void learnContext(Thought[] thoughts, boolean update) {		
+	private void learnContext(int[] ids, Route route, int[] counts) {
 
 		// We will update how many times we have seen a thought.
-		if(options.updateWordCount) {
-			for(Thought t : thoughts) {
-				t.count++;
+		if(counts == null && options.updateWordCount) {
+			for(int id : ids) {
+				store.incrementCount(id);
 			}
 		}
 
 		// Only non-stop listed words if applicable.
 		if(options.stopList) {
-			thoughts = removeStoplisted(thoughts);
+			ids = removeStoplisted(ids);
 		}
 		
-		// We are in the global context.
-		if(context == null) {
-			learnContextGlobal(thoughts);
+		if(route != null) {
+			if(route.global) {
+				learnContextGlobal(ids, counts);
+			}
+			if(route.indicator != null) {
+				learnContextLocal(ids, route.indicator);
+			}
+		} else if(context == null) {
+			// We are in the global context.
+			learnContextGlobal(ids, counts);
 		} else {
-			learnContextLocal(thoughts);
-		}
-		
-		// Update if asked to.
-		if(update) {
-			informChangeListeners();
+			learnContextLocal(ids, context.indicator);
 		}
 	}
 	
-	public void learnContextGlobal(Thought[] thoughts) {		
+	/**
+	 * Every word learns the environmental vectors of the other words in the sentence.
+	 * Each one is weighted by envWeight less the sigmoid of its word count.
+	 * The weighted sum over the whole sentence is built once and each word subtracts its own term,
+	 * so this is linear in the sentence length.
+	 * @param ids
+	 */
+	public void learnContextGlobal(int[] ids) {
+		learnContextGlobal(ids, null);
+	}
 	
-		// For each word
-		for(int i=0;i<thoughts.length;i++) {
-			double[] sumEnvironmental = VectorTools.zero(options.dimensions);
-			double[] sumLexical = VectorTools.zero(options.dimensions);
-			
-			// For each word except this word.
-			for(int j=0;j<thoughts.length;j++) {
-				if(i != j) {
-					double scale = - sigmoid(thoughts[j].count);
-					double[] scalled = VectorTools.mult(thoughts[j].environmental, scale);
-					VectorTools.setAdd(scalled, sumEnvironmental);					
-					VectorTools.setAdd(thoughts[j].environmental, sumLexical);
-				}
-			}
-
-			// Here we will normalize the learned environmental.
-						
-			VectorTools.setAdd(sumEnvironmental, thoughts[i].lexical);
-			sumLexical = VectorTools.mult(sumLexical, options.envWeight);
-			VectorTools.setAdd(sumLexical, thoughts[i].lexical);
-				
+	/**
+	 * @param ids
+	 * @param counts	Counts of the words to weight them by, null to use their counts now.
+	 */
+	private void learnContextGlobal(int[] ids, int[] counts) {
+		if(ids.length < 2) {
+			return;
+		}
+		
+		double[] sum = getContextBuffer();
+		double[] weights = getWeightBuffer(ids.length);
+		double[][] environmental = loadEnvironmental(ids);
+		
+		// Weighted sum of every word in the sentence.
+		Arrays.fill(sum, 0);
+		for(int j=0;j<ids.length;j++) {
+			weights[j] = options.envWeight - sigmoid((counts == null) ? store.getCount(ids[j]) : counts[j]);
+			VectorTools.setAddMult(environmental[j], weights[j], sum);
+		}
+		
+		// For each word add everything except itself.
+		for(int i=0;i<ids.length;i++) {
+			store.addLexical(ids[i], sum, 1);
+			store.addLexical(ids[i], environmental[i], -weights[i]);
 		}
 	}
 	
@@ -662,41 +1705,139 @@ public class BEAGLE implements Serializable {
 		return 1.0 / (1.0 + Math.pow(Math.E, -(v / 1000 - 2)));
 	}
 	
-	public void learnContextLocal(Thought[] thoughts) {	
+	/**
+	 * The sigmoid of a word count, looked up from a table for all but the largest counts.
+	 * @param count
+	 * @return
+	 */
+	public double sigmoid(int count) {
+		if(count >= 0 && count < SIGMOID_TABLE.length) {
+			return SIGMOID_TABLE[count];
+		}
+		return sigmoid((double)count);
+	}
+	
+	// Sigmoid values for word counts, past this the weight is 1 to double precision.
+	private static final double[] SIGMOID_TABLE = new double[40000];
+	static {
+		for(int i=0;i<SIGMOID_TABLE.length;i++) {
+			SIGMOID_TABLE[i] = 1.0 / (1.0 + Math.pow(Math.E, -(i / 1000.0 - 2)));
+		}
+	}
+	
+	/**
+	 * Get the reusable sentence sum vector.
+	 * @return
+	 */
+	private double[] getContextBuffer() {
+		Scratch scratch = getScratch();
+		if(scratch.contextBuffer == null || scratch.contextBuffer.length != options.dimensions) {
+			scratch.contextBuffer = new double[options.dimensions];
+		}
+		return scratch.contextBuffer;
+	}
+	
+	/**
+	 * Get the reusable vector a word's update is built in.
+	 * @return
+	 */
+	private double[] getUpdateBuffer() {
+		Scratch scratch = getScratch();
+		if(scratch.updateBuffer == null || scratch.updateBuffer.length != options.dimensions) {
+			scratch.updateBuffer = new double[options.dimensions];
+		}
+		return scratch.updateBuffer;
+	}
+	
+	/**
+	 * Copy the environmental vectors of a sentence into reusable buffers.
+	 * @param ids
+	 * @return One row per word, there may be more rows than words.
+	 */
+	private double[][] loadEnvironmental(int[] ids) {
+		Scratch scratch = getScratch();
+		if(scratch.sentenceBuffer == null || scratch.sentenceBuffer.length < ids.length || scratch.sentenceBuffer[0].length != options.dimensions) {
+			scratch.sentenceBuffer = new double[Math.max(ids.length, 64)][options.dimensions];
+		}
+		for(int i=0;i<ids.length;i++) {
+			store.getEnvironmental(ids[i], scratch.sentenceBuffer[i]);
+		}
+		return scratch.sentenceBuffer;
+	}
+	
+	/**
+	 * Get a reusable array with room for one weight per word.
+	 * @param words
+	 * @return
+	 */
+	private double[] getWeightBuffer(int words) {
+		Scratch scratch = getScratch();
+		if(scratch.weightBuffer == null || scratch.weightBuffer.length < words) {
+			scratch.weightBuffer = new double[Math.max(words, 64)];
+		}
+		return scratch.weightBuffer;
+	}
+	
+	public void learnContextLocal(int[] ids) {	
+		learnContextLocal(ids, context.indicator);
+	}
+	
+	/**
+	 * Every word learns the environmental vectors of the other words in the sentence, multiplied by an indicator.
+	 * The sentence sum is built once, then each word's update is its difference from the sum times the indicator,
+	 * formed in one pass into a reusable buffer.
+	 * @param ids
+	 * @param indicator	Indicator of a context, or the sum of several to learn them all at once.
+	 */
+	private void learnContextLocal(int[] ids, double[] indicator) {
+		if(ids.length < 2) {
+			return;
+		}
 		
-		for(int i=0;i<thoughts.length;i++) {
-			double[] sum = VectorTools.zero(options.dimensions);
-			for(int j=0;j<thoughts.length;j++) {
-				if(i != j) {
-					double[] contexted = VectorTools.getPointwiseMultiply(thoughts[j].environmental, context.indicator);
-					double[] scalled = VectorTools.mult(contexted, 10.0);
-					VectorTools.setAdd(scalled, sum);
-				}
-			}
-			VectorTools.setAdd(sum, thoughts[i].lexical);
+		double[] sum = getContextBuffer();
+		double[] update = getUpdateBuffer();
+		double[][] environmental = loadEnvironmental(ids);
+		
+		Arrays.fill(sum, 0);
+		for(int j=0;j<ids.length;j++) {
+			VectorTools.setAdd(environmental[j], sum);
+		}
+		
+		for(int i=0;i<ids.length;i++) {
+			VectorKernels.multiplyDifference(sum, environmental[i], indicator, 10.0, update);
+			store.addLexical(ids[i], update, 1);
 		}
 	}
 	
 	/**
 	 * Learn order information about each word in this sentence.
-	 * @param thoughts
+	 * @param ids
+	 */
+	public void learnOrder(int[] ids, boolean update) {
+		learnOrder(ids, update, true);
+	}
+	
+	/**
+	 * @param ids
+	 * @param update
+	 * @param count	False if the words were counted when the sentence was read.
 	 */
-	public void learnOrder(Thought[] thoughts, boolean update) {
+	private void learnOrder(int[] ids, boolean update, boolean count) {
 		
 		// We will update how many times we have seen a thought.
-		if(options.updateWordCount) {
-			for(Thought t : thoughts) {
-				t.count++;
+		if(count && options.updateWordCount) {
+			for(int id : ids) {
+				store.incrementCount(id);
 			}
 		}
 
 		// Add the termination thought.
-		thoughts = addTermination(thoughts);
+		ids = addTermination(ids);
 				
 		if(options.combineOperator == OptionsModule.CONVOLUTION) {
-			learnOrderConvolution(thoughts);
+			learnOrderConvolution(ids);
 		} else if(options.combineOperator == OptionsModule.RPM) {
-			learnOrderRPM(thoughts);			
+			learnOrderRPM(ids);			
 		}
 
 		if(update) {
@@ -705,57 +1846,79 @@ public class BEAGLE implements Serializable {
 	}
 	
 	
-	public Thought[] addTermination(Thought[] thoughts) {
-		Thought[] thoughtsTerminated = new Thought[thoughts.length+1];
-		for(int i=0;i<thoughts.length;i++) {
-			thoughtsTerminated[i] = thoughts[i];
-		}
-		thoughtsTerminated[thoughts.length] = sentenceTerminate;
-		return thoughtsTerminated;
+	public int[] addTermination(int[] ids) {
+		int[] idsTerminated = Arrays.copyOf(ids, ids.length+1);
+		int terminate = store.getId(sentenceTerminate);
+		idsTerminated[ids.length] = (terminate >= 0) ? terminate : store.addWord(sentenceTerminate);
+		return idsTerminated;
 	}
 	
 
 	/**
 	 * Encode order information using RPM.
-	 * @param thoughts
+	 * Each word learns the environmental vectors of the words within the window, rotated by their offset.
+	 * The rotation is applied as an index offset so no rotated copies are made.
+	 * @param ids
 	 */
-	public void learnOrderRPM(Thought[] thoughts) {
-		for(int i=0;i<thoughts.length;i++) {
-			double[] sum = VectorTools.zero(options.dimensions);
-			for(int j=0;j<thoughts.length;j++) {
+	public void learnOrderRPM(int[] ids) {
+		int window = Math.max(options.windowSize, 1);
+		double[][] environmental = loadEnvironmental(ids);
+		double[] sum = getContextBuffer();
+		for(int i=0;i<ids.length;i++) {
+			Arrays.fill(sum, 0);
+			int from = Math.max(0, i - window + 1);
+			int to = Math.min(ids.length - 1, i + window - 1);
+			for(int j=from;j<=to;j++) {
 				int offset = i-j;
 				if(offset != 0) {
-					double[] rotated = VectorTools.rotate(thoughts[j].environmental, offset);
-					VectorTools.setAdd(rotated, sum);
+					VectorTools.setAddRotated(environmental[j], offset, sum);
 				}
 			}
-			// We can now appropriatly scale the sum vector.
-			
-			// Then set back 
-			VectorTools.setAdd(sum, thoughts[i].lexical);
+			store.addLexical(ids[i], sum, 1);
 		}
 	}
 
 	/**
 	 * Encode order information using convolution.
-	 * @param thoughts
+	 * Every n-gram in the window is bound once for each word it contains, with that word replaced by PSI.
+	 * Binding is a left fold so the chains are built incrementally. Prefixes without PSI are shared by
+	 * every position, and each chain containing PSI is extended one word at a time. This costs one
+	 * convolution per lexical update rather than rebinding the whole n-gram.
+	 * @param ids
 	 */
-	public void learnOrderConvolution(Thought[] thoughts) {
-		if(thoughts.length > 1) {			
+	public void learnOrderConvolution(int[] ids) {
+		if(ids.length > 1) {
+			double[][] environmental = loadEnvironmental(ids);
+			double[][] prefix = getChainBuffers();
+			double[] chain = prefix[prefix.length - 1];
+			
 			// For every possible starting location.
-			for(int start=0;start<thoughts.length;start++) {
-				// For every possible stopping location.
-				for(int stop=start+1;stop<start+options.windowSize&&stop<thoughts.length;stop++) {
-					// For each word to learn within range.
-					for(int at=start;at<=stop;at++) {						
-						Thought tmp = thoughts[at];
-						thoughts[at] = PSI;
-						double[] bound = bind(thoughts,start,stop);
-						thoughts[at] = tmp;
-						
-						bound = VectorTools.normalizeLen(bound);
-						VectorTools.setAdd(bound, thoughts[at].lexical);
-						
+			for(int start=0;start<ids.length;start++) {
+				int last = Math.min(start + options.windowSize - 1, ids.length - 1);
+				if(last == start) {
+					continue;
+				}
+				
+				// Bind every prefix of the window that does not contain PSI.
+				System.arraycopy(environmental[start], 0, prefix[0], 0, options.dimensions);
+				for(int k=1;start+k<last;k++) {
+					bind(prefix[k-1], environmental[start+k], prefix[k]);
+				}
+				
+				// For each word to learn within range.
+				for(int at=start;at<=last;at++) {
+					double[] bound;
+					if(at == start) {
+						bound = PSI;
+					} else {
+						bound = bind(prefix[at-start-1], PSI, chain);
+						learnBound(bound, ids[at]);
+					}
+					
+					// Extend to every stopping location after the substituted word.
+					for(int stop=at+1;stop<=last;stop++) {
+						bound = bind(bound, environmental[stop], chain);
+						learnBound(bound, ids[at]);
 					}
 				}
 			}
@@ -763,23 +1926,114 @@ public class BEAGLE implements Serializable {
 	}
 	
 	/**
-	 * Get the bound array.
-	 * @param thoughts
-	 * @param start
-	 * @param stop
+	 * Add a normalized bound vector to the lexical vector of a word.
+	 * @param bound
+	 * @param id
+	 */
+	private void learnBound(double[] bound, int id) {
+		store.addLexical(id, bound, bound.length / VectorTools.dist(bound));
+	}
+	
+	/**
+	 * Extend a bound chain by one word.
+	 * @param upTo	Chain bound so far.
+	 * @param next	Environmental vector to append.
+	 * @param out	Where to write the result, may be upTo.
+	 * @return
+	 */
+	private double[] bind(double[] upTo, double[] next, double[] out) {
+		return getHolographic().convolve(upTo, E1, next, E2, out);
+	}
+	
+	/**
+	 * Get the reusable buffers for building convolution chains.
+	 * One for each prefix in the window plus one for the chain containing PSI.
 	 * @return
 	 */
-	private double[] bind(Thought[] thoughts, int start, int stop) {
-		if(start + 1 == stop) {
-			double[] a = VectorTools.rearangeForward(thoughts[start].environmental, E1);
-			double[] b = VectorTools.rearangeForward(thoughts[stop].environmental, E2);
-			double[] c = VectorTools.convolve(a, b);
-			return c;
+	private double[][] getChainBuffers() {
+		Scratch scratch = getScratch();
+		int rows = Math.max(options.windowSize, 1) + 1;
+		if(scratch.chainBuffers == null || scratch.chainBuffers.length != rows || scratch.chainBuffers[0].length != options.dimensions) {
+			scratch.chainBuffers = new double[rows][options.dimensions];
 		}
+		return scratch.chainBuffers;
+	}
+	
+	/**
+	 * Get the FFT engine for the current dimensions.
+	 * @return
+	 */
+	private HolographicFFT getHolographic() {
+		Scratch scratch = getScratch();
+		if(scratch.holographic == null || scratch.holographic.length() != options.dimensions) {
+			scratch.holographic = new HolographicFFT(options.dimensions);
+		}
+		return scratch.holographic;
+	}
+	
+	/**
+	 * Get the scratch space of the calling thread.
+	 * @return
+	 */
+	private Scratch getScratch() {
+		if(scratch == null) {
+			scratch = new ThreadLocal<Scratch>();
+		}
+		Scratch s = scratch.get();
+		if(s == null) {
+			s = new Scratch();
+			scratch.set(s);
+		}
+		return s;
+	}
+	
+	/**
+	 * Contexts a paragraph is learned in.
+	 */
+	private static class Route {
+		
+		// Learn in the global context.
+		boolean global;
+		
+		// Sum of the indicators of the other contexts, null if none.
+		double[] indicator;
+	}
+	
+	/**
+	 * A paragraph read for the learning threads, with the word ids of each sentence.
+	 */
+	private static class Paragraph {
+		
+		final Route route;
+		final int[][] sentences;
+		
+		// Counts to weight each sentence by.
+		final int[][] counts;
+		
+		Paragraph(Route route, int[][] sentences, int[][] counts) {
+			this.route = route;
+			this.sentences = sentences;
+			this.counts = counts;
+		}
+	}
+	
+	/**
+	 * Reusable buffers for one learning thread.
+	 */
+	private static class Scratch {
+		
+		// FFT engine used for convolution binding.
+		HolographicFFT holographic;
+		
+		// Vectors for building convolution chains.
+		double[][] chainBuffers;
+		
+		// Space for context learning.
+		double[] contextBuffer;
+		double[] updateBuffer;
+		double[] weightBuffer;
 		
-		double[] upTo = bind(thoughts, start, stop - 1);		
-		double[] a = VectorTools.rearangeForward(upTo, E1);
-		double[] b = VectorTools.rearangeForward(thoughts[stop].environmental, E2);
-		return VectorTools.convolve(a, b);
+		// Environmental vectors of the sentence being learned.
+		double[][] sentenceBuffer;
 	}
 }
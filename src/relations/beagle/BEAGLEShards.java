@@ -0,0 +1,417 @@
+package relations.beagle;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import tools.LearningProgress;
+
+/**
+ * Trains one BEAGLE model as several shards, each of which may run in its own process, and merges them.
+ * Lexical vectors are sums over sentences, so each shard learns a run of the corpus into vectors
+ * that start at zero and the merge adds them up. A planning pass reads the corpus once to fix the
+ * words and their ids, and every shard loads the same base model so the environmental vectors,
+ * permutations and PSI are shared. The weights of context learning depend on the word counts seen so far,
+ * so the plan also keeps the counts at the start of each shard and the shard starts from them.
+ * The merged model is the model a single process learns, up to float rounding.
+ *
+ * Usage:
+ * BEAGLEShards plan corpus directory shards configuration
+ * BEAGLEShards train corpus directory shard
+ * BEAGLEShards merge directory model
+ * BEAGLEShards local corpus directory shards model configuration
+ * A configuration is written as for BEAGLESweep, without alternatives.
+ * The local command plans, trains every shard in a process of its own and merges.
+ */
+
+public class BEAGLEShards {
+
+	// "BGLS" and "BGLP"
+	private static final int PLAN_MAGIC = 0x42474C53;
+	private static final int PART_MAGIC = 0x42474C50;
+
+	private static final String BASE = "base.bglm";
+	private static final String STATE = "base.state";
+	private static final String PLAN = "shards.plan";
+	private static final String PART = "shard-";
+
+	private final File directory;
+
+	/**
+	 * @param directory	Holds the base model, the plan and the shard outputs.
+	 */
+	public BEAGLEShards(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Read the corpus once to fix its words and where each shard starts,
+	 * and write the base model every shard learns from.
+	 * @param corpus
+	 * @param options
+	 * @param shards
+	 * @throws IOException
+	 */
+	public void plan(File corpus, OptionsModule options, int shards) throws IOException {
+		directory.mkdirs();
+		BEAGLE beagle = new BEAGLE(options);
+		if(options.stopList) {
+			beagle.useStopList((options.stopListPath == null) ? new HashSet<String>() : Thought.loadStoplist(options.stopListPath));
+		}
+
+		long length = corpus.length();
+		long[] starts = new long[shards + 1];
+		int[][] counts = new int[shards][];
+		counts[0] = new int[0];
+		int next = 1;
+
+		CorpusReader r = CorpusReader.open(corpus, 0);
+		try {
+			String paragraph;
+			while((paragraph = r.readLine()) != null) {
+				// Split the same way learning does, so words get the ids a single run gives them.
+				for(String s : paragraph.split("[.?!]")) {
+					beagle.countIds(beagle.toIds(s));
+				}
+				while(next < shards && r.position() >= length * next / shards) {
+					starts[next] = r.position();
+					counts[next++] = counts(beagle.store);
+				}
+			}
+			while(next < shards) {
+				starts[next] = r.position();
+				counts[next++] = counts(beagle.store);
+			}
+			starts[shards] = r.position();
+		} finally {
+			r.close();
+		}
+
+		// Shards only write what they add to the counts.
+		beagle.resetCounts();
+		beagle.writeModel(new File(directory, BASE));
+		ObjectOutputStream state = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, STATE))));
+		try {
+			beagle.writeLearningState(state);
+		} finally {
+			state.close();
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, PLAN)), 1 << 16));
+		try {
+			out.writeInt(PLAN_MAGIC);
+			out.writeLong(length);
+			out.writeInt(shards);
+			for(int shard=0;shard<shards;shard++) {
+				out.writeLong(starts[shard]);
+				out.writeLong(starts[shard + 1]);
+				out.writeInt(counts[shard].length);
+				for(int count : counts[shard]) {
+					out.writeInt(count);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Number of shards in the plan.
+	 * @return
+	 * @throws IOException
+	 */
+	public int getShards() throws IOException {
+		return readPlan().starts.length - 1;
+	}
+
+	/**
+	 * Learn one shard of the corpus and write what it adds to the lexical vectors and counts.
+	 * @param corpus	The corpus that was planned.
+	 * @param shard
+	 * @param progress
+	 * @throws IOException
+	 */
+	public void train(File corpus, int shard, LearningProgress progress) throws IOException {
+		Plan plan = readPlan();
+		if(corpus.length() != plan.length) {
+			throw new IOException(corpus + " is not the corpus that was planned.");
+		}
+		if(shard < 0 || shard >= plan.counts.length) {
+			throw new IllegalArgumentException("No shard " + shard + ".");
+		}
+
+		BEAGLE beagle = load();
+		int[] start = plan.counts[shard];
+		for(int id=0;id<start.length;id++) {
+			beagle.store.setCount(id, start[id]);
+		}
+
+		CorpusReader r = CorpusReader.open(corpus, plan.starts[shard]);
+		try {
+			beagle.learnRange(r, plan.starts[shard + 1], progress);
+		} finally {
+			r.close();
+		}
+
+		// Write beside the part and swap it in, so a part that exists is complete.
+		VectorStore store = beagle.store;
+		int size = store.size();
+		File part = partFile(shard);
+		File temp = new File(part.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		try {
+			out.writeInt(PART_MAGIC);
+			out.writeInt(shard);
+			out.writeLong(plan.starts[shard]);
+			out.writeLong(plan.starts[shard + 1]);
+			out.writeInt(size);
+			out.writeInt(store.getDimensions());
+			for(int id=0;id<size;id++) {
+				out.writeInt(store.getCount(id) - ((id < start.length) ? start[id] : 0));
+			}
+			store.lexical.write(out, size);
+		} finally {
+			out.close();
+		}
+		if(!temp.renameTo(part) && !(part.delete() && temp.renameTo(part))) {
+			throw new IOException("Could not replace " + part + ".");
+		}
+	}
+
+	/**
+	 * Add up the output of every shard.
+	 * @param model	Where to save the merged model, may be null.
+	 * @return
+	 * @throws IOException
+	 */
+	public BEAGLE merge(File model) throws IOException {
+		Plan plan = readPlan();
+		BEAGLE beagle = load();
+		VectorStore store = beagle.store;
+		int size = store.size();
+		int dimensions = store.getDimensions();
+		double[] row = new double[dimensions];
+
+		for(int shard=0;shard<plan.counts.length;shard++) {
+			File part = partFile(shard);
+			if(!part.exists()) {
+				throw new IOException("Shard " + shard + " has not been trained.");
+			}
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(part), 1 << 16));
+			try {
+				if(in.readInt() != PART_MAGIC || in.readInt() != shard) {
+					throw new IOException(part + " is not the output of shard " + shard + ".");
+				}
+				if(in.readLong() != plan.starts[shard] || in.readLong() != plan.starts[shard + 1] ||
+						in.readInt() != size || in.readInt() != dimensions) {
+					throw new IOException(part + " was trained for another plan.");
+				}
+				for(int id=0;id<size;id++) {
+					store.setCount(id, store.getCount(id) + in.readInt());
+				}
+				for(int id=0;id<size;id++) {
+					for(int i=0;i<dimensions;i++) {
+						row[i] = in.readFloat();
+					}
+					store.addLexical(id, row, 1);
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		if(model != null) {
+			beagle.writeModel(model);
+		}
+		return beagle;
+	}
+
+	/**
+	 * Train every shard in a process of its own on this machine and merge them.
+	 * Shards run with the class path and JVM options of this process, their output is passed on to ours.
+	 * @param corpus
+	 * @param model	Where to save the merged model, may be null.
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public BEAGLE trainLocal(File corpus, File model) throws IOException, InterruptedException {
+		int shards = getShards();
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+
+		Process[] processes = new Process[shards];
+		Thread[] echoes = new Thread[shards];
+		try {
+			for(int shard=0;shard<shards;shard++) {
+				List<String> command = new LinkedList<String>();
+				command.add(java);
+				command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add(BEAGLEShards.class.getName());
+				command.add("train");
+				command.add(corpus.getPath());
+				command.add(directory.getPath());
+				command.add(Integer.toString(shard));
+
+				ProcessBuilder builder = new ProcessBuilder(command);
+				builder.redirectErrorStream(true);
+				processes[shard] = builder.start();
+				echoes[shard] = echo(processes[shard].getInputStream(), "shard " + shard + ": ");
+			}
+
+			for(int shard=0;shard<shards;shard++) {
+				int exit = processes[shard].waitFor();
+				echoes[shard].join();
+				if(exit != 0) {
+					throw new IOException("Shard " + shard + " failed with exit code " + exit + ".");
+				}
+			}
+		} finally {
+			for(Process process : processes) {
+				if(process != null) {
+					process.destroy();
+				}
+			}
+		}
+		return merge(model);
+	}
+
+	/**
+	 * Copy the lines of a stream to standard out on a thread of its own.
+	 * @param in
+	 * @param prefix
+	 * @return
+	 */
+	private static Thread echo(final InputStream in, final String prefix) {
+		Thread thread = new Thread(prefix) {
+			public void run() {
+				BufferedReader r = new BufferedReader(new InputStreamReader(in));
+				try {
+					String line;
+					while((line = r.readLine()) != null) {
+						System.out.println(prefix + line);
+					}
+				} catch (IOException e) {
+					// The process ended.
+				} finally {
+					try {
+						r.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Load the base model every shard starts from.
+	 * @return
+	 * @throws IOException
+	 */
+	private BEAGLE load() throws IOException {
+		BEAGLE beagle = new BEAGLE(new OptionsModule(1));
+		beagle.useModel(ModelFile.read(new File(directory, BASE), false));
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(new File(directory, STATE))));
+		try {
+			beagle.readLearningState(in);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Shard state could not be read.", e);
+		} finally {
+			in.close();
+		}
+		return beagle;
+	}
+
+	private Plan readPlan() throws IOException {
+		File file = new File(directory, PLAN);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if(in.readInt() != PLAN_MAGIC) {
+				throw new IOException(file + " is not a shard plan.");
+			}
+			Plan plan = new Plan();
+			plan.length = in.readLong();
+			int shards = in.readInt();
+			plan.starts = new long[shards + 1];
+			plan.counts = new int[shards][];
+			for(int shard=0;shard<shards;shard++) {
+				plan.starts[shard] = in.readLong();
+				plan.starts[shard + 1] = in.readLong();
+				plan.counts[shard] = new int[in.readInt()];
+				for(int id=0;id<plan.counts[shard].length;id++) {
+					plan.counts[shard][id] = in.readInt();
+				}
+			}
+			return plan;
+		} finally {
+			in.close();
+		}
+	}
+
+	private File partFile(int shard) {
+		return new File(directory, PART + shard + ".part");
+	}
+
+	private static int[] counts(VectorStore store) {
+		int[] counts = new int[store.size()];
+		for(int id=0;id<counts.length;id++) {
+			counts[id] = store.getCount(id);
+		}
+		return counts;
+	}
+
+	/**
+	 * Where each shard starts and the word counts there.
+	 */
+	private static class Plan {
+		long length;
+		long[] starts;
+		int[][] counts;
+	}
+
+	/**
+	 * The single configuration a description asks for.
+	 * @param description
+	 * @return
+	 */
+	private static OptionsModule configuration(String description) {
+		OptionsModule[] configurations = BEAGLESweep.parse(description, new Random().nextLong());
+		if(configurations.length != 1) {
+			throw new IllegalArgumentException("Shards train a single configuration, " + description + " has " + configurations.length + ".");
+		}
+		return configurations[0];
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String command = (args.length > 0) ? args[0] : "";
+		long start = System.currentTimeMillis();
+
+		if(command.equals("plan") && args.length == 5) {
+			new BEAGLEShards(new File(args[2])).plan(new File(args[1]), configuration(args[4]), Integer.parseInt(args[3]));
+		} else if(command.equals("train") && args.length == 4) {
+			LearningProgress progress = new LearningProgress(5000);
+			progress.printTo(System.out);
+			new BEAGLEShards(new File(args[2])).train(new File(args[1]), Integer.parseInt(args[3]), progress);
+		} else if(command.equals("merge") && args.length == 3) {
+			new BEAGLEShards(new File(args[1])).merge(new File(args[2]));
+		} else if(command.equals("local") && args.length == 6) {
+			BEAGLEShards shards = new BEAGLEShards(new File(args[2]));
+			shards.plan(new File(args[1]), configuration(args[5]), Integer.parseInt(args[3]));
+			shards.trainLocal(new File(args[1]), new File(args[4]));
+		} else {
+			System.err.println("Usage: BEAGLEShards plan <corpus> <directory> <shards> <configuration>");
+			System.err.println("       BEAGLEShards train <corpus> <directory> <shard>");
+			System.err.println("       BEAGLEShards merge <directory> <model>");
+			System.err.println("       BEAGLEShards local <corpus> <directory> <shards> <model> <configuration>");
+			return;
+		}
+		System.out.println(String.format("%s done in %.1fs", command, (System.currentTimeMillis() - start) / 1000.0));
+	}
+}
@@ -0,0 +1,440 @@
+package relations.beagle;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tools.LearningProgress;
+
+/**
+ * Trains many BEAGLE configurations from one reading of a corpus.
+ * The corpus is split into sentences and words once, into a shared table of word numbers that
+ * every configuration learns from on its own thread. Configurations are started as long as their
+ * estimated vectors fit in the memory budget, and each reports its throughput and the bytes its vectors
+ * are estimated to take. Configurations share one heap, so only the peak heap of the whole sweep is measured.
+ *
+ * Usage: BEAGLESweep corpus threads budgetMB outputDirectory|- configuration ...
+ * A configuration is a comma separated list of option fields, where | separates values to try,
+ * such as "dimensions=256|512,windowSize=3|5,combineOperator=rpm,envWeight=0.5".
+ */
+
+public class BEAGLESweep {
+
+	// Every distinct word of the corpus, by number.
+	private final String[] vocabulary;
+
+	// Word numbers of every sentence one after another, and where each sentence starts.
+	private final int[] tokens;
+	private final int[] sentences;
+	private final int sentenceCount;
+
+	private final long bytes;
+
+	/**
+	 * Read and split a corpus the same way learnCorpus does.
+	 * @param corpus
+	 * @throws IOException
+	 */
+	public BEAGLESweep(File corpus) throws IOException {
+		HashMap<String,Integer> numbers = new HashMap<String,Integer>();
+		LinkedList<String> words = new LinkedList<String>();
+		int[] tokens = new int[1 << 16];
+		int[] sentences = new int[1 << 12];
+		int tokenCount = 0;
+		int sentenceCount = 0;
+
+		CorpusReader r = CorpusReader.open(corpus, 0);
+		try {
+			String paragraph;
+			while((paragraph = r.readLine()) != null) {
+				for(String s : paragraph.split("[.?!]")) {
+					if(sentenceCount + 1 >= sentences.length) {
+						sentences = Arrays.copyOf(sentences, sentences.length * 2);
+					}
+					sentences[sentenceCount++] = tokenCount;
+
+					for(String word : BEAGLE.cleanLine(s).split(" ")) {
+						Integer number = numbers.get(word);
+						if(number == null) {
+							number = numbers.size();
+							numbers.put(word, number);
+							words.add(word);
+						}
+						if(tokenCount == tokens.length) {
+							tokens = Arrays.copyOf(tokens, tokens.length * 2);
+						}
+						tokens[tokenCount++] = number;
+					}
+				}
+			}
+			bytes = r.position();
+		} finally {
+			r.close();
+		}
+		sentences[sentenceCount] = tokenCount;
+
+		this.vocabulary = words.toArray(new String[words.size()]);
+		this.tokens = Arrays.copyOf(tokens, tokenCount);
+		this.sentences = Arrays.copyOf(sentences, sentenceCount + 1);
+		this.sentenceCount = sentenceCount;
+	}
+
+	public int getVocabularySize() {
+		return vocabulary.length;
+	}
+
+	public int getSentenceCount() {
+		return sentenceCount;
+	}
+
+	public int getTokenCount() {
+		return tokens.length;
+	}
+
+	/**
+	 * Train every configuration.
+	 * @param configurations
+	 * @param threads	Configurations trained at once.
+	 * @param budget	Bytes the vectors of running configurations may take, a single larger one still runs alone.
+	 * @param output	Directory to save each model in, may be null.
+	 * @return			Results in the order of the configurations.
+	 */
+	public Result[] run(final OptionsModule[] configurations, int threads, long budget, final File output) {
+		final Result[] results = new Result[configurations.length];
+		final AtomicInteger next = new AtomicInteger(0);
+		final Budget memory = new Budget(budget);
+		resetPeaks();
+
+		Thread[] workers = new Thread[Math.max(1, Math.min(threads, configurations.length))];
+		for(int i=0;i<workers.length;i++) {
+			workers[i] = new Thread("BEAGLE sweep " + i) {
+				public void run() {
+					int c;
+					while((c = next.getAndIncrement()) < configurations.length) {
+						long estimate = estimate(configurations[c]);
+						try {
+							memory.acquire(estimate);
+						} catch (InterruptedException e) {
+							return;
+						}
+						try {
+							results[c] = train(configurations[c], output == null ? null : new File(output, "sweep-" + c + ".bglm"));
+						} catch(RuntimeException e) {
+							e.printStackTrace();
+						} finally {
+							memory.release(estimate);
+						}
+					}
+				}
+			};
+			workers[i].start();
+		}
+
+		try {
+			for(Thread worker : workers) {
+				worker.join();
+			}
+		} catch (InterruptedException e) {
+			for(Thread worker : workers) {
+				worker.interrupt();
+			}
+			Thread.currentThread().interrupt();
+		}
+		return results;
+	}
+
+	/**
+	 * Train one configuration from the shared words.
+	 * @param configuration
+	 * @param save	Where to save the model, may be null.
+	 * @return
+	 */
+	public Result train(OptionsModule configuration, File save) {
+		OptionsModule options = copy(configuration);
+		options.threads = 1;
+		BEAGLE beagle = new BEAGLE(options);
+		if(options.stopList) {
+			beagle.useStopList((options.stopListPath == null) ? new HashSet<String>() : Thought.loadStoplist(options.stopListPath));
+		}
+
+		// Ids of the configuration's own store for each word number, -2 until first seen.
+		int[] ids = new int[vocabulary.length];
+		Arrays.fill(ids, -2);
+
+		LearningProgress progress = new LearningProgress();
+		int[] sentence = new int[64];
+		for(int s=0;s<sentenceCount;s++) {
+			int length = 0;
+			for(int t=sentences[s];t<sentences[s + 1];t++) {
+				int number = tokens[t];
+				if(ids[number] == -2) {
+					ids[number] = beagle.store.getId(vocabulary[number]);
+					if(ids[number] < 0 && options.autoAddWords) {
+						ids[number] = beagle.store.addWord(vocabulary[number]);
+					}
+				}
+				if(ids[number] >= 0) {
+					if(length == sentence.length) {
+						sentence = Arrays.copyOf(sentence, length * 2);
+					}
+					sentence[length++] = ids[number];
+				}
+			}
+			beagle.learnIds(Arrays.copyOf(sentence, length));
+			progress.addSentence(length);
+		}
+		progress.addBytes(bytes);
+		progress.finish();
+
+		if(save != null) {
+			beagle.saveVectors(save);
+		}
+		return new Result(configuration, progress, vectorBytes(beagle.store), save);
+	}
+
+	/**
+	 * Bytes the vectors of a configuration are expected to take once the whole corpus is learned.
+	 * @param options
+	 * @return
+	 */
+	public long estimate(OptionsModule options) {
+		long rows = vocabulary.length + 1;
+		int sets = options.generateEnvironmental ? 1 : 2;
+
+		// The last slab may be up to twice what it holds.
+		return rows * options.dimensions * 4L * sets * 2 + rows * 64;
+	}
+
+	/**
+	 * Estimated bytes held by the vectors and word table of a store, from the slab capacities and a
+	 * fixed cost for each word. Learning scratch, indexes and the rest of the heap are not counted.
+	 * @param store
+	 * @return
+	 */
+	private static long vectorBytes(VectorStore store) {
+		long vectors = (long)store.lexical.capacity() * store.getDimensions() * 4;
+		if(store.environmental != null) {
+			vectors += (long)store.environmental.capacity() * store.getDimensions() * 4;
+		}
+		return vectors + store.size() * 64L;
+	}
+
+	/**
+	 * Largest heap the JVM has used since the sweep started, by every configuration that ran together.
+	 * It is not a figure for any one configuration.
+	 * @return
+	 */
+	public static long peakHeap() {
+		long peak = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	private static void resetPeaks() {
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * Copy every public option field.
+	 * @param options
+	 * @return
+	 */
+	private static OptionsModule copy(OptionsModule options) {
+		OptionsModule copy = new OptionsModule(options.dimensions);
+		try {
+			for(Field f : OptionsModule.class.getFields()) {
+				if(!Modifier.isStatic(f.getModifiers()) && !Modifier.isFinal(f.getModifiers())) {
+					f.set(copy, f.get(options));
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+		return copy;
+	}
+
+	/**
+	 * Build every configuration a description asks for.
+	 * Words are added and environmental vectors generated from a seed shared by all configurations
+	 * unless the description says otherwise, so runs can be repeated and compared.
+	 * @param description	Such as "dimensions=256|512,windowSize=3".
+	 * @param seed
+	 * @return
+	 */
+	public static OptionsModule[] parse(String description, long seed) {
+		OptionsModule base = new OptionsModule(500);
+		base.autoAddWords = true;
+		base.generateEnvironmental = true;
+		base.seed = seed;
+
+		LinkedList<OptionsModule> configurations = new LinkedList<OptionsModule>();
+		configurations.add(base);
+		for(String setting : description.split(",")) {
+			String[] pair = setting.split("=", 2);
+			if(pair.length != 2) {
+				throw new IllegalArgumentException("Expected name=value in " + setting);
+			}
+			LinkedList<OptionsModule> expanded = new LinkedList<OptionsModule>();
+			for(OptionsModule options : configurations) {
+				for(String value : pair[1].split("\\|")) {
+					OptionsModule o = copy(options);
+					set(o, pair[0].trim(), value.trim());
+					expanded.add(o);
+				}
+			}
+			configurations = expanded;
+		}
+		return configurations.toArray(new OptionsModule[configurations.size()]);
+	}
+
+	private static void set(OptionsModule options, String name, String value) {
+		try {
+			Field f = OptionsModule.class.getField(name);
+			Class<?> type = f.getType();
+			if(name.equals("combineOperator")) {
+				f.setInt(options, value.equalsIgnoreCase("convolution") ? OptionsModule.CONVOLUTION :
+					value.equalsIgnoreCase("rpm") ? OptionsModule.RPM : Integer.parseInt(value));
+			} else if(type == int.class) {
+				f.setInt(options, Integer.parseInt(value));
+			} else if(type == long.class) {
+				f.setLong(options, Long.parseLong(value));
+			} else if(type == double.class) {
+				f.setDouble(options, Double.parseDouble(value));
+			} else if(type == boolean.class) {
+				f.setBoolean(options, Boolean.parseBoolean(value));
+			} else if(type == File.class) {
+				f.set(options, new File(value));
+			} else {
+				throw new IllegalArgumentException("Option " + name + " can not be set.");
+			}
+		} catch (NoSuchFieldException e) {
+			throw new IllegalArgumentException("No option " + name + ".");
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("Option " + name + " can not be set.");
+		}
+	}
+
+	/**
+	 * Short description of the options a sweep usually varies.
+	 * @param options
+	 * @return
+	 */
+	public static String describe(OptionsModule options) {
+		return "dimensions=" + options.dimensions +
+				",windowSize=" + options.windowSize +
+				",combineOperator=" + (options.combineOperator == OptionsModule.CONVOLUTION ? "convolution" : "rpm") +
+				",envWeight=" + options.envWeight +
+				",stopList=" + options.stopList +
+				",learnContext=" + options.learnContext +
+				",learnOrder=" + options.learnOrder;
+	}
+
+	/**
+	 * What training one configuration took.
+	 */
+	public static class Result {
+		public final OptionsModule options;
+		public final long sentences;
+		public final long tokens;
+		public final double seconds;
+		// Estimated, see vectorBytes.
+		public final long vectorBytes;
+		public final File model;
+
+		Result(OptionsModule options, LearningProgress progress, long vectorBytes, File model) {
+			this.options = options;
+			this.sentences = progress.getSentences();
+			this.tokens = progress.getTokens();
+			this.seconds = progress.getSeconds();
+			this.vectorBytes = vectorBytes;
+			this.model = model;
+		}
+
+		public double getSentencesPerSecond() {
+			return sentences / seconds;
+		}
+
+		public double getTokensPerSecond() {
+			return tokens / seconds;
+		}
+
+		public String toString() {
+			return String.format("%s  %.1fs  %,.0f sentences/s  %,.0f tokens/s  ~%.1f MB estimated vectors", describe(options),
+					seconds, getSentencesPerSecond(), getTokensPerSecond(), vectorBytes / 1e6);
+		}
+	}
+
+	/**
+	 * Bytes of memory handed out to running configurations.
+	 */
+	private static class Budget {
+		private final long limit;
+		private long used = 0;
+
+		Budget(long limit) {
+			this.limit = limit;
+		}
+
+		synchronized void acquire(long bytes) throws InterruptedException {
+			while(used > 0 && used + bytes > limit) {
+				wait();
+			}
+			used += bytes;
+		}
+
+		synchronized void release(long bytes) {
+			used -= bytes;
+			notifyAll();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if(args.length < 5) {
+			System.err.println("Usage: BEAGLESweep <corpus> <threads> <budget MB> <output directory|-> <configuration> ...");
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		BEAGLESweep sweep = new BEAGLESweep(new File(args[0]));
+		System.out.println(String.format("Read %,d sentences, %,d words, %,d distinct in %.1fs",
+				sweep.getSentenceCount(), sweep.getTokenCount(), sweep.getVocabularySize(), (System.currentTimeMillis() - start) / 1000.0));
+
+		long seed = new Random().nextLong();
+		LinkedList<OptionsModule> configurations = new LinkedList<OptionsModule>();
+		for(int i=4;i<args.length;i++) {
+			configurations.addAll(Arrays.asList(parse(args[i], seed)));
+		}
+
+		File output = args[3].equals("-") ? null : new File(args[3]);
+		if(output != null) {
+			output.mkdirs();
+		}
+
+		start = System.currentTimeMillis();
+		Result[] results = sweep.run(configurations.toArray(new OptionsModule[configurations.size()]),
+				Integer.parseInt(args[1]), Long.parseLong(args[2]) << 20, output);
+		for(int i=0;i<results.length;i++) {
+			System.out.println(i + "  " + ((results[i] == null) ? "failed" : results[i].toString()));
+		}
+		System.out.println(String.format("%d configurations in %.1fs, peak heap of the whole sweep %.1f MB",
+				results.length, (System.currentTimeMillis() - start) / 1000.0, peakHeap() / 1e6));
+	}
+}
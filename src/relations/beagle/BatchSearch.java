@@ -0,0 +1,367 @@
+package relations.beagle;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exact cosine top N for many query vectors at once.
+ * Every vector is normalized once up front, so the similarities are a single matrix product of the
+ * queries against the store. The product is computed in cache sized blocks of words, four queries at a
+ * time, on several threads that each own a chunk of the queries and a bounded heap for every query.
+ * The lengths of the word vectors are kept between searches until words are added, removed or learned further.
+ */
+
+public class BatchSearch {
+
+	// Queries handed to a thread at a time.
+	private static final int QUERY_CHUNK = 64;
+
+	// Floats of word vectors loaded into a block.
+	private static final int BLOCK_FLOATS = 1 << 13;
+
+	private final VectorStore store;
+	private final boolean lexical;
+	private final int threads;
+
+	// Inverse lengths of the word vectors, and the store size, removals and lexical changes they were found at.
+	private float[] inverseNorms;
+	private int normsSize = -1;
+	private int normsRemovals;
+	private int normsChanges;
+
+	/**
+	 * @param store
+	 * @param lexical	Compare to lexical vectors, otherwise environmental.
+	 * @param threads
+	 */
+	public BatchSearch(VectorStore store, boolean lexical, int threads) {
+		this.store = store;
+		this.lexical = lexical;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Find the top k words for every query.
+	 * Ties go to the lower word id, the same as a linear scan into a KBox.
+	 * @param queries	Query vectors, null entries are skipped.
+	 * @param k
+	 * @param skip		Word ids to leave out, may be null.
+	 * @return			The matches of each query, null for null queries.
+	 */
+	public Matches[] search(final double[][] queries, final int k, final boolean[] skip) {
+		final int dimensions = store.getDimensions();
+		final int words = store.size();
+		final Matches[] matches = new Matches[queries.length];
+
+		final float[] norms;
+		synchronized(this) {
+			if(normsSize != words || normsRemovals != store.removals() || (lexical && normsChanges != store.lexicalChanges())) {
+				refreshNorms();
+			}
+			norms = inverseNorms;
+		}
+
+		final AtomicInteger next = new AtomicInteger(0);
+		Thread[] workers = new Thread[Math.min(threads, (queries.length + QUERY_CHUNK - 1) / QUERY_CHUNK)];
+		for(int i=0;i<workers.length;i++) {
+			workers[i] = new Thread("BEAGLE batch search " + i) {
+				public void run() {
+					Worker worker = new Worker(dimensions, k, norms);
+					int start;
+					while((start = next.getAndAdd(QUERY_CHUNK)) < queries.length) {
+						worker.search(queries, start, Math.min(start + QUERY_CHUNK, queries.length), words, skip, matches);
+					}
+				}
+			};
+			workers[i].start();
+		}
+
+		try {
+			for(Thread worker : workers) {
+				worker.join();
+			}
+		} catch (InterruptedException e) {
+			for(Thread worker : workers) {
+				worker.interrupt();
+			}
+			Thread.currentThread().interrupt();
+		}
+
+		return matches;
+	}
+
+	/**
+	 * Find the lengths of the word vectors again, after they were learned further.
+	 */
+	public synchronized void refreshNorms() {
+		int words = store.size();
+		int changes = store.lexicalChanges();
+		float[] norms = new float[words];
+		double[] row = new double[store.getDimensions()];
+		for(int id=0;id<words;id++) {
+			double norm = VectorTools.dist(getVector(id, row));
+			norms[id] = (norm == 0) ? 0 : (float)(1 / norm);
+		}
+		inverseNorms = norms;
+		normsSize = words;
+		normsRemovals = store.removals();
+		normsChanges = changes;
+	}
+
+	private double[] getVector(int id, double[] out) {
+		return lexical ? store.lexical.get(id, out) : store.getEnvironmental(id, out);
+	}
+
+	/**
+	 * Buffers and heaps of a single search thread.
+	 */
+	private class Worker {
+
+		private final int dimensions;
+		private final int k;
+
+		// Inverse lengths of the word vectors.
+		private final float[] norms;
+
+		// Normalized queries of the chunk, one after another.
+		private final float[] chunk;
+		private final boolean[] empty = new boolean[QUERY_CHUNK];
+
+		// Normalized word vectors of the block, one after another.
+		private final int blockRows;
+		private final float[] block;
+		private final double[] row;
+
+		// Bounded min heaps of each query in the chunk.
+		private final int[][] heapIds;
+		private final float[][] heapScores;
+		private final int[] heapSizes = new int[QUERY_CHUNK];
+
+		Worker(int dimensions, int k, float[] norms) {
+			this.dimensions = dimensions;
+			this.k = k;
+			this.norms = norms;
+			chunk = new float[QUERY_CHUNK * dimensions];
+			blockRows = Math.max(4, BLOCK_FLOATS / dimensions);
+			block = new float[blockRows * dimensions];
+			row = new double[dimensions];
+			heapIds = new int[QUERY_CHUNK][k];
+			heapScores = new float[QUERY_CHUNK][k];
+		}
+
+		void search(double[][] queries, int start, int end, int words, boolean[] skip, Matches[] matches) {
+			int count = end - start;
+
+			// Normalize the queries of the chunk.
+			for(int q=0;q<count;q++) {
+				double[] query = queries[start + q];
+				heapSizes[q] = 0;
+				empty[q] = true;
+				if(query == null) {
+					continue;
+				}
+				double norm = VectorTools.dist(query);
+				empty[q] = (norm == 0);
+				float scale = (norm == 0) ? 0 : (float)(1 / norm);
+				for(int i=0;i<dimensions;i++) {
+					chunk[q * dimensions + i] = (float)query[i] * scale;
+				}
+			}
+
+			for(int first=0;first<words;first+=blockRows) {
+				int rows = Math.min(blockRows, words - first);
+				loadBlock(first, rows);
+
+				// Four queries share each pass over a word vector.
+				int q = 0;
+				for(;q+4<=count;q+=4) {
+					multiply4(q, first, rows, skip);
+				}
+				for(;q<count;q++) {
+					multiply1(q, first, rows, skip);
+				}
+			}
+
+			for(int q=0;q<count;q++) {
+				if(queries[start + q] != null) {
+					matches[start + q] = drain(q);
+				}
+			}
+		}
+
+		private void loadBlock(int first, int rows) {
+			for(int r=0;r<rows;r++) {
+				int id = first + r;
+				getVector(id, row);
+				float scale = norms[id];
+				int base = r * dimensions;
+				for(int i=0;i<dimensions;i++) {
+					block[base + i] = (float)row[i] * scale;
+				}
+			}
+		}
+
+		private void multiply4(int q, int first, int rows, boolean[] skip) {
+			int a = q * dimensions;
+			int b = a + dimensions;
+			int c = b + dimensions;
+			int d = c + dimensions;
+			for(int r=0;r<rows;r++) {
+				int id = first + r;
+				if(skip != null && skip[id]) {
+					continue;
+				}
+				int base = r * dimensions;
+				float sa = 0, sb = 0, sc = 0, sd = 0;
+				for(int i=0;i<dimensions;i++) {
+					float v = block[base + i];
+					sa += chunk[a + i] * v;
+					sb += chunk[b + i] * v;
+					sc += chunk[c + i] * v;
+					sd += chunk[d + i] * v;
+				}
+				offer(q, id, sa);
+				offer(q + 1, id, sb);
+				offer(q + 2, id, sc);
+				offer(q + 3, id, sd);
+			}
+		}
+
+		private void multiply1(int q, int first, int rows, boolean[] skip) {
+			int a = q * dimensions;
+			for(int r=0;r<rows;r++) {
+				int id = first + r;
+				if(skip != null && skip[id]) {
+					continue;
+				}
+				int base = r * dimensions;
+				float s0 = 0, s1 = 0;
+				int i = 0;
+				for(;i+2<=dimensions;i+=2) {
+					s0 += chunk[a + i] * block[base + i];
+					s1 += chunk[a + i + 1] * block[base + i + 1];
+				}
+				for(;i<dimensions;i++) {
+					s0 += chunk[a + i] * block[base + i];
+				}
+				offer(q, id, s0 + s1);
+			}
+		}
+
+		/**
+		 * Offer a word to a query's heap, words are offered in id order so only strictly better replace.
+		 * @param q
+		 * @param id
+		 * @param score
+		 */
+		private void offer(int q, int id, float score) {
+			if(empty[q] || norms[id] == 0) {
+				// Matches the cosine of an empty vector.
+				score = -1;
+			}
+
+			int[] ids = heapIds[q];
+			float[] scores = heapScores[q];
+			int size = heapSizes[q];
+
+			if(size < k) {
+				// Sift up.
+				int at = size;
+				while(at > 0) {
+					int parent = (at - 1) / 2;
+					if(!worse(score, id, scores[parent], ids[parent])) {
+						break;
+					}
+					scores[at] = scores[parent];
+					ids[at] = ids[parent];
+					at = parent;
+				}
+				scores[at] = score;
+				ids[at] = id;
+				heapSizes[q] = size + 1;
+			} else if(k > 0 && score > scores[0]) {
+				// Replace the worst and sift down.
+				int at = 0;
+				while(true) {
+					int child = at * 2 + 1;
+					if(child >= size) {
+						break;
+					}
+					if(child + 1 < size && worse(scores[child + 1], ids[child + 1], scores[child], ids[child])) {
+						child++;
+					}
+					if(!worse(scores[child], ids[child], score, id)) {
+						break;
+					}
+					scores[at] = scores[child];
+					ids[at] = ids[child];
+					at = child;
+				}
+				scores[at] = score;
+				ids[at] = id;
+			}
+		}
+
+		/**
+		 * Empty a query's heap into matches, best first.
+		 * @param q
+		 * @return
+		 */
+		private Matches drain(int q) {
+			int size = heapSizes[q];
+			Matches m = new Matches(size);
+			int[] ids = heapIds[q];
+			float[] scores = heapScores[q];
+
+			// Pull the worst off the heap into the back of the matches.
+			for(int at=size-1;at>=0;at--) {
+				m.ids[at] = ids[0];
+				m.similarities[at] = scores[0];
+				int lastId = ids[at];
+				float lastScore = scores[at];
+				ids[0] = lastId;
+				scores[0] = lastScore;
+
+				int parent = 0;
+				while(true) {
+					int child = parent * 2 + 1;
+					if(child >= at) {
+						break;
+					}
+					if(child + 1 < at && worse(scores[child + 1], ids[child + 1], scores[child], ids[child])) {
+						child++;
+					}
+					if(!worse(scores[child], ids[child], lastScore, lastId)) {
+						break;
+					}
+					scores[parent] = scores[child];
+					ids[parent] = ids[child];
+					parent = child;
+				}
+				scores[parent] = lastScore;
+				ids[parent] = lastId;
+			}
+			return m;
+		}
+	}
+
+	/**
+	 * True if the first match ranks below the second.
+	 * @return
+	 */
+	private static boolean worse(float scoreA, int idA, float scoreB, int idB) {
+		return scoreA < scoreB || (scoreA == scoreB && idA > idB);
+	}
+
+	/**
+	 * Top matches of one query, best first.
+	 */
+	public static class Matches {
+		public final int[] ids;
+		public final double[] similarities;
+
+		public Matches(int size) {
+			ids = new int[size];
+			similarities = new double[size];
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package relations.beagle;
+
+import java.util.Arrays;
+
+/**
+ * Analogy and composition queries over the lexical vectors of a store.
+ * A query is a weighted sum of normalized word vectors, such as b - a + c for the analogy a is to b as c is to what.
+ * All queries of a batch are answered in one blocked scan of the store, with the word vector lengths
+ * found once and kept, and each query's own words left out of its results.
+ */
+
+public class CompositeSearch {
+
+	private final VectorStore store;
+	private final BatchSearch search;
+
+	// Words, removals and lexical changes when the search was built.
+	private final int size;
+	private final int removals;
+	private final int changes;
+
+	/**
+	 * @param store
+	 * @param threads
+	 */
+	public CompositeSearch(VectorStore store, int threads) {
+		this.store = store;
+		search = new BatchSearch(store, true, threads);
+		size = store.size();
+		removals = store.removals();
+		changes = store.lexicalChanges();
+	}
+
+	public VectorStore getStore() {
+		return store;
+	}
+
+	/**
+	 * True if words were added, removed or learned further after the search was built.
+	 * @return
+	 */
+	public boolean isStale() {
+		return store.size() != size || store.removals() != removals || store.lexicalChanges() != changes;
+	}
+
+	/**
+	 * Find the lengths of the word vectors again, after they were learned further.
+	 */
+	public void refresh() {
+		search.refreshNorms();
+	}
+
+	/**
+	 * Find the top words of many queries.
+	 * @param queries
+	 * @param k
+	 * @param skip		Word ids to leave out of every result, may be null.
+	 * @return			Matches of each query, null where a query word is unknown.
+	 */
+	public BatchSearch.Matches[] search(Query[] queries, int k, boolean[] skip) {
+		double[][] vectors = new double[queries.length][];
+		int[][] excluded = new int[queries.length][];
+		int extra = 0;
+		double[] row = new double[store.getDimensions()];
+		for(int q=0;q<queries.length;q++) {
+			vectors[q] = compose(queries[q], row);
+			if(vectors[q] != null) {
+				excluded[q] = ids(queries[q].exclude);
+				extra = Math.max(extra, excluded[q].length);
+			}
+		}
+
+		// Look deep enough that every query still has k once its exclusions are removed.
+		BatchSearch.Matches[] found = search.search(vectors, k + extra, skip);
+
+		BatchSearch.Matches[] matches = new BatchSearch.Matches[queries.length];
+		for(int q=0;q<queries.length;q++) {
+			if(found[q] != null) {
+				matches[q] = exclude(found[q], excluded[q], k);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * The weighted sum of the normalized vectors of a query's words.
+	 * @param query
+	 * @param row		Space for a word vector.
+	 * @return			Null if a word is unknown.
+	 */
+	private double[] compose(Query query, double[] row) {
+		double[] sum = new double[store.getDimensions()];
+		for(int i=0;i<query.words.length;i++) {
+			int id = store.getId(query.words[i]);
+			if(id < 0) {
+				return null;
+			}
+			double norm = store.lexical.norm(id);
+			if(norm > 0) {
+				VectorTools.setAddMult(store.lexical.get(id, row), query.weights[i] / norm, sum);
+			}
+		}
+		return sum;
+	}
+
+	private int[] ids(String[] words) {
+		if(words == null) {
+			return new int[0];
+		}
+		int[] ids = new int[words.length];
+		int found = 0;
+		for(String word : words) {
+			int id = store.getId(word);
+			if(id >= 0) {
+				ids[found++] = id;
+			}
+		}
+		return (found == ids.length) ? ids : Arrays.copyOf(ids, found);
+	}
+
+	/**
+	 * Drop excluded words from matches and keep the best k.
+	 */
+	private static BatchSearch.Matches exclude(BatchSearch.Matches found, int[] excluded, int k) {
+		int[] ids = new int[found.ids.length];
+		double[] similarities = new double[found.ids.length];
+		int kept = 0;
+		for(int i=0;i<found.ids.length && kept<k;i++) {
+			boolean skip = false;
+			for(int id : excluded) {
+				skip |= (id == found.ids[i]);
+			}
+			if(!skip) {
+				ids[kept] = found.ids[i];
+				similarities[kept] = found.similarities[i];
+				kept++;
+			}
+		}
+
+		BatchSearch.Matches matches = new BatchSearch.Matches(kept);
+		System.arraycopy(ids, 0, matches.ids, 0, kept);
+		System.arraycopy(similarities, 0, matches.similarities, 0, kept);
+		return matches;
+	}
+
+	/**
+	 * A weighted sum of words, with words to leave out of its results.
+	 */
+	public static class Query {
+		public final String[] words;
+		public final double[] weights;
+		public final String[] exclude;
+
+		/**
+		 * @param words
+		 * @param weights	One per word.
+		 * @param exclude	Words never returned, may be null.
+		 */
+		public Query(String[] words, double[] weights, String[] exclude) {
+			if(words.length != weights.length) {
+				throw new IllegalArgumentException("Every word needs a weight.");
+			}
+			this.words = words;
+			this.weights = weights;
+			this.exclude = exclude;
+		}
+
+		/**
+		 * The words summed with equal weight, left out of the results.
+		 * @param words
+		 * @return
+		 */
+		public static Query composition(String[] words) {
+			double[] weights = new double[words.length];
+			Arrays.fill(weights, 1);
+			return new Query(words, weights, words);
+		}
+
+		/**
+		 * a is to b as c is to what, found as b - a + c.
+		 * @param a
+		 * @param b
+		 * @param c
+		 * @return
+		 */
+		public static Query analogy(String a, String b, String c) {
+			return new Query(new String[] {b, a, c}, new double[] {1, -1, 1}, new String[] {a, b, c});
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package relations.beagle;
+
+/**
+ * Decides which BEAGLE contexts each paragraph of a corpus is learned in,
+ * so a single pass over the corpus can learn every context.
+ * When learning on several threads it is called from all of them at once.
+ */
+
+public interface ContextRouter {
+
+	/**
+	 * Contexts a paragraph is learned in, contexts that do not exist yet are created.
+	 * @param paragraph
+	 * @return	Context names, "Global" for the global context. Null or empty to skip the paragraph.
+	 */
+	public abstract String[] route(String paragraph);
+
+	/**
+	 * The text of a paragraph to learn, without any routing markup.
+	 * @param paragraph
+	 * @return
+	 */
+	public abstract String text(String paragraph);
+}
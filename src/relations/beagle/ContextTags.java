@@ -0,0 +1,52 @@
+package relations.beagle;
+
+/**
+ * Routes paragraphs by a tag at the start of the line naming their contexts,
+ * such as "[science history] The first printing press ...".
+ * Untagged paragraphs go to the default contexts.
+ */
+
+public class ContextTags implements ContextRouter {
+
+	private final String[] untagged;
+
+	/**
+	 * @param untagged	Contexts of paragraphs without a tag, null to skip them.
+	 */
+	public ContextTags(String[] untagged) {
+		this.untagged = untagged;
+	}
+
+	/**
+	 * Untagged paragraphs are learned in the global context.
+	 */
+	public ContextTags() {
+		this(new String[] {"Global"});
+	}
+
+	public String[] route(String paragraph) {
+		int end = tagEnd(paragraph);
+		if(end < 0) {
+			return untagged;
+		}
+		String tag = paragraph.substring(1, end).trim();
+		return (tag.length() == 0) ? null : tag.split("[ ,]+");
+	}
+
+	public String text(String paragraph) {
+		int end = tagEnd(paragraph);
+		return (end < 0) ? paragraph : paragraph.substring(end + 1);
+	}
+
+	/**
+	 * Where the tag closes.
+	 * @param paragraph
+	 * @return	-1 if the paragraph is not tagged.
+	 */
+	private static int tagEnd(String paragraph) {
+		if(!paragraph.startsWith("[")) {
+			return -1;
+		}
+		return paragraph.indexOf(']');
+	}
+}
@@ -0,0 +1,229 @@
+package relations.beagle;
+
+import java.io.*;
+
+/**
+ * Periodic checkpoints of a BEAGLE model while it learns a corpus.
+ *
+ * A checkpoint directory holds a full binary model, numbered delta files with the words changed since
+ * the checkpoint before, and a state file with the corpus offset, the options, the random number
+ * generator, the contexts and which model and deltas belong to the checkpoint. The state file is
+ * replaced last, so a crash while writing leaves the previous checkpoint usable.
+ *
+ * Every full model is a new generation, written under its own name beside the one in use.
+ * A full model is written again whenever words were removed, and once the deltas grow as large as the
+ * model or too many to replay quickly. Files of older generations are deleted only once the state file
+ * naming the new one is in place.
+ */
+
+public class CorpusCheckpoint {
+
+	private static final String BASE = "model-";
+	private static final String BASE_SUFFIX = ".bglm";
+	private static final String STATE = "state";
+	private static final String DELTA = "delta-";
+
+	// Deltas written before the model is written in full again.
+	private static final int MAX_DELTAS = 16;
+
+	private final File directory;
+
+	// Time between checkpoints.
+	private final long interval;
+	private long last;
+
+	// Whether the full model in the directory belongs to this run, its generation and the deltas written since.
+	private boolean based = false;
+	private int generation = -1;
+	private int deltas = 0;
+
+	// Bytes of the full model and of the deltas written since.
+	private long baseBytes;
+	private long deltaBytes;
+
+	/**
+	 * @param directory	Where the checkpoint is kept, created if needed.
+	 * @param seconds	Time between checkpoints.
+	 */
+	public CorpusCheckpoint(File directory, int seconds) {
+		this.directory = directory;
+		this.interval = seconds * 1000L;
+		last = System.currentTimeMillis();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * True once the interval has passed since the last checkpoint.
+	 * @return
+	 */
+	public boolean isDue() {
+		return System.currentTimeMillis() - last >= interval;
+	}
+
+	/**
+	 * True if the directory holds a checkpoint to resume from.
+	 * @param directory
+	 * @return
+	 */
+	public static boolean exists(File directory) {
+		return new File(directory, STATE).isFile();
+	}
+
+	/**
+	 * Write a checkpoint, learning must be paused while this runs.
+	 * @param beagle
+	 * @param offset	Corpus byte offset everything before has been learned.
+	 * @throws IOException
+	 */
+	public void write(BEAGLE beagle, long offset) throws IOException {
+		if(!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory + ".");
+		}
+
+		if(!based || !beagle.store.canWriteChanges() || deltas >= MAX_DELTAS || deltaBytes >= baseBytes) {
+			// A new generation beside the one the state file still names.
+			int next = Math.max(generation, lastGeneration()) + 1;
+			File base = base(next);
+			beagle.writeModel(base);
+			beagle.store.markCheckpoint();
+			based = true;
+			generation = next;
+			deltas = 0;
+			baseBytes = base.length();
+			deltaBytes = 0;
+		} else {
+			File delta = delta(generation, deltas);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(delta), 1 << 16));
+			try {
+				beagle.store.writeChanges(out);
+			} finally {
+				out.close();
+			}
+			deltas++;
+			deltaBytes += delta.length();
+		}
+
+		// Replace the state last, it decides which files are part of the checkpoint.
+		File temp = new File(directory, STATE + ".tmp");
+		ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			out.writeLong(offset);
+			out.writeInt(generation);
+			out.writeInt(deltas);
+			beagle.writeLearningState(out);
+		} finally {
+			out.close();
+		}
+		File state = new File(directory, STATE);
+		if(!temp.renameTo(state) && !(state.delete() && temp.renameTo(state))) {
+			throw new IOException("Could not replace " + state + ".");
+		}
+
+		deleteOtherGenerations();
+		last = System.currentTimeMillis();
+	}
+
+	/**
+	 * Restore a model from the checkpoint.
+	 * @param beagle
+	 * @return	The corpus byte offset to resume learning from.
+	 * @throws IOException
+	 */
+	public long restore(BEAGLE beagle) throws IOException {
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(new File(directory, STATE))));
+		try {
+			long offset = in.readLong();
+			generation = in.readInt();
+			deltas = in.readInt();
+
+			File base = base(generation);
+			beagle.useModel(ModelFile.read(base, false));
+			beagle.store.markCheckpoint();
+			baseBytes = base.length();
+			deltaBytes = 0;
+			for(int i=0;i<deltas;i++) {
+				File file = delta(generation, i);
+				DataInputStream delta = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+				try {
+					beagle.store.readChanges(delta);
+				} finally {
+					delta.close();
+				}
+				deltaBytes += file.length();
+			}
+
+			// Restored after the deltas, adding words draws random vectors.
+			beagle.readLearningState(in);
+			based = true;
+
+			last = System.currentTimeMillis();
+			return offset;
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Checkpoint state could not be read.", e);
+		} finally {
+			in.close();
+		}
+	}
+
+	private File base(int generation) {
+		return new File(directory, BASE + generation + BASE_SUFFIX);
+	}
+
+	private File delta(int generation, int number) {
+		return new File(directory, DELTA + generation + "-" + number);
+	}
+
+	/**
+	 * The generation of a model or delta file.
+	 * @param name
+	 * @return	-1 if the file is not part of a checkpoint.
+	 */
+	private static int generationOf(String name) {
+		String number;
+		if(name.startsWith(BASE) && name.endsWith(BASE_SUFFIX)) {
+			number = name.substring(BASE.length(), name.length() - BASE_SUFFIX.length());
+		} else if(name.startsWith(DELTA) && name.indexOf('-', DELTA.length()) > 0) {
+			number = name.substring(DELTA.length(), name.indexOf('-', DELTA.length()));
+		} else {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(number);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * The newest generation with files in the directory, so a new one never overwrites a model in use.
+	 * @return	-1 if there is none.
+	 */
+	private int lastGeneration() {
+		int last = -1;
+		String[] names = directory.list();
+		if(names != null) {
+			for(String name : names) {
+				last = Math.max(last, generationOf(name));
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Delete the models and deltas the state file no longer names, also those left by a crash.
+	 */
+	private void deleteOtherGenerations() {
+		File[] files = directory.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				int g = generationOf(file.getName());
+				if(g >= 0 && g != generation) {
+					file.delete();
+				}
+			}
+		}
+	}
+}
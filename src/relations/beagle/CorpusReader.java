@@ -0,0 +1,107 @@
+package relations.beagle;
+
+import java.io.*;
+
+/**
+ * Reads a corpus a line at a time while tracking the exact byte offset,
+ * so learning can record where it is and later resume from that point.
+ * Lines end with a new line, an optional carriage return before it is dropped.
+ * Lines are decoded with the platform character set, the same as a FileReader.
+ */
+
+public class CorpusReader {
+
+	private final InputStream in;
+
+	// Bytes consumed by the lines read so far.
+	private long position;
+
+	// Bytes read ahead from the stream.
+	private final byte[] buffer = new byte[1 << 16];
+	private int next = 0;
+	private int limit = 0;
+
+	// The current line being built.
+	private byte[] line = new byte[256];
+
+	public CorpusReader(InputStream in, long position) {
+		this.in = in;
+		this.position = position;
+	}
+
+	/**
+	 * Open a file starting at a byte offset.
+	 * @param file
+	 * @param offset
+	 * @return
+	 * @throws IOException
+	 */
+	public static CorpusReader open(File file, long offset) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		fis.getChannel().position(offset);
+		return new CorpusReader(fis, offset);
+	}
+
+	/**
+	 * Byte offset just after the last line read.
+	 * @return
+	 */
+	public long position() {
+		return position;
+	}
+
+	/**
+	 * Read the next line.
+	 * @return	The line, or null at the end of the corpus.
+	 * @throws IOException
+	 */
+	public String readLine() throws IOException {
+		int length = 0;
+		boolean ended = false;
+		while(!ended) {
+			if(next == limit) {
+				limit = in.read(buffer);
+				next = 0;
+				if(limit <= 0) {
+					limit = 0;
+					if(length == 0) {
+						return null;
+					}
+					break;
+				}
+			}
+
+			// Take bytes up to the end of the line or the buffer.
+			int end = next;
+			while(end < limit && buffer[end] != '\n') {
+				end++;
+			}
+			int count = end - next;
+			if(length + count > line.length) {
+				byte[] grown = new byte[Math.max(line.length * 2, length + count)];
+				System.arraycopy(line, 0, grown, 0, length);
+				line = grown;
+			}
+			System.arraycopy(buffer, next, line, length, count);
+			length += count;
+			position += count;
+			next = end;
+
+			if(end < limit) {
+				// Step over the new line.
+				next++;
+				position++;
+				ended = true;
+			}
+		}
+
+		if(length > 0 && line[length - 1] == '\r') {
+			length--;
+		}
+		return new String(line, 0, length);
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,192 @@
+package relations.beagle;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Derives the random vectors of a BEAGLE model from a seed instead of storing them.
+ * A word's environmental vector is a function of the seed and the word, generated with a counter based
+ * hash so any entry can be produced directly. The same seed always rebuilds the same model.
+ * Every thread keeps a small cache of the vectors it used most recently, so learner threads never wait on each other.
+ */
+
+public class EnvironmentalGenerator implements Serializable {
+
+	private static final long serialVersionUID = 4620372157460245591L;
+
+	private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+	private static final double TO_UNIT = 1.0 / (1L << 53);
+
+	public final long seed;
+	public final int dimensions;
+	public final int cacheSize;
+
+	// Most recently used vectors and a scratch vector, one set for each thread.
+	private transient volatile ThreadLocal<Cache> caches;
+
+	public EnvironmentalGenerator(long seed, int dimensions, int cacheSize) {
+		this.seed = seed;
+		this.dimensions = dimensions;
+		this.cacheSize = cacheSize;
+	}
+
+	/**
+	 * Write the environmental vector of a word.
+	 * @param word
+	 * @param out
+	 * @return out
+	 */
+	public double[] get(String word, double[] out) {
+		if(cacheSize <= 0) {
+			return generate(key(word), out);
+		}
+		System.arraycopy(vector(word), 0, out, 0, dimensions);
+		return out;
+	}
+
+	/**
+	 * The environmental vector of a word.
+	 * @param word
+	 * @return
+	 */
+	public double[] get(String word) {
+		return get(word, new double[dimensions]);
+	}
+
+	/**
+	 * The environmental vector of a word without a copy.
+	 * It belongs to the calling thread and is only valid until its next call, so it must not be changed or kept.
+	 * @param word
+	 * @return
+	 */
+	double[] vector(String word) {
+		Cache cache = getCache();
+		if(cacheSize <= 0) {
+			return generate(key(word), cache.scratch);
+		}
+		double[] vector = cache.get(word);
+		if(vector == null) {
+			vector = generate(key(word), new double[dimensions]);
+			cache.put(word, vector);
+		}
+		return vector;
+	}
+
+	/**
+	 * The cache of the calling thread.
+	 * @return
+	 */
+	private Cache getCache() {
+		ThreadLocal<Cache> caches = this.caches;
+		if(caches == null) {
+			synchronized(this) {
+				if(this.caches == null) {
+					this.caches = new ThreadLocal<Cache>();
+				}
+				caches = this.caches;
+			}
+		}
+		Cache cache = caches.get();
+		if(cache == null) {
+			cache = new Cache();
+			caches.set(cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * The PSI placeholder vector.
+	 * @return
+	 */
+	public double[] getPSI() {
+		return generate(mix(seed ^ 0x5053494C5053494CL), new double[dimensions]);
+	}
+
+	/**
+	 * A permutation of the dimensions.
+	 * @param which	Index of the permutation, E1 is 1 and E2 is 2.
+	 * @return
+	 */
+	public int[] getOrder(int which) {
+		Random rand = new Random(mix(seed + which * GOLDEN));
+		int[] ret = new int[dimensions];
+		for(int i=0;i<dimensions;i++) {
+			ret[i] = i;
+		}
+		for(int i=dimensions-1;i>0;i--) {
+			int j = rand.nextInt(i + 1);
+			int t = ret[i];
+			ret[i] = ret[j];
+			ret[j] = t;
+		}
+		return ret;
+	}
+
+	/**
+	 * Hash a word together with the seed.
+	 * @param word
+	 * @return
+	 */
+	private long key(String word) {
+		long h = 0xCBF29CE484222325L ^ seed;
+		for(int i=0;i<word.length();i++) {
+			h ^= word.charAt(i);
+			h *= 0x100000001B3L;
+		}
+		return mix(h);
+	}
+
+	/**
+	 * Gaussian values from counters over the key, using the Box-Muller transform on pairs.
+	 * @param key
+	 * @param out
+	 * @return
+	 */
+	private double[] generate(long key, double[] out) {
+		for(int i=0;i<dimensions;i+=2) {
+			long a = mix(key + (i + 1) * GOLDEN);
+			long b = mix(key + (i + 2) * GOLDEN);
+			double u1 = ((a >>> 11) + 1) * TO_UNIT;
+			double u2 = (b >>> 11) * TO_UNIT;
+			double r = Math.sqrt(-2 * Math.log(u1));
+			double theta = 2 * Math.PI * u2;
+			out[i] = r * Math.cos(theta);
+			if(i + 1 < dimensions) {
+				out[i + 1] = r * Math.sin(theta);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * SplitMix64 finalizer.
+	 * @param z
+	 * @return
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Most recently used vectors of one thread.
+	 */
+	private class Cache extends LinkedHashMap<String,double[]> {
+
+		private static final long serialVersionUID = -1585416394306848049L;
+
+		// Generated into when nothing is cached.
+		final double[] scratch = new double[dimensions];
+
+		Cache() {
+			super(16, 0.75f, true);
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<String,double[]> eldest) {
+			return size() > cacheSize;
+		}
+	}
+}
@@ -0,0 +1,504 @@
+package relations.beagle;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import tools.VectorKernels;
+
+/**
+ * A matrix of float rows held in large contiguous slabs.
+ * Rows are referenced by index. Growing only ever copies the last, partially filled, slab.
+ * Slabs are either float arrays on the heap or direct buffers off the heap.
+ * Off heap slabs may also be mapped from rows written by write.
+ * A snapshot shares the slabs, which are then copied the first time either side changes them.
+ */
+
+public class FloatSlabs {
+
+	// Number of floats in a full slab.
+	private static final int SLAB_FLOATS = 1 << 22;
+
+	// Smallest number of rows allocated for a slab.
+	private static final int MIN_ROWS = 16;
+
+	public final int dimensions;
+	public final boolean offHeap;
+
+	// Rows held by each full slab.
+	public final int rowsPerSlab;
+
+	// Only one of these is used.
+	private float[][] heap = new float[0][];
+	private FloatBuffer[] direct = new FloatBuffer[0];
+
+	// Rows currently allocated.
+	private int capacity = 0;
+
+	// Slabs also referenced by a snapshot, one flag per slab.
+	private volatile AtomicIntegerArray shared = new AtomicIntegerArray(0);
+
+	public FloatSlabs(int dimensions, boolean offHeap) {
+		this.dimensions = dimensions;
+		this.offHeap = offHeap;
+		rowsPerSlab = Math.max(1, SLAB_FLOATS / dimensions);
+	}
+
+	/**
+	 * Map rows written by write straight from a file.
+	 * The mapping is read only, a slab is copied off the heap the first time it is changed
+	 * so changes are never written back to the file.
+	 * @param channel
+	 * @param position	Where the first row starts in the file.
+	 * @param rows
+	 * @param dimensions
+	 * @return
+	 * @throws IOException
+	 */
+	public static FloatSlabs map(FileChannel channel, long position, int rows, int dimensions) throws IOException {
+		FloatSlabs slabs = new FloatSlabs(dimensions, true);
+		int count = (rows + slabs.rowsPerSlab - 1) / slabs.rowsPerSlab;
+		slabs.direct = new FloatBuffer[count];
+		for(int s=0;s<count;s++) {
+			int slabRows = Math.min(slabs.rowsPerSlab, rows - s * slabs.rowsPerSlab);
+			long start = position + (long)s * slabs.rowsPerSlab * dimensions * 4;
+			slabs.direct[s] = channel.map(FileChannel.MapMode.READ_ONLY, start, (long)slabRows * dimensions * 4).asFloatBuffer();
+		}
+		slabs.capacity = rows;
+		slabs.shared = new AtomicIntegerArray(count);
+		return slabs;
+	}
+
+	/**
+	 * Rows currently allocated.
+	 * @return
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Make sure there is room for at least this many rows.
+	 * New rows are zero.
+	 * @param rows
+	 */
+	public void ensureCapacity(int rows) {
+		if(rows <= capacity) {
+			return;
+		}
+
+		int slabs = (rows + rowsPerSlab - 1) / rowsPerSlab;
+		int oldSlabs = offHeap ? direct.length : heap.length;
+
+		if(offHeap) {
+			FloatBuffer[] grown = new FloatBuffer[slabs];
+			System.arraycopy(direct, 0, grown, 0, oldSlabs);
+			direct = grown;
+		} else {
+			float[][] grown = new float[slabs][];
+			System.arraycopy(heap, 0, grown, 0, oldSlabs);
+			heap = grown;
+		}
+		if(shared.length() < slabs) {
+			AtomicIntegerArray flags = new AtomicIntegerArray(slabs);
+			for(int s=0;s<shared.length();s++) {
+				flags.set(s, shared.get(s));
+			}
+			shared = flags;
+		}
+
+		capacity = 0;
+		for(int s=0;s<slabs;s++) {
+			int have = slabRows(s);
+			int want = rowsPerSlab;
+			if(s == slabs - 1) {
+				// The last slab doubles until it is full.
+				int needed = rows - s * rowsPerSlab;
+				want = Math.min(rowsPerSlab, Math.max(needed, Math.max(have * 2, MIN_ROWS)));
+			}
+			if(have < want) {
+				resizeSlab(s, want);
+				shared.set(s, 0);
+			}
+			capacity += slabRows(s);
+		}
+	}
+
+	private int slabRows(int s) {
+		if(offHeap) {
+			return (direct[s] == null) ? 0 : direct[s].capacity() / dimensions;
+		}
+		return (heap[s] == null) ? 0 : heap[s].length / dimensions;
+	}
+
+	private void resizeSlab(int s, int rows) {
+		if(offHeap) {
+			FloatBuffer grown = ByteBuffer.allocateDirect(rows * dimensions * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+			if(direct[s] != null) {
+				FloatBuffer old = direct[s].duplicate();
+				old.clear();
+				grown.put(old);
+				grown.clear();
+			}
+			direct[s] = grown;
+		} else {
+			float[] grown = new float[rows * dimensions];
+			if(heap[s] != null) {
+				System.arraycopy(heap[s], 0, grown, 0, heap[s].length);
+			}
+			heap[s] = grown;
+		}
+	}
+
+	/**
+	 * An off heap slab that may be changed, copying it first if it is mapped or shared.
+	 * @param s
+	 * @return
+	 */
+	private FloatBuffer writable(int s) {
+		if(shared.get(s) != 0 || direct[s].isReadOnly()) {
+			synchronized(this) {
+				if(shared.get(s) != 0 || direct[s].isReadOnly()) {
+					resizeSlab(s, slabRows(s));
+					shared.set(s, 0);
+				}
+			}
+		}
+		return direct[s];
+	}
+
+	/**
+	 * A heap slab that may be changed, copying it first if it is shared.
+	 * @param s
+	 * @return
+	 */
+	private float[] writableHeap(int s) {
+		if(shared.get(s) != 0) {
+			synchronized(this) {
+				if(shared.get(s) != 0) {
+					resizeSlab(s, slabRows(s));
+					shared.set(s, 0);
+				}
+			}
+		}
+		return heap[s];
+	}
+
+	/**
+	 * A read only view of the first rows that shares the slabs.
+	 * Shared slabs are copied before they are next changed, here or in the snapshot,
+	 * so the snapshot never sees later changes. No rows may be changed while this runs.
+	 * @param rows
+	 * @return
+	 */
+	public synchronized FloatSlabs snapshot(int rows) {
+		FloatSlabs copy = new FloatSlabs(dimensions, offHeap);
+		int count = (rows + rowsPerSlab - 1) / rowsPerSlab;
+		if(offHeap) {
+			copy.direct = new FloatBuffer[count];
+			for(int s=0;s<count;s++) {
+				copy.direct[s] = direct[s].duplicate();
+			}
+		} else {
+			copy.heap = new float[count][];
+			System.arraycopy(heap, 0, copy.heap, 0, count);
+		}
+		for(int s=0;s<count;s++) {
+			copy.capacity += copy.slabRows(s);
+		}
+
+		copy.shared = new AtomicIntegerArray(count);
+		AtomicIntegerArray flags = new AtomicIntegerArray(shared.length());
+		for(int s=0;s<flags.length();s++) {
+			flags.set(s, (s < count) ? 1 : shared.get(s));
+			if(s < count) {
+				copy.shared.set(s, 1);
+			}
+		}
+		shared = flags;
+		return copy;
+	}
+
+	/**
+	 * The heap slab holding a row, null when off heap.
+	 * @param row
+	 * @return
+	 */
+	public float[] slab(int row) {
+		return offHeap ? null : heap[row / rowsPerSlab];
+	}
+
+	/**
+	 * The offset of a row within its slab.
+	 * @param row
+	 * @return
+	 */
+	public int offset(int row) {
+		return (row % rowsPerSlab) * dimensions;
+	}
+
+	/**
+	 * Copy a row out.
+	 * @param row
+	 * @param out
+	 * @return out
+	 */
+	public double[] get(int row, double[] out) {
+		int base = offset(row);
+		if(offHeap) {
+			FloatBuffer b = direct[row / rowsPerSlab];
+			for(int i=0;i<dimensions;i++) {
+				out[i] = b.get(base + i);
+			}
+		} else {
+			float[] a = heap[row / rowsPerSlab];
+			for(int i=0;i<dimensions;i++) {
+				out[i] = a[base + i];
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Copy a row out.
+	 * @param row
+	 * @return
+	 */
+	public double[] get(int row) {
+		return get(row, new double[dimensions]);
+	}
+
+	/**
+	 * Overwrite a row.
+	 * @param row
+	 * @param v
+	 */
+	public void set(int row, double[] v) {
+		int base = offset(row);
+		if(offHeap) {
+			FloatBuffer b = writable(row / rowsPerSlab);
+			for(int i=0;i<dimensions;i++) {
+				b.put(base + i, (float)v[i]);
+			}
+		} else {
+			float[] a = writableHeap(row / rowsPerSlab);
+			for(int i=0;i<dimensions;i++) {
+				a[base + i] = (float)v[i];
+			}
+		}
+	}
+
+	/**
+	 * Add a scaled vector to a row.
+	 * @param row
+	 * @param v
+	 * @param scale
+	 */
+	public void add(int row, double[] v, double scale) {
+		int base = offset(row);
+		if(offHeap) {
+			FloatBuffer b = writable(row / rowsPerSlab);
+			for(int i=0;i<dimensions;i++) {
+				b.put(base + i, (float)(b.get(base + i) + v[i] * scale));
+			}
+		} else {
+			VectorKernels.axpy(scale, v, writableHeap(row / rowsPerSlab), base, dimensions);
+		}
+	}
+
+	/**
+	 * Add a scaled row to a vector.
+	 * @param row
+	 * @param scale
+	 * @param to
+	 */
+	public void addTo(int row, double scale, double[] to) {
+		int base = offset(row);
+		if(offHeap) {
+			FloatBuffer b = direct[row / rowsPerSlab];
+			for(int i=0;i<dimensions;i++) {
+				to[i] += b.get(base + i) * scale;
+			}
+		} else {
+			VectorKernels.axpy(scale, heap[row / rowsPerSlab], base, to, dimensions);
+		}
+	}
+
+	/**
+	 * Multiply a row by a constant.
+	 * @param row
+	 * @param scale
+	 */
+	public void scale(int row, double scale) {
+		int base = offset(row);
+		if(offHeap) {
+			FloatBuffer b = writable(row / rowsPerSlab);
+			for(int i=0;i<dimensions;i++) {
+				b.put(base + i, (float)(b.get(base + i) * scale));
+			}
+		} else {
+			VectorKernels.scale(writableHeap(row / rowsPerSlab), base, scale, dimensions);
+		}
+	}
+
+	/**
+	 * Set a row to zero.
+	 * @param row
+	 */
+	public void clear(int row) {
+		scale(row, 0);
+	}
+
+	/**
+	 * Copy one row over another.
+	 * @param from
+	 * @param to
+	 */
+	public void copy(int from, int to) {
+		int fromBase = offset(from);
+		int toBase = offset(to);
+		if(offHeap) {
+			FloatBuffer a = direct[from / rowsPerSlab];
+			FloatBuffer b = writable(to / rowsPerSlab);
+			for(int i=0;i<dimensions;i++) {
+				b.put(toBase + i, a.get(fromBase + i));
+			}
+		} else {
+			float[] b = writableHeap(to / rowsPerSlab);
+			System.arraycopy(heap[from / rowsPerSlab], fromBase, b, toBase, dimensions);
+		}
+	}
+
+	/**
+	 * Dot product of a row with a vector.
+	 * @param row
+	 * @param v
+	 * @return
+	 */
+	public double dot(int row, double[] v) {
+		int base = offset(row);
+		double sum = 0;
+		if(offHeap) {
+			FloatBuffer b = direct[row / rowsPerSlab];
+			for(int i=0;i<dimensions;i++) {
+				sum += b.get(base + i) * v[i];
+			}
+		} else {
+			sum = VectorKernels.dot(heap[row / rowsPerSlab], base, v, dimensions);
+		}
+		return sum;
+	}
+
+	/**
+	 * Dot product of two rows.
+	 * @param rowA
+	 * @param rowB
+	 * @return
+	 */
+	public double dot(int rowA, int rowB) {
+		int baseA = offset(rowA);
+		int baseB = offset(rowB);
+		double sum = 0;
+		if(offHeap) {
+			FloatBuffer a = direct[rowA / rowsPerSlab];
+			FloatBuffer b = direct[rowB / rowsPerSlab];
+			for(int i=0;i<dimensions;i++) {
+				sum += a.get(baseA + i) * (double)b.get(baseB + i);
+			}
+		} else {
+			sum = VectorKernels.dot(heap[rowA / rowsPerSlab], baseA, heap[rowB / rowsPerSlab], baseB, dimensions);
+		}
+		return sum;
+	}
+
+	/**
+	 * Length of a row.
+	 * @param row
+	 * @return
+	 */
+	public double norm(int row) {
+		return Math.sqrt(dot(row, row));
+	}
+
+	/**
+	 * Cosine between a row and a vector.
+	 * Matches VectorTools.getCosine, returning -1 when either is zero.
+	 * @param row
+	 * @param v
+	 * @param vNorm	Length of v.
+	 * @return
+	 */
+	public double cosine(int row, double[] v, double vNorm) {
+		if(!offHeap) {
+			return VectorKernels.cosine(heap[row / rowsPerSlab], offset(row), v, vNorm, dimensions);
+		}
+		double len = norm(row) * vNorm;
+		if(len == 0) {
+			return -1;
+		}
+		return dot(row, v) / len;
+	}
+
+	/**
+	 * Write the first rows as floats.
+	 * @param out
+	 * @param rows
+	 * @throws IOException
+	 */
+	public void write(DataOutput out, int rows) throws IOException {
+		write(out, 0, rows);
+	}
+
+	/**
+	 * Write a run of rows as floats.
+	 * @param out
+	 * @param first
+	 * @param rows
+	 * @throws IOException
+	 */
+	public void write(DataOutput out, int first, int rows) throws IOException {
+		for(int row=first;row<first+rows;row++) {
+			int base = offset(row);
+			if(offHeap) {
+				FloatBuffer b = direct[row / rowsPerSlab];
+				for(int i=0;i<dimensions;i++) {
+					out.writeFloat(b.get(base + i));
+				}
+			} else {
+				float[] a = heap[row / rowsPerSlab];
+				for(int i=0;i<dimensions;i++) {
+					out.writeFloat(a[base + i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Read rows written by write.
+	 * @param in
+	 * @param rows
+	 * @throws IOException
+	 */
+	public void read(DataInput in, int rows) throws IOException {
+		ensureCapacity(rows);
+		for(int row=0;row<rows;row++) {
+			int base = offset(row);
+			if(offHeap) {
+				FloatBuffer b = writable(row / rowsPerSlab);
+				for(int i=0;i<dimensions;i++) {
+					b.put(base + i, in.readFloat());
+				}
+			} else {
+				float[] a = writableHeap(row / rowsPerSlab);
+				for(int i=0;i<dimensions;i++) {
+					a[base + i] = in.readFloat();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,370 @@
+package relations.beagle;
+
+import java.util.*;
+
+/**
+ * Hierarchical navigable small world graph over one set of vectors in a VectorStore.
+ * Finds approximate cosine nearest neighbours without scanning every word.
+ * Words are inserted in id order as the store grows.
+ * Removing a word from the store renumbers ids, after which the index is stale and must be rebuilt.
+ * A lexical index is also stale once any lexical vector is learned further, so BEAGLE only builds one
+ * over settled lexical vectors, see BEAGLE.finishLearning.
+ */
+
+public class HNSWIndex {
+
+	private final VectorStore store;
+	private final boolean lexical;
+
+	// Links kept for each word on the upper layers, twice this on the bottom layer.
+	private final int neighbours;
+
+	// Size of the candidate list while inserting.
+	private final int construction;
+
+	private final double levelScale;
+	private final Random random;
+
+	// Top layer and links of each word, links[id][layer][0] is the number of links.
+	private int[] levels = new int[16];
+	private int[][][] links = new int[16][][];
+
+	// Length of each word's vector when it was inserted.
+	private double[] norms = new double[16];
+	private int size = 0;
+
+	private int entry = -1;
+	private int top = -1;
+
+	// Store removals and lexical changes seen when the index was built.
+	private final int removals;
+	private final int changes;
+
+	// Marks of words visited by the current search.
+	private int[] visited = new int[16];
+	private int visit = 0;
+
+	// Vectors being compared.
+	private final double[] nodeBuffer;
+	private final double[] candidateBuffer;
+
+	// Orders neighbours nearest first.
+	private static final Comparator<Neighbour> NEAREST = new Comparator<Neighbour>() {
+		public int compare(Neighbour a, Neighbour b) {
+			return Double.compare(a.distance, b.distance);
+		}
+	};
+
+	// Orders neighbours furthest first.
+	private static final Comparator<Neighbour> FURTHEST = new Comparator<Neighbour>() {
+		public int compare(Neighbour a, Neighbour b) {
+			return Double.compare(b.distance, a.distance);
+		}
+	};
+
+	/**
+	 * @param store
+	 * @param lexical		Index lexical vectors, otherwise environmental.
+	 * @param neighbours	Links per word, more gives better recall at a higher build cost.
+	 * @param construction	Candidates considered while inserting.
+	 * @param seed			Seed for the layer of each word.
+	 */
+	public HNSWIndex(VectorStore store, boolean lexical, int neighbours, int construction, long seed) {
+		this.store = store;
+		this.lexical = lexical;
+		this.neighbours = Math.max(2, neighbours);
+		this.construction = Math.max(this.neighbours, construction);
+		levelScale = 1 / Math.log(this.neighbours);
+		random = new Random(seed);
+		removals = store.removals();
+		changes = store.lexicalChanges();
+		nodeBuffer = new double[store.getDimensions()];
+		candidateBuffer = new double[store.getDimensions()];
+	}
+
+	public VectorStore getStore() {
+		return store;
+	}
+
+	public boolean isLexical() {
+		return lexical;
+	}
+
+	/**
+	 * Number of words in the graph.
+	 * @return
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * True once words have been removed from the store since the index was built,
+	 * or for a lexical index once any lexical vector was learned further, as the lengths and links were found from the old vectors.
+	 * @return
+	 */
+	public boolean isStale() {
+		return store.removals() != removals || (lexical && store.lexicalChanges() != changes);
+	}
+
+	/**
+	 * Insert every word added to the store since the last update.
+	 */
+	public synchronized void update() {
+		while(size < store.size()) {
+			insert(size);
+		}
+	}
+
+	/**
+	 * Find the approximate nearest words to a vector.
+	 * @param v
+	 * @param k		Number of words to return.
+	 * @param ef	Size of the candidate list, larger gives better recall.
+	 * @return		Up to k neighbours, nearest first.
+	 */
+	public synchronized Neighbour[] search(double[] v, int k, int ef) {
+		if(entry < 0) {
+			return new Neighbour[0];
+		}
+
+		double vNorm = VectorTools.dist(v);
+		List<Neighbour> nearest = Collections.singletonList(new Neighbour(entry, distance(entry, v, vNorm)));
+		for(int layer=top;layer>0;layer--) {
+			nearest = sorted(searchLayer(v, vNorm, nearest, 1, layer));
+		}
+		nearest = sorted(searchLayer(v, vNorm, nearest, Math.max(ef, k), 0));
+
+		int found = Math.min(k, nearest.size());
+		return nearest.subList(0, found).toArray(new Neighbour[found]);
+	}
+
+	private void insert(int id) {
+		int level = (int)(-Math.log(1 - random.nextDouble()) * levelScale);
+
+		if(id == levels.length) {
+			int capacity = levels.length * 2;
+			levels = Arrays.copyOf(levels, capacity);
+			links = Arrays.copyOf(links, capacity);
+			visited = Arrays.copyOf(visited, capacity);
+			norms = Arrays.copyOf(norms, capacity);
+		}
+		levels[id] = level;
+		links[id] = new int[level + 1][];
+		for(int layer=0;layer<=level;layer++) {
+			links[id][layer] = new int[maxLinks(layer) + 1];
+		}
+		double[] v = vector(id, new double[nodeBuffer.length]);
+		double vNorm = VectorTools.dist(v);
+		norms[id] = vNorm;
+		size = id + 1;
+
+		if(entry < 0) {
+			entry = id;
+			top = level;
+			return;
+		}
+
+		// Descend to the layer of the new word.
+		List<Neighbour> nearest = Collections.singletonList(new Neighbour(entry, distance(entry, v, vNorm)));
+		for(int layer=top;layer>level;layer--) {
+			nearest = sorted(searchLayer(v, vNorm, nearest, 1, layer));
+		}
+
+		// Connect on every layer it shares with the graph.
+		for(int layer=Math.min(level, top);layer>=0;layer--) {
+			nearest = sorted(searchLayer(v, vNorm, nearest, construction, layer));
+			for(Neighbour n : select(nearest, neighbours)) {
+				link(id, n.id, layer);
+				link(n.id, id, layer);
+			}
+		}
+
+		if(level > top) {
+			top = level;
+			entry = id;
+		}
+	}
+
+	/**
+	 * Greedy best first search of a single layer.
+	 * @param v
+	 * @param vNorm
+	 * @param entries	Where to start.
+	 * @param ef		Number of results to keep.
+	 * @param layer
+	 * @return			The results, furthest at the head.
+	 */
+	private PriorityQueue<Neighbour> searchLayer(double[] v, double vNorm, List<Neighbour> entries, int ef, int layer) {
+		if(++visit == 0) {
+			Arrays.fill(visited, 0);
+			visit = 1;
+		}
+
+		PriorityQueue<Neighbour> candidates = new PriorityQueue<Neighbour>(ef + 1, NEAREST);
+		PriorityQueue<Neighbour> results = new PriorityQueue<Neighbour>(ef + 1, FURTHEST);
+		for(Neighbour n : entries) {
+			visited[n.id] = visit;
+			candidates.add(n);
+			results.add(n);
+			if(results.size() > ef) {
+				results.poll();
+			}
+		}
+
+		while(!candidates.isEmpty()) {
+			Neighbour c = candidates.poll();
+			if(results.size() >= ef && c.distance > results.peek().distance) {
+				break;
+			}
+
+			int[] list = links[c.id][layer];
+			for(int i=1;i<=list[0];i++) {
+				int id = list[i];
+				if(visited[id] == visit) {
+					continue;
+				}
+				visited[id] = visit;
+
+				double d = distance(id, v, vNorm);
+				if(results.size() < ef || d < results.peek().distance) {
+					Neighbour n = new Neighbour(id, d);
+					candidates.add(n);
+					results.add(n);
+					if(results.size() > ef) {
+						results.poll();
+					}
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Pick up to m neighbours, preferring ones that are not closer to an already picked neighbour
+	 * than to the word itself so links reach in different directions.
+	 * @param sorted	Candidates nearest first.
+	 * @param m
+	 * @return
+	 */
+	private List<Neighbour> select(List<Neighbour> sorted, int m) {
+		List<Neighbour> kept = new ArrayList<Neighbour>(m);
+		List<Neighbour> pruned = new ArrayList<Neighbour>();
+
+		for(Neighbour c : sorted) {
+			if(kept.size() >= m) {
+				break;
+			}
+
+			double[] cv = vector(c.id, candidateBuffer);
+			double cNorm = norms[c.id];
+			boolean diverse = true;
+			for(Neighbour r : kept) {
+				if(distance(r.id, cv, cNorm) < c.distance) {
+					diverse = false;
+					break;
+				}
+			}
+
+			if(diverse) {
+				kept.add(c);
+			} else {
+				pruned.add(c);
+			}
+		}
+
+		// Fill any room left with the nearest of the pruned.
+		for(int i=0;i<pruned.size() && kept.size() < m;i++) {
+			kept.add(pruned.get(i));
+		}
+		return kept;
+	}
+
+	/**
+	 * Add a directed link, dropping the worst links of the word if it has too many.
+	 * @param from
+	 * @param to
+	 * @param layer
+	 */
+	private void link(int from, int to, int layer) {
+		int[] list = links[from][layer];
+		int count = list[0];
+		for(int i=1;i<=count;i++) {
+			if(list[i] == to) {
+				return;
+			}
+		}
+
+		if(count < list.length - 1) {
+			list[++list[0]] = to;
+			return;
+		}
+
+		double[] v = vector(from, nodeBuffer);
+		double vNorm = norms[from];
+		List<Neighbour> candidates = new ArrayList<Neighbour>(count + 1);
+		for(int i=1;i<=count;i++) {
+			candidates.add(new Neighbour(list[i], distance(list[i], v, vNorm)));
+		}
+		candidates.add(new Neighbour(to, distance(to, v, vNorm)));
+		Collections.sort(candidates, NEAREST);
+
+		List<Neighbour> kept = select(candidates, list.length - 1);
+		list[0] = kept.size();
+		for(int i=0;i<kept.size();i++) {
+			list[i + 1] = kept.get(i).id;
+		}
+	}
+
+	private int maxLinks(int layer) {
+		return (layer == 0) ? neighbours * 2 : neighbours;
+	}
+
+	private double[] vector(int id, double[] out) {
+		return lexical ? store.lexical.get(id, out) : store.getEnvironmental(id, out);
+	}
+
+	/**
+	 * Cosine distance, 0 for the same direction and 2 for opposite or empty vectors.
+	 * Uses the length of the word's vector from when it was inserted.
+	 * @param id
+	 * @param v
+	 * @param vNorm
+	 * @return
+	 */
+	private double distance(int id, double[] v, double vNorm) {
+		double len = norms[id] * vNorm;
+		if(len == 0) {
+			return 2;
+		}
+		double dot = lexical ? store.lexical.dot(id, v) : store.environmentalDot(id, v);
+		return 1 - dot / len;
+	}
+
+	private static List<Neighbour> sorted(PriorityQueue<Neighbour> results) {
+		List<Neighbour> list = new ArrayList<Neighbour>(results);
+		Collections.sort(list, NEAREST);
+		return list;
+	}
+
+	/**
+	 * A word found by a search.
+	 */
+	public static class Neighbour {
+		public final int id;
+		public final double distance;
+
+		public Neighbour(int id, double distance) {
+			this.id = id;
+			this.distance = distance;
+		}
+
+		/**
+		 * Cosine similarity to the query.
+		 * @return
+		 */
+		public double similarity() {
+			return 1 - distance;
+		}
+	}
+}
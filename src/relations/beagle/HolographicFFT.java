@@ -0,0 +1,309 @@
+package relations.beagle;
+
+import java.util.Hashtable;
+
+/**
+ * FFT backed circular convolution and correlation used to bind holographic vectors.
+ * The transform tables for a given dimension are built once and shared by every engine.
+ * The complex buffers belong to the engine so a single engine must not be shared across threads.
+ * Dimensions that are not a power of two are handled with Bluestein's chirp transform.
+ */
+
+public class HolographicFFT {
+
+	// Transform plans shared by all engines, referenced by their length.
+	private static Hashtable<Integer,Plan> plans = new Hashtable<Integer,Plan>();
+
+	// Plan for this engine's dimension.
+	private final Plan plan;
+
+	// Complex buffers of the vector length.
+	private final double[] re;
+	private final double[] im;
+
+	// Complex buffers of the padded length (only used for Bluestein).
+	private final double[] workRe;
+	private final double[] workIm;
+
+	public HolographicFFT(int dimensions) {
+		plan = getPlan(dimensions);
+		re = new double[dimensions];
+		im = new double[dimensions];
+		workRe = new double[plan.padded];
+		workIm = new double[plan.padded];
+	}
+
+	/**
+	 * The vector length this engine binds.
+	 * @return
+	 */
+	public int length() {
+		return plan.n;
+	}
+
+	/**
+	 * Get the shared plan for the given length, building it if needed.
+	 * @param n
+	 * @return
+	 */
+	public static Plan getPlan(int n) {
+		synchronized(plans) {
+			Plan plan = plans.get(n);
+			if(plan == null) {
+				plan = new Plan(n);
+				plans.put(n, plan);
+			}
+			return plan;
+		}
+	}
+
+	/**
+	 * Circular convolution of a and b.
+	 * Equivalent to VectorTools.convolve.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public double[] convolve(double[] a, double[] b) {
+		return convolve(a, null, b, null, new double[plan.n]);
+	}
+
+	/**
+	 * Circular correlation of a and b.
+	 * Equivalent to VectorTools.corelate.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public double[] corelate(double[] a, double[] b) {
+		return corelate(a, null, b, null, new double[plan.n]);
+	}
+
+	/**
+	 * Circular convolution of a and b, each optionally rearranged forward by the given order first.
+	 * This is the same as convolve(rearangeForward(a,aOrder), rearangeForward(b,bOrder)) without the copies.
+	 * @param a
+	 * @param aOrder	Permutation to apply to a, or null.
+	 * @param b
+	 * @param bOrder	Permutation to apply to b, or null.
+	 * @param out		Where to write the result, may be a or b.
+	 * @return out
+	 */
+	public double[] convolve(double[] a, int[] aOrder, double[] b, int[] bOrder, double[] out) {
+		return combine(a, aOrder, b, bOrder, out, false);
+	}
+
+	/**
+	 * Circular correlation of a and b, each optionally rearranged forward by the given order first.
+	 * @param a
+	 * @param aOrder	Permutation to apply to a, or null.
+	 * @param b
+	 * @param bOrder	Permutation to apply to b, or null.
+	 * @param out		Where to write the result, may be a or b.
+	 * @return out
+	 */
+	public double[] corelate(double[] a, int[] aOrder, double[] b, int[] bOrder, double[] out) {
+		return combine(a, aOrder, b, bOrder, out, true);
+	}
+
+	/**
+	 * Both real inputs are packed into one complex transform, multiplied in the frequency domain and transformed back.
+	 * @param a
+	 * @param aOrder
+	 * @param b
+	 * @param bOrder
+	 * @param out
+	 * @param correlate	If true the spectrum of a is conjugated.
+	 * @return
+	 */
+	private double[] combine(double[] a, int[] aOrder, double[] b, int[] bOrder, double[] out, boolean correlate) {
+		int n = plan.n;
+
+		// Pack a into the real part and b into the imaginary part.
+		for(int i=0;i<n;i++) {
+			re[i] = (aOrder == null) ? a[i] : a[aOrder[i]];
+			im[i] = (bOrder == null) ? b[i] : b[bOrder[i]];
+		}
+
+		plan.transform(re, im, workRe, workIm);
+
+		// Separate the two spectra and multiply them.
+		for(int k=0;k<=n/2;k++) {
+			int nk = (n - k) % n;
+			double zr = re[k];
+			double zi = im[k];
+			double wr = re[nk];
+			double wi = im[nk];
+
+			double ar = (zr + wr) * 0.5;
+			double ai = (zi - wi) * 0.5;
+			double br = (zi + wi) * 0.5;
+			double bi = (wr - zr) * 0.5;
+
+			if(correlate) {
+				ai = -ai;
+			}
+
+			double pr = ar * br - ai * bi;
+			double pi = ar * bi + ai * br;
+
+			re[k] = pr;
+			im[k] = pi;
+			re[nk] = pr;
+			im[nk] = -pi;
+		}
+
+		// Inverse transform through conjugation.
+		for(int i=0;i<n;i++) {
+			im[i] = -im[i];
+		}
+		plan.transform(re, im, workRe, workIm);
+
+		double scale = 1.0 / n;
+		for(int i=0;i<n;i++) {
+			out[i] = re[i] * scale;
+		}
+		return out;
+	}
+
+	/**
+	 * Precomputed tables for a forward transform of a single length.
+	 */
+	public static class Plan {
+
+		// Transform length.
+		public final int n;
+
+		// Length of the Bluestein buffers, zero for powers of two.
+		public final int padded;
+
+		// Power of two tables.
+		private double[] cos;
+		private double[] sin;
+		private int[] reverse;
+
+		// Bluestein tables.
+		private Plan inner;
+		private double[] chirpRe;
+		private double[] chirpIm;
+		private double[] kernelRe;
+		private double[] kernelIm;
+
+		private Plan(int n) {
+			this.n = n;
+
+			if(Integer.bitCount(n) == 1) {
+				padded = 0;
+				cos = new double[n/2];
+				sin = new double[n/2];
+				for(int i=0;i<n/2;i++) {
+					cos[i] = Math.cos(2 * Math.PI * i / n);
+					sin[i] = Math.sin(2 * Math.PI * i / n);
+				}
+
+				int bits = Integer.numberOfTrailingZeros(n);
+				reverse = new int[n];
+				for(int i=0;i<n;i++) {
+					reverse[i] = (bits == 0) ? 0 : Integer.reverse(i) >>> (32 - bits);
+				}
+			} else {
+				padded = Integer.highestOneBit(2 * n - 1) << 1;
+				inner = getPlan(padded);
+
+				// Chirp exp(-i pi j^2 / n), the square is taken mod 2n to keep precision.
+				chirpRe = new double[n];
+				chirpIm = new double[n];
+				for(int j=0;j<n;j++) {
+					long sq = ((long)j * j) % (2L * n);
+					double angle = Math.PI * sq / n;
+					chirpRe[j] = Math.cos(angle);
+					chirpIm[j] = -Math.sin(angle);
+				}
+
+				// The transformed conjugate chirp is the convolution kernel.
+				kernelRe = new double[padded];
+				kernelIm = new double[padded];
+				kernelRe[0] = chirpRe[0];
+				kernelIm[0] = -chirpIm[0];
+				for(int j=1;j<n;j++) {
+					kernelRe[j] = kernelRe[padded - j] = chirpRe[j];
+					kernelIm[j] = kernelIm[padded - j] = -chirpIm[j];
+				}
+				inner.transform(kernelRe, kernelIm, null, null);
+			}
+		}
+
+		/**
+		 * In place forward transform.
+		 * @param re
+		 * @param im
+		 * @param workRe	Buffer of length padded.
+		 * @param workIm	Buffer of length padded.
+		 */
+		public void transform(double[] re, double[] im, double[] workRe, double[] workIm) {
+			if(padded == 0) {
+				radix2(re, im);
+			} else {
+				bluestein(re, im, workRe, workIm);
+			}
+		}
+
+		private void radix2(double[] re, double[] im) {
+			for(int i=0;i<n;i++) {
+				int j = reverse[i];
+				if(i < j) {
+					double t = re[i]; re[i] = re[j]; re[j] = t;
+					t = im[i]; im[i] = im[j]; im[j] = t;
+				}
+			}
+
+			for(int size=2;size<=n;size*=2) {
+				int half = size / 2;
+				int step = n / size;
+				for(int i=0;i<n;i+=size) {
+					for(int j=0, k=0;j<half;j++, k+=step) {
+						int l = i + j + half;
+						double tr = re[l] * cos[k] + im[l] * sin[k];
+						double ti = im[l] * cos[k] - re[l] * sin[k];
+						re[l] = re[i+j] - tr;
+						im[l] = im[i+j] - ti;
+						re[i+j] += tr;
+						im[i+j] += ti;
+					}
+				}
+			}
+		}
+
+		private void bluestein(double[] re, double[] im, double[] workRe, double[] workIm) {
+
+			// Multiply by the chirp and zero pad.
+			for(int j=0;j<n;j++) {
+				workRe[j] = re[j] * chirpRe[j] - im[j] * chirpIm[j];
+				workIm[j] = re[j] * chirpIm[j] + im[j] * chirpRe[j];
+			}
+			for(int j=n;j<padded;j++) {
+				workRe[j] = 0;
+				workIm[j] = 0;
+			}
+
+			// Convolve with the kernel, inverting through conjugation.
+			inner.transform(workRe, workIm, null, null);
+			for(int j=0;j<padded;j++) {
+				double r = workRe[j] * kernelRe[j] - workIm[j] * kernelIm[j];
+				double i = workRe[j] * kernelIm[j] + workIm[j] * kernelRe[j];
+				workRe[j] = r;
+				workIm[j] = -i;
+			}
+			inner.transform(workRe, workIm, null, null);
+
+			// Conjugate back, scale and apply the chirp again.
+			double scale = 1.0 / padded;
+			for(int k=0;k<n;k++) {
+				double r = workRe[k] * scale;
+				double i = -workIm[k] * scale;
+				re[k] = r * chirpRe[k] - i * chirpIm[k];
+				im[k] = r * chirpIm[k] + i * chirpRe[k];
+			}
+		}
+	}
+}
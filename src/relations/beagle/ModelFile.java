@@ -0,0 +1,251 @@
+package relations.beagle;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Versioned binary format for BEAGLE models.
+ *
+ * The file starts with the magic number, the format version and the offset of the vector block.
+ * A header with the dimensions and options follows, then the permutations, the PSI vector, the stop list
+ * and a string table of every word with its count. The vector block holds the lexical rows of every word
+ * by id, followed by the environmental rows when they are stored. All values are big endian.
+ *
+ * The vector block is aligned so it can be memory mapped. A mapped model only reads the string table,
+ * vectors are paged in by the operating system when they are first queried.
+ */
+
+public class ModelFile {
+
+	// "BGLM"
+	public static final int MAGIC = 0x42474C4D;
+	public static final int VERSION = 1;
+
+	// Alignment of the vector block.
+	private static final int ALIGN = 64;
+
+	// Size of the magic number, version and vector offset.
+	private static final int PREAMBLE = 16;
+
+	// Model parts read from a file.
+	public OptionsModule options;
+	public int[] E1;
+	public int[] E2;
+	public double[] PSI;
+	public HashSet<String> stopList;
+	public VectorStore store;
+
+	/**
+	 * Check if a file starts with the model magic number.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isModelFile(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return file.length() >= PREAMBLE && in.readInt() == MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write a model.
+	 * @param file
+	 * @param options
+	 * @param E1
+	 * @param E2
+	 * @param PSI
+	 * @param stopList	May be null.
+	 * @param store
+	 * @throws IOException
+	 */
+	public static void write(File file, OptionsModule options, int[] E1, int[] E2, double[] PSI, Set<String> stopList, VectorStore store) throws IOException {
+		int size = store.size();
+		EnvironmentalGenerator generator = store.getGenerator();
+
+		// Build the header first to know where the vectors start.
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+
+		header.writeInt(store.getDimensions());
+		header.writeInt(options.combineOperator);
+		header.writeInt(options.windowSize);
+		header.writeBoolean(options.learnContext);
+		header.writeBoolean(options.learnOrder);
+		header.writeBoolean(generator != null);
+		header.writeLong((generator != null) ? generator.seed : options.seed);
+		header.writeInt((generator != null) ? generator.cacheSize : options.environmentalCacheSize);
+		header.writeInt(size);
+
+		for(int i=0;i<E1.length;i++) {
+			header.writeInt(E1[i]);
+		}
+		for(int i=0;i<E2.length;i++) {
+			header.writeInt(E2[i]);
+		}
+		for(int i=0;i<PSI.length;i++) {
+			header.writeDouble(PSI[i]);
+		}
+
+		if(stopList == null) {
+			header.writeInt(-1);
+		} else {
+			header.writeInt(stopList.size());
+			for(String word : stopList) {
+				header.writeUTF(word);
+			}
+		}
+
+		// String table.
+		for(int id=0;id<size;id++) {
+			header.writeUTF(store.getWord(id));
+			header.writeInt(store.getCount(id));
+		}
+		header.close();
+
+		long offset = PREAMBLE + headerBytes.size();
+		int padding = (int)((ALIGN - offset % ALIGN) % ALIGN);
+		offset += padding;
+
+		// Write beside the file and swap it in, the store may be mapped from the file being replaced.
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(offset);
+			headerBytes.writeTo(out);
+			out.write(new byte[padding]);
+
+			store.lexical.write(out, size);
+			if(generator == null) {
+				store.environmental.write(out, size);
+			}
+		} finally {
+			out.close();
+		}
+
+		if(!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+			throw new IOException("Could not replace " + file + ".");
+		}
+	}
+
+	/**
+	 * Read a model.
+	 * @param file
+	 * @param map	If true the vectors are memory mapped rather than read onto the heap.
+	 * @return
+	 * @throws IOException
+	 */
+	public static ModelFile read(File file, boolean map) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(fis, 1 << 16));
+
+			if(in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a BEAGLE model file.");
+			}
+			int version = in.readInt();
+			if(version > VERSION) {
+				throw new IOException("Unsupported BEAGLE model version " + version + ".");
+			}
+			long offset = in.readLong();
+
+			ModelFile model = new ModelFile();
+
+			int dimensions = in.readInt();
+			model.options = new OptionsModule(dimensions);
+			model.options.combineOperator = in.readInt();
+			model.options.windowSize = in.readInt();
+			model.options.learnContext = in.readBoolean();
+			model.options.learnOrder = in.readBoolean();
+			model.options.generateEnvironmental = in.readBoolean();
+			model.options.seed = in.readLong();
+			model.options.environmentalCacheSize = in.readInt();
+			int size = in.readInt();
+
+			model.E1 = new int[dimensions];
+			for(int i=0;i<dimensions;i++) {
+				model.E1[i] = in.readInt();
+			}
+			model.E2 = new int[dimensions];
+			for(int i=0;i<dimensions;i++) {
+				model.E2[i] = in.readInt();
+			}
+			model.PSI = new double[dimensions];
+			for(int i=0;i<dimensions;i++) {
+				model.PSI[i] = in.readDouble();
+			}
+
+			int stopped = in.readInt();
+			if(stopped >= 0) {
+				model.stopList = new HashSet<String>();
+				for(int i=0;i<stopped;i++) {
+					model.stopList.add(in.readUTF());
+				}
+			}
+
+			String[] words = new String[size];
+			int[] counts = new int[size];
+			for(int id=0;id<size;id++) {
+				words[id] = in.readUTF();
+				counts[id] = in.readInt();
+			}
+
+			EnvironmentalGenerator generator = null;
+			if(model.options.generateEnvironmental) {
+				generator = new EnvironmentalGenerator(model.options.seed, dimensions, model.options.environmentalCacheSize);
+			}
+
+			FloatSlabs lexical;
+			FloatSlabs environmental = null;
+			if(map) {
+				// The mappings stay valid after the channel is closed.
+				FileChannel channel = fis.getChannel();
+				long rowBytes = (long)size * dimensions * 4;
+				lexical = FloatSlabs.map(channel, offset, size, dimensions);
+				if(generator == null) {
+					environmental = FloatSlabs.map(channel, offset + rowBytes, size, dimensions);
+				}
+			} else {
+				// Start again from the vector block, the header reader may have buffered past it.
+				fis.getChannel().position(offset);
+				in = new DataInputStream(new BufferedInputStream(fis, 1 << 16));
+				lexical = new FloatSlabs(dimensions, false);
+				lexical.read(in, size);
+				if(generator == null) {
+					environmental = new FloatSlabs(dimensions, false);
+					environmental.read(in, size);
+				}
+			}
+
+			model.store = new VectorStore(words, counts, lexical, environmental, generator);
+			return model;
+		} finally {
+			fis.close();
+		}
+	}
+
+	/**
+	 * Convert models saved with object serialization into the binary format.
+	 * @param args	Pairs of old and new files.
+	 */
+	public static void main(String[] args) {
+		if(args.length == 0 || args.length % 2 != 0) {
+			System.err.println("Usage: ModelFile <serialized model> <binary model> ...");
+			return;
+		}
+
+		for(int i=0;i<args.length;i+=2) {
+			// Dimensions are taken from the loaded model.
+			BEAGLE beagle = new BEAGLE(new OptionsModule(1));
+			beagle.loadVectors(new File(args[i]));
+			beagle.saveVectors(new File(args[i+1]));
+			System.out.println(args[i] + " -> " + args[i+1] + " (" + beagle.store.size() + " words)");
+		}
+	}
+}
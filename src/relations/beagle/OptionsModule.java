@@ -3,6 +3,7 @@ package relations.beagle;
 import java.awt.Component;
 import java.io.File;
 import java.io.Serializable;
+import java.util.Random;
 
 import javax.swing.JOptionPane;
 
@@ -26,6 +27,30 @@ public class OptionsModule implements Serializable {
 
 	public boolean learnContext = true;
 	public boolean learnOrder = false;
+	
+	// Threads used to learn a corpus.
+	public int threads = 1;
+	
+	// Derive environmental vectors, E1, E2 and PSI from the seed rather than storing them.
+	public boolean generateEnvironmental = false;
+	public long seed = new Random().nextLong();
+	public int environmentalCacheSize = 1024;
+
+	// Answer top N queries from an approximate nearest neighbour index instead of a full scan.
+	public boolean approximateSearch = false;
+	public int indexNeighbours = 16;
+	public int indexConstruction = 100;
+	public int indexSearch = 64;
+	
+	// Answer top N queries by scanning byte coded vectors, then rescoring this many candidates per result.
+	public boolean quantizedSearch = false;
+	public int rescoreFactor = 4;
+	
+	// Seconds between checkpoints while learning a corpus.
+	public int checkpointSeconds = 600;
+	
+	// Seconds between snapshots published for queries while learning, zero to query the live model.
+	public int publishSeconds = 0;
 
 	public transient File stopListPath;
 	public transient File wordSetPath;
@@ -43,6 +68,18 @@ public class OptionsModule implements Serializable {
 		stopList = clone.stopList;
 		envWeight = clone.envWeight;
 		numResults = clone.numResults;
+		generateEnvironmental = clone.generateEnvironmental;
+		seed = clone.seed;
+		environmentalCacheSize = clone.environmentalCacheSize;
+		threads = clone.threads;
+		approximateSearch = clone.approximateSearch;
+		indexNeighbours = clone.indexNeighbours;
+		indexConstruction = clone.indexConstruction;
+		indexSearch = clone.indexSearch;
+		quantizedSearch = clone.quantizedSearch;
+		rescoreFactor = clone.rescoreFactor;
+		checkpointSeconds = clone.checkpointSeconds;
+		publishSeconds = clone.publishSeconds;
 	}
 	
 	/**
@@ -86,6 +123,17 @@ public class OptionsModule implements Serializable {
 	}
 	
 	
+	/**
+	 * If true, environmental vectors are generated from the seed instead of stored.
+	 * This must be chosen before the model is built.
+	 * @param generateEnvironmental
+	 * @return
+	 */
+	public boolean setGenerateEnvironmental(boolean generateEnvironmental) {
+		this.generateEnvironmental = generateEnvironmental;
+		return true;
+	}
+	
 	/**
 	 * This value is used to penalize the significance of commonly used words.
 	 * @param wordWeightPenalty
@@ -150,7 +198,7 @@ public class OptionsModule implements Serializable {
 	}
 	
 	/**
-	 * This is the window size for convolusion.
+	 * This is the window size for convolusion and RPM.
 	 * @param size
 	 * @param parent
 	 * @return
@@ -178,6 +226,27 @@ public class OptionsModule implements Serializable {
 		return true;
 	}
 	
+	/**
+	 * Number of threads to learn a corpus with.
+	 * @param threads
+	 * @param parent
+	 * @return
+	 */
+	public boolean setThreads(int threads, Component parent) {
+		if(threads < 1) {
+			
+			JOptionPane.showMessageDialog(parent,
+				    "You must learn with at least one thread.",
+				    "Size Error",
+				    JOptionPane.ERROR_MESSAGE);
+			
+			return false;
+		}
+		
+		this.threads = threads;
+		return true;
+	}
+	
 	/**
 	 * Dimensions of BEAGLE vectors.
 	 * @param dimensions
@@ -0,0 +1,228 @@
+package relations.beagle;
+
+/**
+ * Compressed copy of one set of vectors in a VectorStore for fast neighbour search.
+ * Every vector is stored as signed bytes with its own scale, a quarter of the size of the float vectors in the store.
+ * Searches scan the codes for a short list of candidates and rescore them against the full precision
+ * vectors in the store.
+ * The codes are held on the heap as well as the store, so they only save memory when the store's vectors are
+ * memory mapped from a binary model file and left on disk until a candidate is rescored, see BEAGLE.serveQuantized.
+ */
+
+public class QuantizedVectors {
+
+	// Number of bytes in a full slab of codes.
+	private static final int SLAB_BYTES = 1 << 24;
+
+	private final VectorStore store;
+	private final boolean lexical;
+	private final int dimensions;
+
+	// Words coded and the store removals and lexical changes at the time.
+	private final int size;
+	private final int removals;
+	private final int changes;
+
+	// Byte codes of every vector, one after another in slabs of rowsPerSlab vectors,
+	// so offsets stay within an int however many words are coded.
+	private final int rowsPerSlab;
+	private final byte[][] codes;
+
+	// Scale from codes back to values, and the length of the coded vector.
+	private final float[] scales;
+	private final float[] norms;
+
+	/**
+	 * Code every vector currently in the store.
+	 * @param store
+	 * @param lexical	Code lexical vectors, otherwise environmental.
+	 */
+	public QuantizedVectors(VectorStore store, boolean lexical) {
+		this.store = store;
+		this.lexical = lexical;
+		dimensions = store.getDimensions();
+		size = store.size();
+		removals = store.removals();
+		changes = store.lexicalChanges();
+		rowsPerSlab = Math.max(1, SLAB_BYTES / dimensions);
+		codes = new byte[(size + rowsPerSlab - 1) / rowsPerSlab][];
+		for(int s=0;s<codes.length;s++) {
+			codes[s] = new byte[Math.min(rowsPerSlab, size - s * rowsPerSlab) * dimensions];
+		}
+		scales = new float[size];
+		norms = new float[size];
+
+		double[] v = new double[dimensions];
+		for(int id=0;id<size;id++) {
+			byte[] slab = codes[id / rowsPerSlab];
+			int base = (id % rowsPerSlab) * dimensions;
+			double scale = code(getVector(id, v), slab, base);
+			scales[id] = (float)scale;
+
+			long squares = 0;
+			for(int i=0;i<dimensions;i++) {
+				squares += slab[base + i] * slab[base + i];
+			}
+			norms[id] = (float)(Math.sqrt(squares) * scale);
+		}
+	}
+
+	public VectorStore getStore() {
+		return store;
+	}
+
+	/**
+	 * True if words were added or removed after coding, or for lexical codes if any lexical vector was learned further.
+	 * @return
+	 */
+	public boolean isStale() {
+		return store.size() != size || store.removals() != removals || (lexical && store.lexicalChanges() != changes);
+	}
+
+	/**
+	 * Bytes used by the codes, scales and lengths.
+	 * @return
+	 */
+	public long memory() {
+		return (long)size * dimensions + 8L * size;
+	}
+
+	/**
+	 * Find the top words by scanning the codes, then rescore the best candidates exactly.
+	 * @param v
+	 * @param k			Number of words to return.
+	 * @param rescore	Candidates taken from the codes, at least k.
+	 * @param skip		Word ids to leave out, may be null.
+	 * @return			Up to k matches with their exact cosine, best first.
+	 */
+	public BatchSearch.Matches search(double[] v, int k, int rescore, boolean[] skip) {
+		rescore = Math.max(rescore, k);
+		double vNorm = VectorTools.dist(v);
+		
+		// Code the query too so the scan is an integer dot product.
+		byte[] query = new byte[dimensions];
+		double queryScale = code(v, query, 0);
+		double queryNorm = 0;
+		for(int i=0;i<dimensions;i++) {
+			queryNorm += query[i] * query[i];
+		}
+		queryNorm = Math.sqrt(queryNorm) * queryScale;
+
+		// Approximate scan, keeping the best candidates in insertion order.
+		int[] candidates = new int[rescore];
+		double[] approximate = new double[rescore];
+		int found = 0;
+		for(int id=0;id<size;id++) {
+			if(skip != null && skip[id]) {
+				continue;
+			}
+			double cosine = approximateCosine(id, query, queryScale, queryNorm);
+			if(found < rescore) {
+				found = insert(candidates, approximate, found, id, cosine);
+			} else if(cosine > approximate[found - 1]) {
+				insert(candidates, approximate, found - 1, id, cosine);
+			}
+		}
+
+		// Rescore against the full vectors.
+		int[] ids = new int[k];
+		double[] exact = new double[k];
+		int kept = 0;
+		for(int i=0;i<found;i++) {
+			int id = candidates[i];
+			double cosine = lexical ? store.lexical.cosine(id, v, vNorm) : store.environmentalCosine(id, v, vNorm);
+			if(kept < k) {
+				kept = insertById(ids, exact, kept, id, cosine);
+			} else if(cosine > exact[kept - 1] || (cosine == exact[kept - 1] && id < ids[kept - 1])) {
+				insertById(ids, exact, kept - 1, id, cosine);
+			}
+		}
+
+		BatchSearch.Matches matches = new BatchSearch.Matches(kept);
+		System.arraycopy(ids, 0, matches.ids, 0, kept);
+		System.arraycopy(exact, 0, matches.similarities, 0, kept);
+		return matches;
+	}
+
+	/**
+	 * Cosine between a coded vector and a coded query.
+	 * @param id
+	 * @param query		Codes of the query.
+	 * @param scale		Scale of the query codes.
+	 * @param norm		Length of the coded query.
+	 * @return
+	 */
+	private double approximateCosine(int id, byte[] query, double scale, double norm) {
+		double len = norms[id] * norm;
+		if(len == 0) {
+			return -1;
+		}
+
+		byte[] slab = codes[id / rowsPerSlab];
+		int base = (id % rowsPerSlab) * dimensions;
+		int sum = 0;
+		for(int i=0;i<dimensions;i++) {
+			sum += slab[base + i] * query[i];
+		}
+		return sum * scales[id] * scale / len;
+	}
+
+	/**
+	 * Code a vector as bytes scaled to its largest value.
+	 * @param v
+	 * @param out
+	 * @param offset	Where to write the codes in out.
+	 * @return			The scale of the codes.
+	 */
+	private double code(double[] v, byte[] out, int offset) {
+		double max = 0;
+		for(int i=0;i<dimensions;i++) {
+			max = Math.max(max, Math.abs(v[i]));
+		}
+		double scale = max / 127;
+		for(int i=0;i<dimensions;i++) {
+			out[offset + i] = (byte)((scale == 0) ? 0 : Math.round(v[i] / scale));
+		}
+		return scale;
+	}
+
+	private double[] getVector(int id, double[] out) {
+		return lexical ? store.lexical.get(id, out) : store.getEnvironmental(id, out);
+	}
+
+	/**
+	 * Insert into a list sorted best first, ties after existing entries.
+	 * @return The new length.
+	 */
+	private static int insert(int[] ids, double[] scores, int length, int id, double score) {
+		int at = length;
+		while(at > 0 && scores[at - 1] < score) {
+			if(at < ids.length) {
+				ids[at] = ids[at - 1];
+				scores[at] = scores[at - 1];
+			}
+			at--;
+		}
+		ids[at] = id;
+		scores[at] = score;
+		return Math.min(length + 1, ids.length);
+	}
+
+	/**
+	 * Insert into a list sorted best first, ties going to the lower id.
+	 * @return The new length.
+	 */
+	private static int insertById(int[] ids, double[] scores, int length, int id, double score) {
+		int at = length;
+		while(at > 0 && (scores[at - 1] < score || (scores[at - 1] == score && ids[at - 1] > id))) {
+			if(at < ids.length) {
+				ids[at] = ids[at - 1];
+				scores[at] = scores[at - 1];
+			}
+			at--;
+		}
+		ids[at] = id;
+		scores[at] = score;
+		return Math.min(length + 1, ids.length);
+	}
+}
@@ -8,6 +8,7 @@ import tools.CSV;
 
 /**
  * This represents a thought in BEAGLE.
+ * The vectors themselves live in a VectorStore, a thought is a handle on a word id.
  * @author bkievitk
  */
 
@@ -17,21 +18,39 @@ public class Thought implements Serializable {
 	
 	// Track word name and data.
 	public String representation;
+	public int id;
 	public int count = 0;
-	public double[] lexical;
-	public double[] environmental;
+	
+	// Vectors of models saved before the vector store, only filled when reading those.
+	private double[] lexical;
+	private double[] environmental;
 	
 	/**
 	 * A thought is composed of a word and a track for its frequency.
 	 * @param word		Word in natural language.
-	 * @param frequency	Frequency of word occuring scalled.
+	 * @param id		Word id in the vector store.
+	 * @param count		Times the word has been seen.
 	 */	
-	public Thought(String word, int dimension) {
+	public Thought(String word, int id, int count) {
 		this.representation = word;
-		this.count = 0;
-		environmental = VectorTools.newGaussian(dimension);
-		//lexical  = VectorTools.newGaussian(dimension);
-		lexical  = VectorTools.zero(dimension);
+		this.id = id;
+		this.count = count;
+	}
+	
+	/**
+	 * Lexical vector read from a model saved before the vector store.
+	 * @return
+	 */
+	double[] getLegacyLexical() {
+		return lexical;
+	}
+	
+	/**
+	 * Environmental vector read from a model saved before the vector store.
+	 * @return
+	 */
+	double[] getLegacyEnvironmental() {
+		return environmental;
 	}
 	
 	public String toString() {
@@ -71,66 +90,38 @@ public class Thought implements Serializable {
 	}
 
 	/**
-	 * Builds hash representation of words based on their representation strings.
-	 * @param words
-	 * @return
+	 * Add the words of a word set file to a store.
+	 * Each line is a count followed by a word.
+	 * @param f
+	 * @param store
 	 */
-	public static Hashtable<String,Thought> buildWordSet(Vector<Thought> words) {
-		Hashtable<String,Thought> ret = new Hashtable<String,Thought>();
-		for(Thought word : words) {
-			ret.put(word.representation, word);
-		}
-		return ret;
-	}
-	
-	public static Hashtable<String,Thought> buildWordSet(String[] words, int dimensions) {
-		Hashtable<String,Thought> ret = new Hashtable<String,Thought>();
-		for(String word : words) {
-			ret.put(word, new Thought(word,dimensions));
-		}
-		return ret;
-	}
-	
-	public static Thought addWord(String word, int dimensions, Hashtable<String, Thought> hash) {
-		Thought t = new Thought(word,dimensions);
-		hash.put(word, t);
-		return t;
-	}
-	
-	public static Vector<Thought> loadWordsSimple(File f, int dimensions) {
-		Vector<Thought> ret = new Vector<Thought>();
+	public static void loadWordsSimple(File f, VectorStore store) {
 		try {
 			BufferedReader r = new BufferedReader(new FileReader(f));
 			String word;
 			while((word = r.readLine()) != null) {
 				String[] line = word.split(",");
-				Thought t = new Thought(line[1], dimensions);
-				t.count = Integer.parseInt(line[0]);
-				ret.add(t);
+				int id = store.addWord(line[1]);
+				store.setCount(id, Integer.parseInt(line[0]));
 			}
+			r.close();
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		return ret;
 	}
 	
 	/**
 	 * Load words from a file in csv form using X format.
 	 * @param f
-	 * @param stopList
-	 * @return
+	 * @param store
 	 */
-	public static Vector<Thought> loadWords(File f, int dimensions) {
-		
-		Vector<Thought> ret = new Vector<Thought>();
+	public static void loadWords(File f, VectorStore store) {
 		
 		CSV csv = new CSV(f);
 		String[] line;
 		
-		HashSet<String> words = new HashSet<String>();
-		
 		while((line = csv.getLine()) != null) {
 			String word = line[0].trim();
 			word = word.replaceAll(" ?\\(.*\\)", "");
@@ -143,14 +134,8 @@ public class Thought implements Serializable {
 				word = word.replaceAll("[^a-z]", "");
 				
 				// Only add words without spaces.
-				if(!words.contains(word)) {
-					words.add(word);
-					//float frequency = Float.parseFloat(line[line.length-1]);
-					ret.add(new Thought(word, dimensions));
-				}
+				store.addWord(word);
 			}
 		}
-
-		return ret;
 	}
 }
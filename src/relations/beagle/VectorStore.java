@@ -0,0 +1,706 @@
+package relations.beagle;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the lexical and environmental vectors of every word in contiguous float slabs.
+ * Words are given consecutive int ids through a compact open addressing dictionary.
+ * Removing a word moves the last word into its id, so ids are only stable while no words are removed.
+ * When built with a generator, environmental vectors are derived from the word and not stored.
+ * Lexical updates and counts are guarded by striped locks so several threads may learn at once.
+ * Words changed through the store are marked dirty so checkpoints only need to write those.
+ * A snapshot is a frozen copy that can be queried without locks while learning carries on.
+ */
+
+public class VectorStore implements Serializable {
+
+	private static final long serialVersionUID = -2410338532286749161L;
+
+	private int dimensions;
+	private boolean offHeap;
+	
+	// Source of environmental vectors, null when they are stored.
+	private EnvironmentalGenerator generator;
+
+	// Vectors referenced by word id, environmental is null when generated.
+	public transient FloatSlabs lexical;
+	public transient FloatSlabs environmental;
+
+	// Word data referenced by word id.
+	private transient volatile String[] words;
+	private transient int[] counts;
+	private transient int size;
+
+	// Open addressing table of word ids, -1 for empty.
+	// Lookups read it without locking, changes are made while holding the store's monitor.
+	private transient volatile int[] table;
+
+	// Locks over word ids, all are held while the arrays are resized.
+	private static final int STRIPES = 64;
+	private transient ReentrantLock[] stripes;
+
+	// Words removed so far, removing renumbers ids.
+	private transient int removals;
+
+	// Changes to lexical vectors made under each stripe lock, and under the store's monitor.
+	// Searches that keep anything derived from the lexical vectors compare their sum.
+	private transient int[] stripeChanges;
+	private transient volatile int lexicalChanges;
+
+	// Lexical changes when learning last finished.
+	private transient volatile int settledChanges;
+
+	// Words changed since the last checkpoint, and the size and removals at that checkpoint.
+	private transient boolean[] dirty;
+	private transient int checkpointSize;
+	private transient int checkpointRemovals;
+
+	public VectorStore(int dimensions) {
+		this(dimensions, false);
+	}
+
+	public VectorStore(int dimensions, boolean offHeap) {
+		this(dimensions, offHeap, null);
+	}
+
+	public VectorStore(int dimensions, boolean offHeap, EnvironmentalGenerator generator) {
+		this.dimensions = dimensions;
+		this.offHeap = offHeap;
+		this.generator = generator;
+		init(16);
+	}
+
+	/**
+	 * Build a store around existing vectors.
+	 * @param words
+	 * @param counts
+	 * @param lexical
+	 * @param environmental	Null when the generator is set.
+	 * @param generator
+	 */
+	VectorStore(String[] words, int[] counts, FloatSlabs lexical, FloatSlabs environmental, EnvironmentalGenerator generator) {
+		this.dimensions = lexical.dimensions;
+		this.offHeap = lexical.offHeap;
+		this.generator = generator;
+		init(Math.max(words.length, 16));
+		this.lexical = lexical;
+		this.environmental = environmental;
+		for(int id=0;id<words.length;id++) {
+			this.words[id] = words[id];
+			this.counts[id] = counts[id];
+			insert(id);
+		}
+		size = words.length;
+		checkpointSize = size;
+	}
+
+	private void init(int capacity) {
+		stripes = new ReentrantLock[STRIPES];
+		for(int i=0;i<STRIPES;i++) {
+			stripes[i] = new ReentrantLock();
+		}
+		stripeChanges = new int[STRIPES];
+		lexical = new FloatSlabs(dimensions, offHeap);
+		environmental = (generator == null) ? new FloatSlabs(dimensions, offHeap) : null;
+		words = new String[capacity];
+		counts = new int[capacity];
+		dirty = new boolean[capacity];
+		size = 0;
+		table = new int[tableSize(capacity)];
+		Arrays.fill(table, -1);
+	}
+
+	public int getDimensions() {
+		return dimensions;
+	}
+
+	/**
+	 * The generator of environmental vectors, null if they are stored.
+	 * @return
+	 */
+	public EnvironmentalGenerator getGenerator() {
+		return generator;
+	}
+
+	/**
+	 * Number of words.
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Find the id of a word.
+	 * The table is probed without locking, so the lookups of learning threads do not contend.
+	 * A hit is only taken when the word stored under the id matches, and a miss is checked again
+	 * under the lock in case the word was being added or the table was being rebuilt.
+	 * @param word
+	 * @return The id or -1 if the word is unknown.
+	 */
+	public int getId(String word) {
+		int[] table = this.table;
+		String[] words = this.words;
+		int mask = table.length - 1;
+		int slot = hash(word) & mask;
+		for(int probes=0;probes<table.length;probes++) {
+			int id = table[slot];
+			if(id < 0) {
+				break;
+			}
+			if(id < words.length && word.equals(words[id])) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return lockedId(word);
+	}
+
+	private synchronized int lockedId(String word) {
+		int slot = slotOf(word);
+		return (slot < 0) ? -1 : table[slot];
+	}
+
+	public boolean contains(String word) {
+		return getId(word) >= 0;
+	}
+
+	public String getWord(int id) {
+		return words[id];
+	}
+
+	/**
+	 * Add a word with a new random environmental vector and an empty lexical vector.
+	 * @param word
+	 * @return The id of the word, which is the existing id if already present.
+	 */
+	public synchronized int addWord(String word) {
+		int id = getId(word);
+		if(id >= 0) {
+			return id;
+		}
+
+		id = size;
+		if(id == words.length || id == lexical.capacity()) {
+			lockAll();
+			try {
+				if(id == words.length) {
+					grow(words.length * 2);
+				}
+				lexical.ensureCapacity(id + 1);
+				if(environmental != null) {
+					environmental.ensureCapacity(id + 1);
+				}
+			} finally {
+				unlockAll();
+			}
+		}
+		
+		words[id] = word;
+		counts[id] = 0;
+		lexical.clear(id);
+		if(environmental != null) {
+			environmental.set(id, VectorTools.newGaussian(dimensions));
+		}
+		size++;
+		insert(id);
+		return id;
+	}
+
+	/**
+	 * Remove a word, the last word takes over its id.
+	 * @param word
+	 * @return
+	 */
+	public synchronized boolean remove(String word) {
+		int slot = slotOf(word);
+		if(slot < 0) {
+			return false;
+		}
+
+		int id = table[slot];
+		delete(slot);
+
+		lockAll();
+		try {
+			int last = size - 1;
+			if(id != last) {
+				table[slotOf(words[last])] = id;
+				words[id] = words[last];
+				counts[id] = counts[last];
+				dirty[id] = true;
+				lexical.copy(last, id);
+				if(environmental != null) {
+					environmental.copy(last, id);
+				}
+			}
+			words[last] = null;
+			size--;
+			removals++;
+		} finally {
+			unlockAll();
+		}
+		return true;
+	}
+
+	/**
+	 * Number of words removed, ids taken before a removal may now refer to other words.
+	 * @return
+	 */
+	public int removals() {
+		return removals;
+	}
+
+	/**
+	 * A count that changes whenever a lexical vector is changed through the store,
+	 * so lengths, codes or graphs built from the lexical vectors can tell they are out of date.
+	 * @return
+	 */
+	public int lexicalChanges() {
+		int changes = lexicalChanges;
+		for(int i=0;i<STRIPES;i++) {
+			changes += stripeChanges[i];
+		}
+		return changes;
+	}
+
+	/**
+	 * Mark the lexical vectors as done learning for now.
+	 */
+	public void settleLexical() {
+		settledChanges = lexicalChanges();
+	}
+
+	/**
+	 * True unless lexical vectors were learned since the store was built or last settled.
+	 * @return
+	 */
+	public boolean isLexicalSettled() {
+		return lexicalChanges() == settledChanges;
+	}
+
+	public int getCount(int id) {
+		return counts[id];
+	}
+
+	public void setCount(int id, int count) {
+		counts[id] = count;
+		dirty[id] = true;
+	}
+
+	public void incrementCount(int id) {
+		ReentrantLock lock = stripes[id % STRIPES];
+		lock.lock();
+		try {
+			counts[id]++;
+			dirty[id] = true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Add a scaled vector to the lexical vector of a word.
+	 * This is safe to call from several threads.
+	 * @param id
+	 * @param v
+	 * @param scale
+	 */
+	public void addLexical(int id, double[] v, double scale) {
+		ReentrantLock lock = stripes[id % STRIPES];
+		lock.lock();
+		try {
+			lexical.add(id, v, scale);
+			dirty[id] = true;
+			stripeChanges[id % STRIPES]++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Mark a word as changed after writing to its vectors directly.
+	 * @param id
+	 */
+	public void markDirty(int id) {
+		ReentrantLock lock = stripes[id % STRIPES];
+		lock.lock();
+		try {
+			dirty[id] = true;
+			stripeChanges[id % STRIPES]++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * True if a delta since the last checkpoint can describe the store,
+	 * false once words were removed since then.
+	 * @return
+	 */
+	public boolean canWriteChanges() {
+		return removals == checkpointRemovals;
+	}
+
+	/**
+	 * Write the words added and the words changed since the last checkpoint.
+	 * Learning must be paused while this runs.
+	 * @param out
+	 * @throws IOException
+	 */
+	public synchronized void writeChanges(DataOutput out) throws IOException {
+		int changed = 0;
+		for(int id=0;id<size;id++) {
+			if(dirty[id] || id >= checkpointSize) {
+				changed++;
+			}
+		}
+
+		out.writeInt(size);
+		out.writeInt(changed);
+		for(int id=0;id<size;id++) {
+			if(dirty[id] || id >= checkpointSize) {
+				boolean added = id >= checkpointSize;
+				out.writeInt(id);
+				out.writeUTF(words[id]);
+				out.writeInt(counts[id]);
+				lexical.write(out, id, 1);
+				out.writeBoolean(added && environmental != null);
+				if(added && environmental != null) {
+					environmental.write(out, id, 1);
+				}
+			}
+		}
+		markCheckpoint();
+	}
+
+	/**
+	 * Apply changes written by writeChanges.
+	 * @param in
+	 * @throws IOException
+	 */
+	public synchronized void readChanges(DataInput in) throws IOException {
+		int newSize = in.readInt();
+		int changed = in.readInt();
+		double[] v = new double[dimensions];
+		for(int i=0;i<changed;i++) {
+			int id = in.readInt();
+			String word = in.readUTF();
+			if(id >= size) {
+				if(addWord(word) != id) {
+					throw new IOException("Checkpoint does not match the model at word " + word + ".");
+				}
+			}
+			counts[id] = in.readInt();
+			lexical.set(id, readVector(in, v));
+			if(in.readBoolean()) {
+				environmental.set(id, readVector(in, v));
+			}
+		}
+		lexicalChanges++;
+		if(newSize != size) {
+			throw new IOException("Checkpoint does not match the model size.");
+		}
+		markCheckpoint();
+	}
+
+	private double[] readVector(DataInput in, double[] v) throws IOException {
+		for(int i=0;i<dimensions;i++) {
+			v[i] = in.readFloat();
+		}
+		return v;
+	}
+
+	/**
+	 * Treat the current state as written.
+	 */
+	public synchronized void markCheckpoint() {
+		Arrays.fill(dirty, false);
+		checkpointSize = size;
+		checkpointRemovals = removals;
+	}
+
+	/**
+	 * A copy of the store as it is now, which later changes to the store do not reach.
+	 * Vectors are shared until either copy changes them, so this costs little more than the word table.
+	 * @return
+	 */
+	public synchronized VectorStore snapshot() {
+		lockAll();
+		try {
+			return new VectorStore(Arrays.copyOf(words, size), Arrays.copyOf(counts, size),
+					lexical.snapshot(size), (environmental == null) ? null : environmental.snapshot(size), generator);
+		} finally {
+			unlockAll();
+		}
+	}
+
+	private void lockAll() {
+		for(ReentrantLock lock : stripes) {
+			lock.lock();
+		}
+	}
+
+	private void unlockAll() {
+		for(ReentrantLock lock : stripes) {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Set all word counts to zero.
+	 */
+	public void resetCounts() {
+		for(int i=0;i<size;i++) {
+			counts[i] = 0;
+		}
+	}
+
+	/**
+	 * Build a handle for a word id.
+	 * @param id
+	 * @return
+	 */
+	public Thought getThought(int id) {
+		return new Thought(words[id], id, counts[id]);
+	}
+
+	/**
+	 * Copy out the environmental vector of a word.
+	 * @param id
+	 * @param out
+	 * @return out
+	 */
+	public double[] getEnvironmental(int id, double[] out) {
+		if(generator != null) {
+			return generator.get(words[id], out);
+		}
+		return environmental.get(id, out);
+	}
+
+	/**
+	 * Add the scaled environmental vector of a word to a vector.
+	 * @param id
+	 * @param scale
+	 * @param to
+	 */
+	public void addEnvironmentalTo(int id, double scale, double[] to) {
+		if(generator != null) {
+			VectorTools.setAddMult(generator.vector(words[id]), scale, to);
+		} else {
+			environmental.addTo(id, scale, to);
+		}
+	}
+
+	/**
+	 * Cosine between the environmental vector of a word and a vector.
+	 * @param id
+	 * @param v
+	 * @param vNorm	Length of v.
+	 * @return
+	 */
+	public double environmentalCosine(int id, double[] v, double vNorm) {
+		if(generator != null) {
+			double[] e = generator.vector(words[id]);
+			double len = VectorTools.dist(e) * vNorm;
+			if(len == 0) {
+				return -1;
+			}
+			return VectorTools.dot(e, v) / len;
+		}
+		return environmental.cosine(id, v, vNorm);
+	}
+
+	/**
+	 * Dot product of the environmental vector of a word and a vector.
+	 * @param id
+	 * @param v
+	 * @return
+	 */
+	public double environmentalDot(int id, double[] v) {
+		if(generator != null) {
+			return VectorTools.dot(generator.vector(words[id]), v);
+		}
+		return environmental.dot(id, v);
+	}
+
+	/**
+	 * Cosine between the lexical vectors of two words.
+	 * @param id1
+	 * @param id2
+	 * @return
+	 */
+	public double lexicalCosine(int id1, int id2) {
+		double len = lexical.norm(id1) * lexical.norm(id2);
+		if(len == 0) {
+			return -1;
+		}
+		return lexical.dot(id1, id2) / len;
+	}
+
+	/**
+	 * A live view of the words.
+	 * Adding to the set adds a word and removing from it removes the word.
+	 * @return
+	 */
+	public Set<String> wordSet() {
+		return new AbstractSet<String>() {
+			public int size() {
+				return size;
+			}
+
+			public boolean contains(Object o) {
+				return (o instanceof String) && getId((String)o) >= 0;
+			}
+
+			public boolean add(String word) {
+				int before = size;
+				addWord(word);
+				return size != before;
+			}
+
+			public boolean remove(Object o) {
+				return (o instanceof String) && VectorStore.this.remove((String)o);
+			}
+
+			public Iterator<String> iterator() {
+				return new Iterator<String>() {
+					private int at = 0;
+					private boolean removable = false;
+
+					public boolean hasNext() {
+						return at < size;
+					}
+
+					public String next() {
+						if(at >= size) {
+							throw new NoSuchElementException();
+						}
+						removable = true;
+						return words[at++];
+					}
+
+					public void remove() {
+						if(!removable) {
+							throw new IllegalStateException();
+						}
+						// The last word moves into this id, so look at it again.
+						removable = false;
+						at--;
+						VectorStore.this.remove(words[at]);
+					}
+				};
+			}
+		};
+	}
+
+	private static int tableSize(int capacity) {
+		return Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) << 1;
+	}
+
+	private static int hash(String word) {
+		int h = word.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private int slotOf(String word) {
+		int mask = table.length - 1;
+		for(int slot = hash(word) & mask;;slot = (slot + 1) & mask) {
+			int id = table[slot];
+			if(id < 0) {
+				return -1;
+			}
+			if(words[id].equals(word)) {
+				return slot;
+			}
+		}
+	}
+
+	private void insert(int id) {
+		int mask = table.length - 1;
+		int slot = hash(words[id]) & mask;
+		while(table[slot] >= 0) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = id;
+	}
+
+	/**
+	 * Empty a slot, shifting back any entries that probed past it.
+	 * @param slot
+	 */
+	private void delete(int slot) {
+		int mask = table.length - 1;
+		table[slot] = -1;
+		for(int next = (slot + 1) & mask;table[next] >= 0;next = (next + 1) & mask) {
+			int home = hash(words[table[next]]) & mask;
+			boolean stays = (slot <= next) ? (slot < home && home <= next) : (slot < home || home <= next);
+			if(!stays) {
+				table[slot] = table[next];
+				table[next] = -1;
+				slot = next;
+			}
+		}
+	}
+
+	private void grow(int capacity) {
+		String[] grownWords = new String[capacity];
+		System.arraycopy(words, 0, grownWords, 0, size);
+		words = grownWords;
+
+		int[] grownCounts = new int[capacity];
+		System.arraycopy(counts, 0, grownCounts, 0, size);
+		counts = grownCounts;
+
+		boolean[] grownDirty = new boolean[capacity];
+		System.arraycopy(dirty, 0, grownDirty, 0, size);
+		dirty = grownDirty;
+
+		table = new int[tableSize(capacity)];
+		Arrays.fill(table, -1);
+		for(int id=0;id<size;id++) {
+			insert(id);
+		}
+	}
+
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(size);
+		for(int id=0;id<size;id++) {
+			out.writeUTF(words[id]);
+			out.writeInt(counts[id]);
+		}
+		lexical.write(out, size);
+		if(environmental != null) {
+			environmental.write(out, size);
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		int n = in.readInt();
+		init(Math.max(n, 16));
+		for(int id=0;id<n;id++) {
+			words[id] = in.readUTF();
+			counts[id] = in.readInt();
+			insert(id);
+		}
+		size = n;
+		checkpointSize = n;
+		lexical.read(in, n);
+		if(environmental != null) {
+			environmental.read(in, n);
+		}
+	}
+}
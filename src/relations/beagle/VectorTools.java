@@ -3,6 +3,8 @@ package relations.beagle;
 import java.util.Random;
 import java.util.Vector;
 
+import tools.VectorKernels;
+
 /**
  * Vector manipulation tools.
  * @author Brent Kievit-Kylar
@@ -40,11 +42,7 @@ public class VectorTools {
 	}
 	
 	public static double[] getPointwiseMultiply(double[] v1, double[] v2) {
-		double[] ret = new double[v1.length];
-		for(int i=0;i<v1.length;i++) {
-			ret[i] = v1[i] * v2[i];
-		}
-		return ret;
+		return VectorKernels.multiply(v1, v2, new double[v1.length]);
 	}
 	
 	/**
@@ -82,6 +80,29 @@ public class VectorTools {
 		return ret;
 	}
 	
+	/**
+	 * Add the first vector rotated by the given amount to the second one.
+	 * This is the same as setAdd(rotate(from, times), to) without building the rotated copy.
+	 * @param from
+	 * @param times
+	 * @param to
+	 */
+	public static void setAddRotated(double[] from, int times, double[] to) {
+		int len = from.length;
+		int shift = times % len;
+		if(shift < 0) {
+			shift += len;
+		}
+		
+		int split = len - shift;
+		for(int i=0;i<split;i++) {
+			to[i] += from[i + shift];
+		}
+		for(int i=split;i<len;i++) {
+			to[i] += from[i - split];
+		}
+	}
+	
 	public static void show(double[] a) {
 		for(double d : a) {
 			System.out.print("[" + d + "]");
@@ -133,9 +154,17 @@ public class VectorTools {
 	 * @param to
 	 */
 	public static void setAdd(double[] from, double[] to) {
-		for(int i=0;i<from.length;i++) {
-			to[i] += from[i];
-		}
+		VectorKernels.axpy(1, from, to);
+	}
+	
+	/**
+	 * Add the first vector scaled by a constant to the second one.
+	 * @param from
+	 * @param scale
+	 * @param to
+	 */
+	public static void setAddMult(double[] from, double scale, double[] to) {
+		VectorKernels.axpy(scale, from, to);
 	}
 	
 	public static double[] getAdd(double[] from, double[] to) {
@@ -241,27 +270,15 @@ public class VectorTools {
 	}
 	
 	public static double dist(double[] a) {
-		double sum = 0;
-		for(int i=0;i<a.length;i++) {
-			sum += (a[i] * a[i]);
-		}
-		return Math.sqrt(sum);
+		return Math.sqrt(VectorKernels.squaredLength(a));
 	}
 	
 	public static double dot(double[] a, double[] b) {
-		double sum = 0;
-		for(int i=0;i<a.length;i++) {
-			sum += a[i] * b[i];
-		}
-		return sum;
+		return VectorKernels.dot(a, b);
 	}
 	
 	public static double[] mult(double[] a, double b) {
-		double[] ret = new double[a.length];
-		for(int i=0;i<a.length;i++) {
-			ret[i] = a[i] * b;
-		}
-		return ret;
+		return VectorKernels.scale(a, b, new double[a.length]);
 	}
 	
 	public static double[] normalize(double[] a) {
@@ -283,11 +300,7 @@ public class VectorTools {
 	}
 		
 	public static double getCosine(double[] a, double[] b) {
-		double sum = dist(a) * dist(b);
-		if(sum == 0) {
-			return -1;
-		}
-		return dot(a,b) / sum;
+		return VectorKernels.cosine(a, b);
 	}
 	
 	public static double getAngle(double[] a, double[] b) {
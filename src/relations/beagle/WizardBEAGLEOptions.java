@@ -147,7 +147,7 @@ public class WizardBEAGLEOptions extends PanelRelation {
 		title.setTitleJustification(TitledBorder.LEFT);
 		wordPanel.setBorder(title);
 		
-			final SimpleDictionaryGUI gui = new SimpleDictionaryGUI(relator.beagle.thoughts,relator);
+			final SimpleDictionaryGUI gui = new SimpleDictionaryGUI(relator.beagle.store.wordSet());
 			wordPanel.add(gui,BorderLayout.CENTER);
 			
 			final JCheckBox allWords = new JCheckBox("Learn all words.");
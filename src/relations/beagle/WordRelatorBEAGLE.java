@@ -3,6 +3,7 @@ package relations.beagle;
 import gui.WordMap;
 
 import java.awt.Color;
+import java.util.Collections;
 import java.util.Set;
 import relations.WordRelator;
 
@@ -30,25 +31,39 @@ public class WordRelatorBEAGLE extends WordRelator {
 	}
 
 	public double getDistance(String word1, String word2) {
-		Thought t1 = beagle.thoughts.get(word1);
-		Thought t2 = beagle.thoughts.get(word2);
+		VectorStore store = beagle.getPublished().store;
+		int id1 = store.getId(word1);
+		int id2 = store.getId(word2);
 		
-		if(t1 == null || t2 == null) {
+		if(id1 < 0 || id2 < 0) {
 			return 0;
 		}
 		
-		return VectorTools.getCosine(t1.lexical,t2.lexical);
+		return store.lexicalCosine(id1, id2);
 	}
 	
 	public Set<String> getWords() {
-		return beagle.thoughts.keySet();
+		// The snapshot is frozen, changes to its words would not reach the model.
+		return Collections.unmodifiableSet(beagle.getPublished().store.wordSet());
 	}
 	
 	public void learn(String[] sentence) {
 		super.learn(sentence);
-		Thought[] thoughts = beagle.toThought(sentence);
-		if(beagle.options.learnContext) { beagle.learnContext(thoughts, false); }
-		if(beagle.options.learnOrder) { beagle.learnOrder(thoughts, false); }
+		int[] ids = beagle.toIds(sentence);
+		if(beagle.options.learnContext) { beagle.learnContext(ids, false); }
+		if(beagle.options.learnOrder) { beagle.learnOrder(ids, false); }
+		beagle.publishIfDue();
+	}
+	
+	public void publish() {
+		if(beagle.options.publishSeconds > 0) {
+			beagle.publish();
+		}
+	}
+	
+	public void finalizeSpace() {
+		beagle.finishLearning();
+		super.finalizeSpace();
 	}
 
 	public String toString() {
@@ -56,7 +71,7 @@ public class WordRelatorBEAGLE extends WordRelator {
 	}
 	
 	public Object buildWord(String word) {
-		return new Thought(word,beagle.options.dimensions);
+		return beagle.store.getThought(beagle.store.addWord(word));
 	}
 
 }
@@ -0,0 +1,401 @@
+package relations.ri;
+
+import gui.SentenceCleaner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import relations.beagle.CorpusReader;
+import relations.beagle.FloatSlabs;
+import tools.LearningProgress;
+
+/**
+ * Random indexing word vectors, learned on many threads at once.
+ * Every word has a sparse ternary index vector, a few dimensions set to +1 or -1, derived from a hash of the word.
+ * Index vectors are kept as their positions only and never stored densely, so they are rebuilt from the words
+ * when the model is read back. A word's context vector is the sum of the index vectors of the words within the
+ * window around it, held in float slabs.
+ * Every thread streams its own byte range of the corpus from disk. The words of the corpus are found in one pass,
+ * then the context vectors are summed in a second pass with striped locks over the rows, so no update is lost.
+ */
+
+public class RandomIndex implements Serializable {
+
+	private static final long serialVersionUID = -7318446590236215283L;
+
+	private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+	// Locks over the context vector rows.
+	private static final int STRIPES = 64;
+
+	public final int dimensions;
+	public final int windowSize;
+	public final int nonZeros;
+	public final int threads;
+
+	// Words by id.
+	private transient String[] words;
+	private transient int size;
+	private transient volatile HashMap<String,Integer> ids;
+
+	// The non zero positions of each word's index vector, nonZeros for every word.
+	// A position is shifted up one bit, the low bit is set for -1.
+	private transient int[] index;
+
+	// Context vectors, one row per word.
+	private transient FloatSlabs context;
+
+	private transient ReentrantLock[] stripes;
+
+	/**
+	 * @param dimensions
+	 * @param windowSize	Furthest context word on each side.
+	 * @param nonZeros		Dimensions set in each index vector, half +1 and half -1.
+	 * @param threads
+	 */
+	public RandomIndex(int dimensions, int windowSize, int nonZeros, int threads) {
+		this.dimensions = dimensions;
+		this.windowSize = Math.max(1, windowSize);
+		this.nonZeros = Math.max(1, Math.min(nonZeros, dimensions));
+		this.threads = Math.max(1, threads);
+		init(0);
+	}
+
+	private void init(int capacity) {
+		words = new String[Math.max(16, capacity)];
+		index = new int[words.length * nonZeros];
+		size = 0;
+		ids = new HashMap<String,Integer>();
+		context = new FloatSlabs(dimensions, false);
+		context.ensureCapacity(capacity);
+		stripes = new ReentrantLock[STRIPES];
+		for(int i=0;i<STRIPES;i++) {
+			stripes[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Learn a corpus. Paragraphs are lines, sentences end with . ? or ! and words are separated by spaces.
+	 * The window does not cross sentences.
+	 * @param corpus
+	 * @param cleaners	Applied to every line before it is split.
+	 * @param progress
+	 * @throws IOException
+	 */
+	public synchronized void train(File corpus, List<SentenceCleaner> cleaners, LearningProgress progress) throws IOException {
+		long length = corpus.length();
+
+		// Give every new word an id and a row before any row is summed.
+		Worker[] counters = run(corpus, cleaners, null, true);
+		HashMap<String,Integer> grown = new HashMap<String,Integer>(ids);
+		for(Worker counter : counters) {
+			for(String word : counter.found) {
+				if(!grown.containsKey(word)) {
+					grown.put(word, add(word));
+				}
+			}
+		}
+		context.ensureCapacity(size);
+		// Published once the rows exist, queries look words up here first.
+		ids = grown;
+
+		progress.setTotalBytes(length, 0);
+		run(corpus, cleaners, progress, false);
+		progress.finish();
+	}
+
+	/**
+	 * Run one pass over the corpus, with one thread for each byte range.
+	 * @param corpus
+	 * @param cleaners
+	 * @param progress
+	 * @param counting	If true the new words are found, otherwise the context vectors are summed.
+	 * @return
+	 * @throws IOException
+	 */
+	private Worker[] run(File corpus, List<SentenceCleaner> cleaners, LearningProgress progress, boolean counting) throws IOException {
+		long length = corpus.length();
+		Worker[] workers = new Worker[threads];
+		for(int t=0;t<threads;t++) {
+			workers[t] = new Worker(corpus, cleaners, length * t / threads, length * (t + 1) / threads, progress, counting, t);
+			workers[t].start();
+		}
+
+		IOException failure = null;
+		try {
+			for(Worker worker : workers) {
+				worker.join();
+				if(failure == null) {
+					failure = worker.failure;
+				}
+			}
+		} catch (InterruptedException e) {
+			for(Worker worker : workers) {
+				worker.interrupt();
+			}
+			Thread.currentThread().interrupt();
+			throw new IOException("Learning was interrupted.");
+		}
+		if(failure != null) {
+			if(progress != null) {
+				progress.finish();
+			}
+			throw failure;
+		}
+		return workers;
+	}
+
+	/**
+	 * Give a word the next id and its index vector.
+	 * @param word
+	 * @return
+	 */
+	private int add(String word) {
+		if(size == words.length) {
+			words = Arrays.copyOf(words, size * 2);
+			index = Arrays.copyOf(index, words.length * nonZeros);
+		}
+		words[size] = word;
+		indexVector(word, size * nonZeros);
+		return size++;
+	}
+
+	/**
+	 * Write a word's index vector. Positions are drawn from a counter based hash of the word
+	 * until nonZeros different ones are found, alternately +1 and -1.
+	 * @param word
+	 * @param at	Where the positions start in index.
+	 */
+	private void indexVector(String word, int at) {
+		long h = 0xCBF29CE484222325L;
+		for(int i=0;i<word.length();i++) {
+			h ^= word.charAt(i);
+			h *= 0x100000001B3L;
+		}
+		for(int k=0;k<nonZeros;k++) {
+			int position;
+			boolean taken;
+			do {
+				h += GOLDEN;
+				position = (int)((mix(h) >>> 1) % dimensions);
+				taken = false;
+				for(int j=0;j<k;j++) {
+					taken |= (index[at + j] >>> 1) == position;
+				}
+			} while(taken);
+			index[at + k] = (position << 1) | (k & 1);
+		}
+	}
+
+	/**
+	 * The SplitMix64 finalizer.
+	 * @param z
+	 * @return
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private static String clean(String line, List<SentenceCleaner> cleaners) {
+		if(cleaners != null) {
+			for(SentenceCleaner cleaner : cleaners) {
+				line = cleaner.clean(line);
+			}
+		}
+		return line;
+	}
+
+	/**
+	 * @param word
+	 * @return	-1 if the word is not known.
+	 */
+	public int getId(String word) {
+		Integer id = ids.get(word);
+		return (id == null) ? -1 : id;
+	}
+
+	public Set<String> getWords() {
+		return Collections.unmodifiableSet(ids.keySet());
+	}
+
+	public String getWord(int id) {
+		return words[id];
+	}
+
+	/**
+	 * Copy of a context vector.
+	 * @param id
+	 * @return
+	 */
+	public double[] getVector(int id) {
+		return context.get(id);
+	}
+
+	/**
+	 * Cosine between two context vectors.
+	 * @param id1
+	 * @param id2
+	 * @return
+	 */
+	public double cosine(int id1, int id2) {
+		double length = context.norm(id1) * context.norm(id2);
+		if(length == 0) {
+			return 0;
+		}
+		return context.dot(id1, id2) / length;
+	}
+
+	private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeInt(size);
+		for(int id=0;id<size;id++) {
+			out.writeUTF(words[id]);
+		}
+		context.write(out, size);
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		int n = in.readInt();
+		init(n);
+		HashMap<String,Integer> ids = new HashMap<String,Integer>();
+		for(int id=0;id<n;id++) {
+			String word = in.readUTF();
+			ids.put(word, add(word));
+		}
+		context.read(in, n);
+		this.ids = ids;
+	}
+
+	/**
+	 * Reads one byte range of the corpus.
+	 * A range holds the lines that start inside it.
+	 */
+	private class Worker extends Thread {
+
+		private final File corpus;
+		private final List<SentenceCleaner> cleaners;
+		private final long start;
+		private final long end;
+		private final LearningProgress progress;
+		private final boolean counting;
+
+		// New words in the order they were found, when counting.
+		final LinkedHashSet<String> found = new LinkedHashSet<String>();
+
+		private final HashMap<String,Integer> ids = RandomIndex.this.ids;
+		private final int[] index = RandomIndex.this.index;
+		private int[] sentence = new int[256];
+
+		IOException failure;
+
+		Worker(File corpus, List<SentenceCleaner> cleaners, long start, long end, LearningProgress progress, boolean counting, int number) {
+			super("Random indexing " + number);
+			this.corpus = corpus;
+			this.cleaners = cleaners;
+			this.start = start;
+			this.end = end;
+			this.progress = progress;
+			this.counting = counting;
+		}
+
+		public void run() {
+			try {
+				// Start on the byte before the range, so a line that starts right at the range is not skipped.
+				CorpusReader r = CorpusReader.open(corpus, Math.max(0, start - 1));
+				try {
+					if(start > 0) {
+						// The rest of a line that started before the range belongs to the thread before.
+						r.readLine();
+					}
+					long read = r.position();
+					String line;
+					while(read < end && !isInterrupted() && (line = r.readLine()) != null) {
+						if(counting) {
+							countLine(line);
+						} else {
+							learnLine(line);
+							progress.addBytes(r.position() - read);
+						}
+						read = r.position();
+					}
+				} finally {
+					r.close();
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		private void countLine(String line) {
+			for(String word : clean(line, cleaners).split("[.?! ]+")) {
+				if(word.length() > 0 && !ids.containsKey(word)) {
+					found.add(word);
+				}
+			}
+		}
+
+		private void learnLine(String line) {
+			for(String s : clean(line, cleaners).split("[.?!]")) {
+				int length = 0;
+				for(String word : s.split(" +")) {
+					Integer id = ids.get(word);
+					if(id == null) {
+						continue;
+					}
+					if(length == sentence.length) {
+						sentence = Arrays.copyOf(sentence, length * 2);
+					}
+					sentence[length++] = id;
+				}
+				learnSentence(length);
+				progress.addSentence(length);
+			}
+		}
+
+		/**
+		 * Add the index vectors of the words around each word to its context vector.
+		 * @param length
+		 */
+		private void learnSentence(int length) {
+			for(int i=0;i<length;i++) {
+				int from = Math.max(0, i - windowSize);
+				int to = Math.min(length - 1, i + windowSize);
+				if(from == to) {
+					continue;
+				}
+				int row = sentence[i];
+				float[] slab = context.slab(row);
+				int base = context.offset(row);
+				ReentrantLock lock = stripes[row % STRIPES];
+				lock.lock();
+				try {
+					for(int j=from;j<=to;j++) {
+						if(j == i) {
+							continue;
+						}
+						int at = sentence[j] * nonZeros;
+						for(int k=0;k<nonZeros;k++) {
+							int code = index[at + k];
+							slab[base + (code >>> 1)] += ((code & 1) == 0) ? 1 : -1;
+						}
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+}
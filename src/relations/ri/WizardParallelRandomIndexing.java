@@ -0,0 +1,121 @@
+package relations.ri;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+
+import javax.swing.JPanel;
+
+import relations.WordRelator;
+import tools.PanelTools;
+import tools.VerticalLayout;
+import wizard.PanelData;
+import wizard.PanelIntro;
+import wizard.PanelRelation;
+import wizard.Wizard;
+import wizard.WizardPanel;
+
+@SuppressWarnings("serial")
+public class WizardParallelRandomIndexing extends PanelRelation {
+
+	public WordRelatorParallelRandomIndexing relator;
+
+	// Extra options.
+	private WizardPanel panelOptions;
+	private PanelData panelData;
+
+	public WizardParallelRandomIndexing(Wizard wizard) {
+		super(wizard, WordRelatorParallelRandomIndexing.typeName);
+
+		relator = new WordRelatorParallelRandomIndexing(Color.BLACK, null, wizard.wordMap);
+
+		addDefaults();
+		this.addCleaners(relator.cleaners);
+
+		panelData = new PanelData(wizard, relator, true, WordRelatorParallelRandomIndexing.typeName + "_DATA") {
+
+			public String getSubTitle() {
+				return "Teach " + WordRelatorParallelRandomIndexing.typeName;
+			}
+
+			public String previousPanel() {
+				return panelOptions.name;
+			}
+
+			public boolean canFinish() {
+				return true;
+			}
+		};
+		wizard.panels.put(WordRelatorParallelRandomIndexing.typeName + "_DATA", panelData);
+
+		panelOptions = new WizardPanel(wizard, WordRelatorParallelRandomIndexing.typeName + "_OPTIONS") {
+
+			public String nextPanel() {
+				return WordRelatorParallelRandomIndexing.typeName + "_DATA";
+			}
+
+			public String previousPanel() {
+				return WordRelatorParallelRandomIndexing.typeName;
+			}
+
+			public boolean canFinish() {
+				return false;
+			}
+
+			public String getTitle() {
+				return "Random Indexing Options";
+			}
+
+			public String getSubTitle() {
+				return "Set Random Indexing Options";
+			}
+		};
+
+		JPanel options = new JPanel(new VerticalLayout(5,5));
+
+		options.add(PanelTools.optionField("Dimensions", "How many numbers make up each word vector.", WordRelatorParallelRandomIndexing.DIMENSIONS_START, new PanelTools.OptionSetter() {
+			public void set(String value) {
+				relator.dimensions = Integer.parseInt(value);
+			}
+		}));
+		options.add(PanelTools.optionField("Window Size", "How many words to consider in each direction.", WordRelatorParallelRandomIndexing.WINDOW_SIZE_START, new PanelTools.OptionSetter() {
+			public void set(String value) {
+				relator.windowSize = Integer.parseInt(value);
+			}
+		}));
+		options.add(PanelTools.optionField("Threads", "How many processors to learn on at once.", relator.threads, new PanelTools.OptionSetter() {
+			public void set(String value) {
+				relator.threads = Integer.parseInt(value);
+			}
+		}));
+
+		panelOptions.setLayout(new BorderLayout());
+		panelOptions.add(options,BorderLayout.CENTER);
+
+		panelOptions.name = WordRelatorParallelRandomIndexing.typeName + "_OPTIONS";
+		wizard.panels.put(panelOptions.name, panelOptions);
+	}
+
+	public WordRelator getRelator() {
+		return relator;
+	}
+
+	public boolean canFinish() {
+		return false;
+	}
+
+	public String getSubTitle() {
+		return WordRelatorParallelRandomIndexing.typeName;
+	}
+
+	public String getTitle() {
+		return "Relation Manager";
+	}
+
+	public String nextPanel() {
+		return panelOptions.name;
+	}
+
+	public String previousPanel() {
+		return PanelIntro.name;
+	}
+}
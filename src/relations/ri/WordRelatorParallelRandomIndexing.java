@@ -0,0 +1,76 @@
+package relations.ri;
+
+import gui.SentenceCleaner;
+import gui.WordMap;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import relations.WordRelatorStreaming;
+import tools.LearningProgress;
+
+public class WordRelatorParallelRandomIndexing extends WordRelatorStreaming {
+
+	private static final long serialVersionUID = 6143988573214406519L;
+
+	@SuppressWarnings("rawtypes")
+	public final static Class wizardPanel = WizardParallelRandomIndexing.class;
+	public final static String description = "Random Indexing sums a small random vector of each word around a word into its vector. This version runs on every processor at once and streams plain text files straight from disk, other document formats are converted to text first.";
+	public final static String typeName = "Parallel Random Indexing";
+
+	public static int DIMENSIONS_START = 4000;
+	public static int WINDOW_SIZE_START = 2;
+	public static int NON_ZEROS_START = 4;
+
+	public int dimensions = DIMENSIONS_START;
+	public int windowSize = WINDOW_SIZE_START;
+	public int nonZeros = NON_ZEROS_START;
+	public int threads = Runtime.getRuntime().availableProcessors();
+
+	private volatile RandomIndex model;
+
+	public WordRelatorParallelRandomIndexing(Color color, String name, WordMap wordMap) {
+		super(color, name, wordMap);
+	}
+
+	public double getDistance(String word1, String word2) {
+		RandomIndex model = this.model;
+		if(model == null) {
+			return 0;
+		}
+		int id1 = model.getId(word1);
+		int id2 = model.getId(word2);
+		if(id1 < 0 || id2 < 0) {
+			return 0;
+		}
+		return model.cosine(id1, id2);
+	}
+
+	public Set<String> getWords() {
+		RandomIndex model = this.model;
+		return (model == null) ? Collections.<String>emptySet() : model.getWords();
+	}
+
+	/**
+	 * The model, built with the options set so far when first used.
+	 * @return
+	 */
+	public synchronized RandomIndex getModel() {
+		if(model == null) {
+			model = new RandomIndex(dimensions, windowSize, nonZeros, threads);
+		}
+		return model;
+	}
+
+	protected void train(File f, List<SentenceCleaner> cleaners, LearningProgress progress) throws IOException {
+		getModel().train(f, cleaners, progress);
+	}
+
+	public String toString() {
+		return "Parallel Random Indexing {" + name + "}";
+	}
+}
@@ -0,0 +1,510 @@
+package relations.sgns;
+
+import gui.SentenceCleaner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import relations.beagle.CorpusReader;
+import tools.LearningProgress;
+
+/**
+ * Skip-gram with negative sampling word vectors, trained on many threads at once.
+ * Every thread streams its own byte range of the corpus from disk and updates the shared float arrays
+ * without locks (Hogwild). Two threads rarely update the same row at once, and when they do
+ * an update is only partly lost, so the vectors learn as well as on one thread.
+ * Negative samples come from a table of the word counts raised to the 3/4 power and the
+ * logistic function is looked up from a table, as in word2vec.
+ */
+
+public class SkipGram implements Serializable {
+
+	private static final long serialVersionUID = 3182745065208190372L;
+
+	// Logistic function table over -MAX_EXP to MAX_EXP.
+	private static final int EXP_TABLE_SIZE = 1000;
+	private static final int MAX_EXP = 6;
+	private static final float[] EXP_TABLE = new float[EXP_TABLE_SIZE];
+	static {
+		for(int i=0;i<EXP_TABLE_SIZE;i++) {
+			double e = Math.exp((i / (double)EXP_TABLE_SIZE * 2 - 1) * MAX_EXP);
+			EXP_TABLE[i] = (float)(e / (e + 1));
+		}
+	}
+
+	// Entries in the negative sampling table.
+	private static final int TABLE_SIZE = 1 << 22;
+
+	// Longest run of words learned as one sentence.
+	private static final int MAX_SENTENCE = 1000;
+
+	// Bytes a thread learns between updates of the learning rate.
+	private static final int SYNC_BYTES = 1 << 16;
+
+	public final int dimensions;
+	public final int windowSize;
+	public final int negative;
+	public final int epochs;
+	public final int minCount;
+	public final double sample;
+	public final double alpha;
+	public final int threads;
+
+	// Words by id and their counts. Each corpus adds the words it brings, most frequent first.
+	private String[] words;
+	private long[] counts;
+	private long totalWords;
+	private volatile HashMap<String,Integer> ids;
+
+	// Counts of every word seen, so words too rare in one corpus are added once later ones bring enough of them.
+	private HashMap<String,long[]> seen;
+
+	// Random state for starting new word vectors.
+	private long random = 1;
+
+	// Word vectors and the context vectors of negative sampling, one row per word.
+	private float[] input;
+	private float[] output;
+
+	// Negative samples, and the chance of keeping each word when frequent words are sampled down.
+	private transient int[] table;
+	private transient float[] keep;
+
+	/**
+	 * @param dimensions
+	 * @param windowSize	Furthest context word on each side.
+	 * @param negative		Negative samples for each context word.
+	 * @param epochs		Passes over each corpus.
+	 * @param minCount		Words seen less often are left out.
+	 * @param sample		Frequent words are sampled down past this share of the corpus, 0 to keep every word.
+	 * @param alpha			Starting learning rate.
+	 * @param threads
+	 */
+	public SkipGram(int dimensions, int windowSize, int negative, int epochs, int minCount, double sample, double alpha, int threads) {
+		this.dimensions = dimensions;
+		this.windowSize = Math.max(1, windowSize);
+		this.negative = negative;
+		this.epochs = Math.max(1, epochs);
+		this.minCount = minCount;
+		this.sample = sample;
+		this.alpha = alpha;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Train on a corpus. Words the corpus brings to minCount are added, known words are trained further.
+	 * Paragraphs are lines, sentences end with . ? or ! and words are separated by spaces.
+	 * @param corpus
+	 * @param cleaners	Applied to every line before it is split.
+	 * @param progress
+	 * @throws IOException
+	 */
+	public synchronized void train(File corpus, List<SentenceCleaner> cleaners, LearningProgress progress) throws IOException {
+		if(growVocabulary(corpus, cleaners) || table == null) {
+			if(words.length == 0) {
+				// Nothing common enough yet, later corpora may add to the counts.
+				progress.finish();
+				return;
+			}
+			buildTables();
+		}
+
+		long length = corpus.length();
+		progress.setTotalBytes(length * epochs, 0);
+		AtomicLong done = new AtomicLong(0);
+
+		Trainer[] trainers = new Trainer[threads];
+		for(int t=0;t<threads;t++) {
+			trainers[t] = new Trainer(corpus, cleaners, length * t / threads, length * (t + 1) / threads, length * epochs, done, progress, t);
+			trainers[t].start();
+		}
+
+		IOException failure = null;
+		try {
+			for(Trainer trainer : trainers) {
+				trainer.join();
+				if(failure == null) {
+					failure = trainer.failure;
+				}
+			}
+		} catch (InterruptedException e) {
+			for(Trainer trainer : trainers) {
+				trainer.interrupt();
+			}
+			Thread.currentThread().interrupt();
+		}
+		progress.finish();
+		if(failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Count the words of a corpus and add those now seen often enough.
+	 * Known words keep their ids and vectors, new ones are given the next ids, most frequent first.
+	 * @param corpus
+	 * @param cleaners
+	 * @return	True if any counts changed, so the tables need building again.
+	 * @throws IOException
+	 */
+	private boolean growVocabulary(File corpus, List<SentenceCleaner> cleaners) throws IOException {
+		if(seen == null) {
+			seen = new HashMap<String,long[]>();
+			if(words != null) {
+				// Read from before every count was kept.
+				for(int id=0;id<words.length;id++) {
+					seen.put(words[id], new long[] {counts[id]});
+				}
+			}
+		}
+		final HashMap<String,long[]> found = seen;
+		boolean counted = false;
+		CorpusReader r = CorpusReader.open(corpus, 0);
+		try {
+			String line;
+			while((line = r.readLine()) != null) {
+				for(String word : clean(line, cleaners).split("[.?! ]+")) {
+					if(word.length() == 0) {
+						continue;
+					}
+					long[] count = found.get(word);
+					if(count == null) {
+						count = new long[1];
+						found.put(word, count);
+					}
+					count[0]++;
+					counted = true;
+				}
+			}
+		} finally {
+			r.close();
+		}
+
+		HashMap<String,Integer> ids = (this.ids == null) ? new HashMap<String,Integer>() : new HashMap<String,Integer>(this.ids);
+		int known = ids.size();
+		String[] added = new String[found.size()];
+		int size = 0;
+		for(Map.Entry<String,long[]> e : found.entrySet()) {
+			if(e.getValue()[0] >= minCount && !ids.containsKey(e.getKey())) {
+				added[size++] = e.getKey();
+			}
+		}
+		added = Arrays.copyOf(added, size);
+		Arrays.sort(added, new Comparator<String>() {
+			public int compare(String a, String b) {
+				long difference = found.get(b)[0] - found.get(a)[0];
+				return (difference != 0) ? (difference > 0 ? 1 : -1) : a.compareTo(b);
+			}
+		});
+
+		int total = known + size;
+		words = (words == null) ? new String[total] : Arrays.copyOf(words, total);
+		counts = new long[total];
+		totalWords = 0;
+		for(int id=0;id<total;id++) {
+			if(id >= known) {
+				words[id] = added[id - known];
+				ids.put(words[id], id);
+			}
+			counts[id] = found.get(words[id])[0];
+			totalWords += counts[id];
+		}
+
+		// New word vectors start small and random, context vectors at zero.
+		int start = known * dimensions;
+		input = (input == null) ? new float[total * dimensions] : Arrays.copyOf(input, total * dimensions);
+		output = (output == null) ? new float[total * dimensions] : Arrays.copyOf(output, total * dimensions);
+		for(int i=start;i<input.length;i++) {
+			random = random * 25214903917L + 11;
+			input[i] = (((random & 0xFFFF) / 65536f) - 0.5f) / dimensions;
+		}
+
+		// Published last, queries look words up here first.
+		this.ids = ids;
+		return counted;
+	}
+
+	/**
+	 * Build the negative sampling table and the chance of keeping each word.
+	 */
+	private void buildTables() {
+		double power = 0;
+		for(long count : counts) {
+			power += Math.pow(count, 0.75);
+		}
+		table = new int[TABLE_SIZE];
+		int word = 0;
+		double share = Math.pow(counts[0], 0.75) / power;
+		for(int i=0;i<TABLE_SIZE;i++) {
+			table[i] = word;
+			if((i + 1) / (double)TABLE_SIZE > share && word < words.length - 1) {
+				word++;
+				share += Math.pow(counts[word], 0.75) / power;
+			}
+		}
+
+		keep = new float[words.length];
+		double threshold = sample * totalWords;
+		for(int id=0;id<words.length;id++) {
+			keep[id] = (sample <= 0) ? 1 : (float)((Math.sqrt(counts[id] / threshold) + 1) * threshold / counts[id]);
+		}
+	}
+
+	private static String clean(String line, List<SentenceCleaner> cleaners) {
+		if(cleaners != null) {
+			for(SentenceCleaner cleaner : cleaners) {
+				line = cleaner.clean(line);
+			}
+		}
+		return line;
+	}
+
+	/**
+	 * @param word
+	 * @return	-1 if the word is not known.
+	 */
+	public int getId(String word) {
+		HashMap<String,Integer> ids = this.ids;
+		Integer id = (ids == null) ? null : ids.get(word);
+		return (id == null) ? -1 : id;
+	}
+
+	public Set<String> getWords() {
+		HashMap<String,Integer> ids = this.ids;
+		return (ids == null) ? Collections.<String>emptySet() : Collections.unmodifiableSet(ids.keySet());
+	}
+
+	public String getWord(int id) {
+		return words[id];
+	}
+
+	public long getCount(int id) {
+		return counts[id];
+	}
+
+	/**
+	 * Copy of a word vector.
+	 * @param id
+	 * @return
+	 */
+	public float[] getVector(int id) {
+		return Arrays.copyOfRange(input, id * dimensions, (id + 1) * dimensions);
+	}
+
+	/**
+	 * Cosine between two word vectors.
+	 * @param id1
+	 * @param id2
+	 * @return
+	 */
+	public double cosine(int id1, int id2) {
+		float[] input = this.input;
+		int a = id1 * dimensions;
+		int b = id2 * dimensions;
+		double dot = 0;
+		double lengthA = 0;
+		double lengthB = 0;
+		for(int i=0;i<dimensions;i++) {
+			dot += input[a + i] * input[b + i];
+			lengthA += input[a + i] * input[a + i];
+			lengthB += input[b + i] * input[b + i];
+		}
+		if(lengthA == 0 || lengthB == 0) {
+			return 0;
+		}
+		return dot / Math.sqrt(lengthA * lengthB);
+	}
+
+	/**
+	 * Learns one byte range of the corpus each epoch.
+	 * A range holds the lines that start inside it.
+	 */
+	private class Trainer extends Thread {
+
+		private final File corpus;
+		private final List<SentenceCleaner> cleaners;
+		private final long start;
+		private final long end;
+
+		// Bytes to learn over every epoch and bytes learned by all threads, for the learning rate.
+		private final long total;
+		private final AtomicLong done;
+		private final LearningProgress progress;
+
+		private final float[] input = SkipGram.this.input;
+		private final float[] output = SkipGram.this.output;
+		private final int[] table = SkipGram.this.table;
+		private final float[] keep = SkipGram.this.keep;
+
+		private final float[] error = new float[dimensions];
+		private final int[] sentence = new int[MAX_SENTENCE];
+		private long random;
+		private float rate = (float)alpha;
+
+		IOException failure;
+
+		Trainer(File corpus, List<SentenceCleaner> cleaners, long start, long end, long total, AtomicLong done, LearningProgress progress, int number) {
+			super("Skip-gram " + number);
+			this.corpus = corpus;
+			this.cleaners = cleaners;
+			this.start = start;
+			this.end = end;
+			this.total = total;
+			this.done = done;
+			this.progress = progress;
+			random = number;
+		}
+
+		public void run() {
+			try {
+				for(int epoch=0;epoch<epochs && !isInterrupted();epoch++) {
+					learnRange();
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		private void learnRange() throws IOException {
+			// Start on the byte before the range, so a line that starts right at the range is not skipped.
+			CorpusReader r = CorpusReader.open(corpus, Math.max(0, start - 1));
+			try {
+				if(start > 0) {
+					// The rest of a line that started before the range belongs to the thread before.
+					r.readLine();
+				}
+				long read = r.position();
+				long unsynced = 0;
+				String line;
+				while(read < end && (line = r.readLine()) != null) {
+					learnLine(line);
+					long bytes = r.position() - read;
+					read = r.position();
+					progress.addBytes(bytes);
+					unsynced += bytes;
+					if(unsynced >= SYNC_BYTES) {
+						updateRate(done.addAndGet(unsynced));
+						unsynced = 0;
+					}
+				}
+				updateRate(done.addAndGet(unsynced));
+			} finally {
+				r.close();
+			}
+		}
+
+		/**
+		 * The learning rate falls linearly to a floor as the corpus is learned.
+		 * @param learned
+		 */
+		private void updateRate(long learned) {
+			rate = (float)(alpha * Math.max(0.0001, 1 - learned / (double)(total + 1)));
+		}
+
+		private void learnLine(String line) {
+			for(String s : clean(line, cleaners).split("[.?!]")) {
+				int length = 0;
+				int tokens = 0;
+				for(String word : s.split(" +")) {
+					int id = SkipGram.this.getId(word);
+					if(id < 0) {
+						continue;
+					}
+					tokens++;
+					if(keep[id] < 1 && keep[id] < (nextRandom() & 0xFFFF) / 65536f) {
+						continue;
+					}
+					sentence[length++] = id;
+					if(length == MAX_SENTENCE) {
+						learnSentence(length);
+						length = 0;
+					}
+				}
+				learnSentence(length);
+				progress.addSentence(tokens);
+			}
+		}
+
+		/**
+		 * Each word is predicted from the words around it, within a window drawn at random up to the window size.
+		 * @param length
+		 */
+		private void learnSentence(int length) {
+			for(int i=0;i<length;i++) {
+				int span = 1 + (int)(nextRandom() % windowSize);
+				int from = Math.max(0, i - span);
+				int to = Math.min(length - 1, i + span);
+				for(int j=from;j<=to;j++) {
+					if(j != i) {
+						learnPair(sentence[j], sentence[i]);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Move a context word's vector towards predicting a word and away from predicting sampled words.
+		 * @param context
+		 * @param word
+		 */
+		private void learnPair(int context, int word) {
+			int l1 = context * dimensions;
+			Arrays.fill(error, 0);
+			for(int d=0;d<=negative;d++) {
+				int target;
+				float label;
+				if(d == 0) {
+					target = word;
+					label = 1;
+				} else {
+					target = table[(int)(nextRandom() % TABLE_SIZE)];
+					if(target == word) {
+						continue;
+					}
+					label = 0;
+				}
+
+				int l2 = target * dimensions;
+				float f = 0;
+				for(int k=0;k<dimensions;k++) {
+					f += input[l1 + k] * output[l2 + k];
+				}
+				float g;
+				if(f > MAX_EXP) {
+					g = (label - 1) * rate;
+				} else if(f < -MAX_EXP) {
+					g = label * rate;
+				} else {
+					g = (label - EXP_TABLE[(int)((f + MAX_EXP) * (EXP_TABLE_SIZE / MAX_EXP / 2))]) * rate;
+				}
+				for(int k=0;k<dimensions;k++) {
+					error[k] += g * output[l2 + k];
+				}
+				for(int k=0;k<dimensions;k++) {
+					output[l2 + k] += g * input[l1 + k];
+				}
+			}
+			for(int k=0;k<dimensions;k++) {
+				input[l1 + k] += error[k];
+			}
+		}
+
+		/**
+		 * The linear congruential generator of word2vec, cheaper than a shared Random.
+		 * @return	A non-negative number.
+		 */
+		private long nextRandom() {
+			random = random * 25214903917L + 11;
+			return random >>> 16;
+		}
+	}
+}
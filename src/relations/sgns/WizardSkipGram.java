@@ -0,0 +1,136 @@
+package relations.sgns;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+
+import javax.swing.JPanel;
+
+import relations.WordRelator;
+import tools.PanelTools;
+import tools.VerticalLayout;
+import wizard.PanelData;
+import wizard.PanelIntro;
+import wizard.PanelRelation;
+import wizard.Wizard;
+import wizard.WizardPanel;
+
+@SuppressWarnings("serial")
+public class WizardSkipGram extends PanelRelation {
+
+	public WordRelatorSkipGram relator;
+
+	// Extra options.
+	private WizardPanel panelOptions;
+	private PanelData panelData;
+
+	public WizardSkipGram(Wizard wizard) {
+		super(wizard, WordRelatorSkipGram.typeName);
+
+		relator = new WordRelatorSkipGram(Color.BLACK, null, wizard.wordMap);
+
+		addDefaults();
+		this.addCleaners(relator.cleaners);
+
+		panelData = new PanelData(wizard, relator, true, WordRelatorSkipGram.typeName + "_DATA") {
+
+			public String getSubTitle() {
+				return "Teach " + WordRelatorSkipGram.typeName;
+			}
+
+			public String previousPanel() {
+				return panelOptions.name;
+			}
+
+			public boolean canFinish() {
+				return true;
+			}
+		};
+		wizard.panels.put(WordRelatorSkipGram.typeName + "_DATA", panelData);
+
+		panelOptions = new WizardPanel(wizard, WordRelatorSkipGram.typeName + "_OPTIONS") {
+
+			public String nextPanel() {
+				return WordRelatorSkipGram.typeName + "_DATA";
+			}
+
+			public String previousPanel() {
+				return WordRelatorSkipGram.typeName;
+			}
+
+			public boolean canFinish() {
+				return false;
+			}
+
+			public String getTitle() {
+				return "Skip-Gram Options";
+			}
+
+			public String getSubTitle() {
+				return "Set Skip-Gram Options";
+			}
+		};
+
+		JPanel options = new JPanel(new VerticalLayout(5,5));
+
+		options.add(PanelTools.optionField("Dimensions", "How many numbers make up each word vector.", WordRelatorSkipGram.DIMENSIONS_START, new PanelTools.OptionSetter() {
+			public void set(String value) {
+				relator.dimensions = Integer.parseInt(value);
+			}
+		}));
+		options.add(PanelTools.optionField("Window Size", "How many words to consider in each direction.", WordRelatorSkipGram.WINDOW_SIZE_START, new PanelTools.OptionSetter() {
+			public void set(String value) {
+				relator.windowSize = Integer.parseInt(value);
+			}
+		}));
+		options.add(PanelTools.optionField("Negative Samples", "How many random words each word is trained to not predict for every word it does.", WordRelatorSkipGram.NEGATIVE_START, new PanelTools.OptionSetter() {
+			public void set(String value) {
+				relator.negative = Integer.parseInt(value);
+			}
+		}));
+		options.add(PanelTools.optionField("Epochs", "How many times to pass over each file.", WordRelatorSkipGram.EPOCHS_START, new PanelTools.OptionSetter() {
+			public void set(String value) {
+				relator.epochs = Integer.parseInt(value);
+			}
+		}));
+		options.add(PanelTools.optionField("Minimum Count", "Words seen fewer times than this are left out. Counts add up over everything learned, so a word can join later.", WordRelatorSkipGram.MIN_COUNT_START, new PanelTools.OptionSetter() {
+			public void set(String value) {
+				relator.minCount = Integer.parseInt(value);
+			}
+		}));
+		options.add(PanelTools.optionField("Threads", "How many processors to train on at once.", relator.threads, new PanelTools.OptionSetter() {
+			public void set(String value) {
+				relator.threads = Integer.parseInt(value);
+			}
+		}));
+
+		panelOptions.setLayout(new BorderLayout());
+		panelOptions.add(options,BorderLayout.CENTER);
+
+		panelOptions.name = WordRelatorSkipGram.typeName + "_OPTIONS";
+		wizard.panels.put(panelOptions.name, panelOptions);
+	}
+
+	public WordRelator getRelator() {
+		return relator;
+	}
+
+	public boolean canFinish() {
+		return false;
+	}
+
+	public String getSubTitle() {
+		return WordRelatorSkipGram.typeName;
+	}
+
+	public String getTitle() {
+		return "Relation Manager";
+	}
+
+	public String nextPanel() {
+		return panelOptions.name;
+	}
+
+	public String previousPanel() {
+		return PanelIntro.name;
+	}
+}
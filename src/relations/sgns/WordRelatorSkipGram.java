@@ -0,0 +1,84 @@
+package relations.sgns;
+
+import gui.SentenceCleaner;
+import gui.WordMap;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import relations.WordRelatorStreaming;
+import tools.LearningProgress;
+
+public class WordRelatorSkipGram extends WordRelatorStreaming {
+
+	private static final long serialVersionUID = -5406611326425148391L;
+
+	@SuppressWarnings("rawtypes")
+	public final static Class wizardPanel = WizardSkipGram.class;
+	public final static String description = "Word vectors are trained to predict the words around them, as in word2vec. Training runs on every processor at once and streams plain text files straight from disk, other document formats are converted to text first.";
+	public final static String typeName = "Skip-Gram";
+
+	public static int DIMENSIONS_START = 100;
+	public static int WINDOW_SIZE_START = 5;
+	public static int NEGATIVE_START = 5;
+	public static int EPOCHS_START = 5;
+	public static int MIN_COUNT_START = 5;
+	public static double SAMPLE_START = 1e-3;
+	public static double ALPHA_START = 0.025;
+
+	public int dimensions = DIMENSIONS_START;
+	public int windowSize = WINDOW_SIZE_START;
+	public int negative = NEGATIVE_START;
+	public int epochs = EPOCHS_START;
+	public int minCount = MIN_COUNT_START;
+	public double sample = SAMPLE_START;
+	public double alpha = ALPHA_START;
+	public int threads = Runtime.getRuntime().availableProcessors();
+
+	private volatile SkipGram model;
+
+	public WordRelatorSkipGram(Color color, String name, WordMap wordMap) {
+		super(color, name, wordMap);
+	}
+
+	public double getDistance(String word1, String word2) {
+		SkipGram model = this.model;
+		if(model == null) {
+			return 0;
+		}
+		int id1 = model.getId(word1);
+		int id2 = model.getId(word2);
+		if(id1 < 0 || id2 < 0) {
+			return 0;
+		}
+		return model.cosine(id1, id2);
+	}
+
+	public Set<String> getWords() {
+		SkipGram model = this.model;
+		return (model == null) ? Collections.<String>emptySet() : model.getWords();
+	}
+
+	/**
+	 * The model, built with the options set so far when first used.
+	 * @return
+	 */
+	public synchronized SkipGram getModel() {
+		if(model == null) {
+			model = new SkipGram(dimensions, windowSize, negative, epochs, minCount, sample, alpha, threads);
+		}
+		return model;
+	}
+
+	protected void train(File f, List<SentenceCleaner> cleaners, LearningProgress progress) throws IOException {
+		getModel().train(f, cleaners, progress);
+	}
+
+	public String toString() {
+		return "Skip-Gram {" + name + "}";
+	}
+}
@@ -0,0 +1,476 @@
+package relations.sspace;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+
+import tools.VectorKernels;
+
+import edu.ucla.sspace.common.SemanticSpace;
+import edu.ucla.sspace.vector.DoubleVector;
+import edu.ucla.sspace.vector.IntegerVector;
+import edu.ucla.sspace.vector.SparseVector;
+import edu.ucla.sspace.vector.Vector;
+
+/**
+ * The word vectors of a processed semantic space, copied once into unit length float rows by word id.
+ * The cosine of two words is then a single pass over their values, with no boxing and no lengths to find.
+ * Rows that are mostly zero, as in HAL, random indexing and ESA, are kept as sorted index and value runs
+ * (compressed sparse rows) and compared by merging the runs. Only rows with many non zero values are kept dense.
+ *
+ * The copies can be saved in a binary snapshot and read back without the space, or memory mapped for read only queries.
+ * The file starts with the magic number, the format version and the offset of the vector block. A header with the
+ * sizes follows, then the word table with the row layout of each word. The vector block holds the sparse indices,
+ * the dense rows and the sparse values. All values are big endian and the vector block is aligned so it can be mapped.
+ */
+
+public class NormalizedVectors {
+
+	// Rows with more than this share of non zero values are kept dense.
+	private static final double DENSE_SHARE = 0.25;
+
+	// "SSNV"
+	public static final int MAGIC = 0x53534E56;
+	public static final int VERSION = 1;
+
+	// Alignment of the vector block, and size of the magic number, version and vector offset.
+	private static final int ALIGN = 64;
+	private static final int PREAMBLE = 16;
+
+	private final HashMap<String,Integer> ids;
+	private final int dimensions;
+
+	// The dense row of each word, -1 for sparse rows.
+	private final int[] denseRow;
+	private final FloatBuffer dense;
+
+	// The values of sparse row i are at offsets[i] up to offsets[i+1], by increasing index.
+	private final int[] offsets;
+	private final IntBuffer indices;
+	private final FloatBuffer values;
+
+	// Words whose vector is all zero, their cosine is -1 as with VectorTools.getCosine.
+	private final boolean[] empty;
+
+	private NormalizedVectors(HashMap<String,Integer> ids, int dimensions, int[] denseRow, FloatBuffer dense, int[] offsets, IntBuffer indices, FloatBuffer values, boolean[] empty) {
+		this.ids = ids;
+		this.dimensions = dimensions;
+		this.denseRow = denseRow;
+		this.dense = dense;
+		this.offsets = offsets;
+		this.indices = indices;
+		this.values = values;
+		this.empty = empty;
+	}
+
+	/**
+	 * Copy every word vector of a space.
+	 * @param space
+	 * @return	Null if the space can not give its vectors or they would take more than a quarter of the heap.
+	 */
+	@SuppressWarnings("rawtypes")
+	public static NormalizedVectors build(SemanticSpace space) {
+		try {
+			int dimensions = space.getVectorLength();
+			String[] words = space.getWords().toArray(new String[0]);
+			if(dimensions <= 0) {
+				return null;
+			}
+			long budget = Runtime.getRuntime().maxMemory() / 4;
+
+			HashMap<String,Integer> ids = new HashMap<String,Integer>();
+			int[] denseRow = new int[words.length];
+			int[] offsets = new int[words.length + 1];
+			boolean[] empty = new boolean[words.length];
+			float[] dense = new float[0];
+			int denseRows = 0;
+			int[] indices = new int[1024];
+			float[] values = new float[1024];
+			int entries = 0;
+
+			for(String word : words) {
+				Vector v = space.getVector(word);
+				if(v == null || v.length() != dimensions) {
+					// Left to the slow path.
+					continue;
+				}
+				Entries e = entries(v);
+				if((long)entries * 8 + (long)denseRows * dimensions * 4 + (long)e.count * 8 > budget) {
+					return null;
+				}
+
+				int id = ids.size();
+				ids.put(word, id);
+				double length = Math.sqrt(VectorKernels.dot(e.value, e.value));
+				empty[id] = (length == 0);
+				denseRow[id] = -1;
+
+				if(e.count > dimensions * DENSE_SHARE) {
+					if((denseRows + 1) * dimensions > dense.length) {
+						dense = Arrays.copyOf(dense, Math.max(dimensions, dense.length * 2));
+					}
+					denseRow[id] = denseRows++;
+					int offset = denseRow[id] * dimensions;
+					for(int i=0;i<e.count;i++) {
+						dense[offset + e.index[i]] = (float)(e.value[i] / length);
+					}
+				} else {
+					if(entries + e.count > indices.length) {
+						int grown = Math.max(indices.length * 2, entries + e.count);
+						indices = Arrays.copyOf(indices, grown);
+						values = Arrays.copyOf(values, grown);
+					}
+					for(int i=0;i<e.count;i++) {
+						indices[entries + i] = e.index[i];
+						values[entries + i] = (float)(e.value[i] / length);
+					}
+					entries += e.count;
+				}
+				offsets[id + 1] = entries;
+			}
+			return new NormalizedVectors(ids, dimensions, denseRow, FloatBuffer.wrap(Arrays.copyOf(dense, denseRows * dimensions)),
+					offsets, IntBuffer.wrap(Arrays.copyOf(indices, entries)), FloatBuffer.wrap(Arrays.copyOf(values, entries)), empty);
+		} catch(RuntimeException e) {
+			// The space has not been processed.
+			return null;
+		}
+	}
+
+	/**
+	 * Cosine of two vectors of a space without copying them into full length arrays when either is sparse.
+	 * @param a
+	 * @param b
+	 * @return	-1 if either vector is all zero.
+	 */
+	@SuppressWarnings("rawtypes")
+	public static double cosine(Vector a, Vector b) {
+		if(!(a instanceof SparseVector) && !(b instanceof SparseVector)) {
+			return VectorKernels.cosine(copy(a, new double[a.length()]), copy(b, new double[b.length()]));
+		}
+		Entries x = entries(a);
+		Entries y = entries(b);
+		double lengths = Math.sqrt(VectorKernels.dot(x.value, x.value)) * Math.sqrt(VectorKernels.dot(y.value, y.value));
+		if(lengths == 0) {
+			return -1;
+		}
+		double dot = 0;
+		int i = 0;
+		int j = 0;
+		while(i < x.count && j < y.count) {
+			if(x.index[i] == y.index[j]) {
+				dot += x.value[i++] * y.value[j++];
+			} else if(x.index[i] < y.index[j]) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return dot / lengths;
+	}
+
+	/**
+	 * The non zero values of a vector by increasing index.
+	 * Sparse vectors are read at their non zero indices only.
+	 * @param v
+	 * @return
+	 */
+	@SuppressWarnings("rawtypes")
+	private static Entries entries(Vector v) {
+		Entries e = new Entries();
+		if(v instanceof SparseVector) {
+			e.index = ((SparseVector)v).getNonZeroIndices().clone();
+			Arrays.sort(e.index);
+			e.value = new double[e.index.length];
+			for(int i : e.index) {
+				double x = value(v, i);
+				if(x != 0) {
+					e.index[e.count] = i;
+					e.value[e.count++] = x;
+				}
+			}
+		} else {
+			double[] row = copy(v, new double[v.length()]);
+			for(double x : row) {
+				if(x != 0) {
+					e.count++;
+				}
+			}
+			e.index = new int[e.count];
+			e.value = new double[e.count];
+			int found = 0;
+			for(int i=0;i<row.length;i++) {
+				if(row[i] != 0) {
+					e.index[found] = i;
+					e.value[found++] = row[i];
+				}
+			}
+		}
+		if(e.count < e.value.length) {
+			e.value = Arrays.copyOf(e.value, e.count);
+		}
+		return e;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static double value(Vector v, int i) {
+		if(v instanceof DoubleVector) {
+			return ((DoubleVector)v).get(i);
+		} else if(v instanceof IntegerVector) {
+			return ((IntegerVector)v).get(i);
+		}
+		return v.getValue(i).doubleValue();
+	}
+
+	/**
+	 * Non zero values of a vector.
+	 */
+	private static class Entries {
+		int[] index;
+		double[] value;
+		int count;
+	}
+
+	/**
+	 * Copy a vector, reading primitives where the vector type allows and only the non zero values of sparse vectors.
+	 * @param v
+	 * @param out
+	 * @return
+	 */
+	@SuppressWarnings("rawtypes")
+	public static double[] copy(Vector v, double[] out) {
+		int n = v.length();
+		if(v instanceof SparseVector) {
+			Arrays.fill(out, 0, n, 0);
+			for(int i : ((SparseVector)v).getNonZeroIndices()) {
+				out[i] = v.getValue(i).doubleValue();
+			}
+		} else if(v instanceof DoubleVector) {
+			DoubleVector d = (DoubleVector)v;
+			for(int i=0;i<n;i++) {
+				out[i] = d.get(i);
+			}
+		} else if(v instanceof IntegerVector) {
+			IntegerVector d = (IntegerVector)v;
+			for(int i=0;i<n;i++) {
+				out[i] = d.get(i);
+			}
+		} else {
+			for(int i=0;i<n;i++) {
+				out[i] = v.getValue(i).doubleValue();
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * @param word
+	 * @return	-1 if the word was not copied.
+	 */
+	public int getId(String word) {
+		Integer id = ids.get(word);
+		return (id == null) ? -1 : id;
+	}
+
+	public int size() {
+		return ids.size();
+	}
+
+	public Set<String> getWords() {
+		return Collections.unmodifiableSet(ids.keySet());
+	}
+
+	/**
+	 * Cosine between two copied words.
+	 * @param id1
+	 * @param id2
+	 * @return	-1 if either vector is all zero.
+	 */
+	public double cosine(int id1, int id2) {
+		if(empty[id1] || empty[id2]) {
+			return -1;
+		}
+		int row1 = denseRow[id1];
+		int row2 = denseRow[id2];
+		if(row1 >= 0 && row2 >= 0) {
+			return VectorKernels.dot(dense, row1 * dimensions, dense, row2 * dimensions, dimensions);
+		} else if(row1 >= 0) {
+			return gather(row1 * dimensions, id2);
+		} else if(row2 >= 0) {
+			return gather(row2 * dimensions, id1);
+		}
+
+		// Merge the two runs of indices.
+		int i = offsets[id1];
+		int iEnd = offsets[id1 + 1];
+		int j = offsets[id2];
+		int jEnd = offsets[id2 + 1];
+		double dot = 0;
+		while(i < iEnd && j < jEnd) {
+			int a = indices.get(i);
+			int b = indices.get(j);
+			if(a == b) {
+				dot += values.get(i++) * values.get(j++);
+			} else if(a < b) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return dot;
+	}
+
+	/**
+	 * Dot product of a dense row and a sparse row.
+	 * @param offset	Start of the dense row.
+	 * @param id		The sparse row.
+	 * @return
+	 */
+	private double gather(int offset, int id) {
+		double dot = 0;
+		for(int i=offsets[id];i<offsets[id + 1];i++) {
+			dot += dense.get(offset + indices.get(i)) * values.get(i);
+		}
+		return dot;
+	}
+
+	/**
+	 * Save the copies.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		int size = ids.size();
+		String[] words = new String[size];
+		for(java.util.Map.Entry<String,Integer> e : ids.entrySet()) {
+			words[e.getValue()] = e.getKey();
+		}
+
+		// Build the header first to know where the vectors start.
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+		header.writeInt(dimensions);
+		header.writeInt(size);
+		header.writeInt(dense.capacity() / dimensions);
+		header.writeInt(indices.capacity());
+		for(int id=0;id<size;id++) {
+			header.writeUTF(words[id]);
+			header.writeInt(denseRow[id]);
+			header.writeInt(offsets[id + 1]);
+			header.writeBoolean(empty[id]);
+		}
+		header.close();
+
+		long offset = PREAMBLE + headerBytes.size();
+		int padding = (int)((ALIGN - offset % ALIGN) % ALIGN);
+		offset += padding;
+
+		// Write beside the file and swap it in, the copies may be mapped from the file being replaced.
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(offset);
+			headerBytes.writeTo(out);
+			out.write(new byte[padding]);
+
+			for(int i=0;i<indices.capacity();i++) {
+				out.writeInt(indices.get(i));
+			}
+			for(int i=0;i<dense.capacity();i++) {
+				out.writeFloat(dense.get(i));
+			}
+			for(int i=0;i<values.capacity();i++) {
+				out.writeFloat(values.get(i));
+			}
+		} finally {
+			out.close();
+		}
+
+		if(!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+			throw new IOException("Could not replace " + file + ".");
+		}
+	}
+
+	/**
+	 * Read copies saved with write.
+	 * @param file
+	 * @param map	If true the vectors are memory mapped rather than read onto the heap, only the word table is read.
+	 * @return
+	 * @throws IOException
+	 */
+	public static NormalizedVectors read(File file, boolean map) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(fis, 1 << 16));
+			if(in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a semantic space snapshot.");
+			}
+			int version = in.readInt();
+			if(version > VERSION) {
+				throw new IOException("Unsupported semantic space snapshot version " + version + ".");
+			}
+			long offset = in.readLong();
+
+			int dimensions = in.readInt();
+			int size = in.readInt();
+			int denseRows = in.readInt();
+			int entries = in.readInt();
+
+			HashMap<String,Integer> ids = new HashMap<String,Integer>();
+			int[] denseRow = new int[size];
+			int[] offsets = new int[size + 1];
+			boolean[] empty = new boolean[size];
+			for(int id=0;id<size;id++) {
+				ids.put(in.readUTF(), id);
+				denseRow[id] = in.readInt();
+				offsets[id + 1] = in.readInt();
+				empty[id] = in.readBoolean();
+			}
+
+			// The mappings stay valid after the channel is closed.
+			FileChannel channel = fis.getChannel();
+			long denseStart = offset + (long)entries * 4;
+			long valuesStart = denseStart + (long)denseRows * dimensions * 4;
+			IntBuffer indices = region(channel, offset, entries).asIntBuffer();
+			FloatBuffer dense = region(channel, denseStart, (long)denseRows * dimensions).asFloatBuffer();
+			FloatBuffer values = region(channel, valuesStart, entries).asFloatBuffer();
+
+			if(!map) {
+				int[] indexArray = new int[indices.capacity()];
+				indices.get(indexArray);
+				indices = IntBuffer.wrap(indexArray);
+				float[] denseArray = new float[dense.capacity()];
+				dense.get(denseArray);
+				dense = FloatBuffer.wrap(denseArray);
+				float[] valueArray = new float[values.capacity()];
+				values.get(valueArray);
+				values = FloatBuffer.wrap(valueArray);
+			}
+			return new NormalizedVectors(ids, dimensions, denseRow, dense, offsets, indices, values, empty);
+		} finally {
+			fis.close();
+		}
+	}
+
+	/**
+	 * Map a run of four byte values.
+	 * @param channel
+	 * @param position
+	 * @param count
+	 * @return
+	 * @throws IOException
+	 */
+	private static ByteBuffer region(FileChannel channel, long position, long count) throws IOException {
+		if(count * 4 > Integer.MAX_VALUE) {
+			throw new IOException("Snapshot blocks over 2GB can not be mapped.");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, count * 4);
+	}
+}
@@ -37,7 +37,7 @@ public class WordRelatorHAL extends WordRelatorSemanticSpace {
 		properties.setProperty("windowSize", windowSize + "");
 		properties.setProperty("retain", retain + "");
 		properties.setProperty("threshold", threshold + "");
-		semanticSpace.processSpace(properties);
+		processSpace(properties);
 	}
 
 }
\ No newline at end of file
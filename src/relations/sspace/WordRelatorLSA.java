@@ -38,7 +38,7 @@ public class WordRelatorLSA extends WordRelatorSemanticSpace {
 		properties.setProperty(LatentSemanticAnalysis.LSA_DIMENSIONS_PROPERTY, "200");
 		properties.setProperty(LatentSemanticAnalysis.RETAIN_DOCUMENT_SPACE_PROPERTY, "true");
 		
-		semanticSpace.processSpace(properties);
+		processSpace(properties);
 	}
 
 }
@@ -12,10 +12,17 @@ import java.io.StringReader;
 import java.util.LinkedList;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.swing.JLabel;
+import javax.swing.JProgressBar;
 
 import relations.WordRelator;
 import relations.beagle.VectorTools;
 import tools.BufferedReaderFormatted;
+import tools.LearningProgress;
+import tools.ReadFileFormat;
 
 import edu.ucla.sspace.common.SemanticSpace;
 import edu.ucla.sspace.esa.ExplicitSemanticAnalysis;
@@ -29,6 +36,17 @@ public abstract class WordRelatorSemanticSpace extends WordRelator {
 
 	public SemanticSpace semanticSpace;
 	
+	// Paragraphs joined into each document by bulk learning, 1 keeps every paragraph its own document.
+	public int linesPerDocument = 1;
+	
+	// Batches of documents waiting between the reading thread and the space, and the size of a batch.
+	private static final int QUEUED_BATCHES = 16;
+	private static final int BATCH_CHARACTERS = 1 << 16;
+	private static final String[] END = new String[0];
+	
+	// Unit length copies of the word vectors, from when the space was last processed.
+	private transient volatile NormalizedVectors normalized;
+	
 	// Tier 1 Algorithms.
 	
 	public static void main(String[] args) {
@@ -140,23 +158,26 @@ frog wolf
 	
 	@SuppressWarnings("rawtypes")
 	public static double[] convertVector(Vector v) {
-		double[] ret = new double[v.length()];
-		for(int i=0;i<ret.length;i++) {
-			ret[i] = v.getValue(i).doubleValue();
-		}
-		return ret;
+		return NormalizedVectors.copy(v, new double[v.length()]);
 	}
 	
 	public double getDistance(String word1, String word2) {
+		NormalizedVectors normalized = this.normalized;
+		if(normalized != null) {
+			int id1 = normalized.getId(word1);
+			int id2 = normalized.getId(word2);
+			if(id1 >= 0 && id2 >= 0) {
+				return normalized.cosine(id1, id2);
+			}
+		}
+		
 		try {
 			Vector<?> vec1 = semanticSpace.getVector(word1);
 			Vector<?> vec2 = semanticSpace.getVector(word2);
 			if(vec1 == null || vec2 == null) {
 				return 0;
 			}
-			double[] v1 = convertVector(vec1);
-			double[] v2 = convertVector(vec2);
-			return VectorTools.getCosine(v1, v2);
+			return NormalizedVectors.cosine(vec1, vec2);
 		} catch(Exception e) {
 			e.printStackTrace();
 			return 0;
@@ -168,7 +189,13 @@ frog wolf
     }
 
     public Set<String> getWords() {
-		return semanticSpace.getWords();
+		NormalizedVectors normalized = this.normalized;
+		Set<String> words = semanticSpace.getWords();
+		if(normalized != null && words.isEmpty()) {
+			// Restored from a snapshot.
+			return normalized.getWords();
+		}
+		return words;
 	}
 	    
     public boolean learn(File input) {
@@ -182,42 +209,250 @@ frog wolf
     
     public boolean learn(InputStream input) {
     	try {
-    		
-			// Read each line as a document.
-			BufferedReaderFormatted reader = new BufferedReaderFormatted(new InputStreamReader(input),cleaners);
-			String line;
-			while((line = reader.readLine()) != null) {
-				semanticSpace.processDocument(new BufferedReader(new StringReader(line)));
-			}
-    		
+    		ingest(input, new LearningProgress());
 			return true;
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 		return false;
     }
+    
+	/**
+	 * Plain text files are streamed through ingest, other formats are read whole as before.
+	 * As when read whole, each sentence is a document unless linesPerDocument is set.
+	 */
+	public boolean learn(final File f, final JProgressBar progress, final JLabel label) {
+		if(!ReadFileFormat.isPlainText(f)) {
+			return super.learn(f, progress, label);
+		}
+		(new Thread() {
+			public void run() {
+				LearningProgress meter = new LearningProgress();
+				meter.showOn(progress, label);
+				meter.setTotalBytes(f.length(), 0);
+				try {
+					ingest(new FileInputStream(f), meter, true);
+				} catch (IOException e) {
+					e.printStackTrace();
+					meter.finish();
+				}
+			}
+		}).start();
+		return true;
+	}
+	
+	public boolean learn(final InputStream input, final JProgressBar progress, final JLabel label) {
+		(new Thread() {
+			public void run() {
+				LearningProgress meter = new LearningProgress();
+				meter.showOn(progress, label);
+				try {
+					ingest(input, meter, true);
+				} catch (IOException e) {
+					e.printStackTrace();
+					meter.finish();
+				}
+			}
+		}).start();
+		return true;
+	}
+	
+	/**
+	 * Learn a whole corpus, one document per linesPerDocument paragraphs.
+	 * A reading thread cleans the lines and batches documents into a bounded queue while this thread
+	 * hands them to the space, so reading and cleaning overlap with learning.
+	 * @param input		Closed when it has been read.
+	 * @param progress
+	 * @throws IOException
+	 */
+	public void ingest(InputStream input, LearningProgress progress) throws IOException {
+		ingest(input, progress, false);
+	}
+	
+	/**
+	 * Learn a whole corpus.
+	 * @param input
+	 * @param progress
+	 * @param sentences	If true lines are split into sentences on . ? and ! which are dropped, and each sentence is
+	 * 					a document unless linesPerDocument is more than one.
+	 * @throws IOException
+	 */
+	private void ingest(InputStream input, LearningProgress progress, boolean sentences) throws IOException {
+		normalized = null;
+		BlockingQueue<String[]> queue = new ArrayBlockingQueue<String[]>(QUEUED_BATCHES);
+		DocumentReader reader = new DocumentReader(input, queue, progress, sentences);
+		reader.start();
+		try {
+			String[] batch;
+			while((batch = queue.take()) != END) {
+				synchronized(this) {
+					for(String document : batch) {
+						semanticSpace.processDocument(new BufferedReader(new StringReader(document)));
+					}
+				}
+			}
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			// Stops the reader if the space failed part way.
+			reader.interrupt();
+		}
+		normalized = null;
+		progress.finish();
+		if(reader.failure != null) {
+			throw reader.failure;
+		}
+	}
+	
+	/**
+	 * Reads, cleans and counts the lines of a corpus and queues them as batches of documents.
+	 */
+	private class DocumentReader extends Thread {
+		
+		private final InputStream input;
+		private final BlockingQueue<String[]> queue;
+		private final LearningProgress progress;
+		private final boolean sentences;
+		
+		IOException failure;
+		
+		DocumentReader(InputStream input, BlockingQueue<String[]> queue, LearningProgress progress, boolean sentences) {
+			super("Document reader");
+			this.input = input;
+			this.queue = queue;
+			this.progress = progress;
+			this.sentences = sentences;
+		}
+		
+		public void run() {
+			BufferedReader r = new BufferedReader(new InputStreamReader(input), 1 << 16);
+			try {
+				LinkedList<String> batch = new LinkedList<String>();
+				int characters = 0;
+				StringBuilder document = new StringBuilder();
+				int lines = 0;
+				
+				String line;
+				while((line = r.readLine()) != null) {
+					progress.addBytes(line.length() + 1);
+					for(SentenceCleaner cleaner : cleaners) {
+						line = cleaner.clean(line);
+					}
+					line = line.trim();
+					if(line.length() == 0) {
+						continue;
+					}
+					count(line);
+					
+					for(String part : parts(line)) {
+						if(document.length() > 0) {
+							document.append('\n');
+						}
+						document.append(part);
+						if(++lines < linesPerDocument) {
+							continue;
+						}
+						
+						batch.add(document.toString());
+						characters += document.length();
+						document.setLength(0);
+						lines = 0;
+					}
+					if(characters >= BATCH_CHARACTERS) {
+						queue.put(batch.toArray(new String[batch.size()]));
+						batch.clear();
+						characters = 0;
+					}
+				}
+				
+				if(document.length() > 0) {
+					batch.add(document.toString());
+				}
+				if(batch.size() > 0) {
+					queue.put(batch.toArray(new String[batch.size()]));
+				}
+			} catch (IOException e) {
+				failure = e;
+			} catch (InterruptedException e) {
+				// Learning stopped.
+				return;
+			} finally {
+				try {
+					r.close();
+				} catch (IOException e) {
+				}
+			}
+			
+			try {
+				queue.put(END);
+			} catch (InterruptedException e) {
+			}
+		}
+		
+		/**
+		 * The text a line adds to documents, each part counting as one line of a document.
+		 * @param line
+		 * @return
+		 */
+		private LinkedList<String> parts(String line) {
+			LinkedList<String> parts = new LinkedList<String>();
+			if(!sentences) {
+				parts.add(line);
+				return parts;
+			}
+			for(String sentence : line.split("[.?!]")) {
+				String joined = WordRelatorSemanticSpace.this.join(sentence.split(" +")).trim();
+				if(joined.length() > 0) {
+					parts.add(joined);
+				}
+			}
+			if(linesPerDocument > 1 && parts.size() > 1) {
+				// The sentences of a line stay together in a larger document.
+				String joined = WordRelatorSemanticSpace.this.join(parts.toArray(new String[parts.size()]));
+				parts.clear();
+				parts.add(joined);
+			}
+			return parts;
+		}
+		
+		/**
+		 * Count the sentences and words of a line, and the words in the word map.
+		 * @param line
+		 */
+		private void count(String line) {
+			for(String sentence : line.split("[.?!]")) {
+				String[] words = sentence.trim().split(" +");
+				if(wordMap != null) {
+					WordRelatorSemanticSpace.super.learn(words);
+				}
+				progress.addSentence(words.length);
+			}
+		}
+	}
 
     public String join(String[] parts) {
-    	if(parts.length > 0) {
-	    	String ret = parts[0];
-	    	for(int i=1;i<parts.length;i++) {
-	    		ret += " " + parts[i];
-	    	}
-	    	return ret;
-    	} else {
-    		return "";
+    	StringBuilder joined = new StringBuilder();
+    	for(String part : parts) {
+    		if(joined.length() > 0) {
+    			joined.append(' ');
+    		}
+    		joined.append(part);
     	}
+    	return joined.toString();
     }
     
+	/**
+	 * The sentence was already cleaned when its paragraph was learned.
+	 */
 	public void learn(String[] sentence) {
 		super.learn(sentence);
+		normalized = null;
 		
 		try {
-			String joined = join(sentence);
-			joined = joined.trim();
-			
+			String joined = WordRelatorSemanticSpace.this.join(sentence).trim();
 			if(joined.length() > 0) {
-				semanticSpace.processDocument(new BufferedReaderFormatted(new StringReader(join(sentence)),cleaners));
+				semanticSpace.processDocument(new BufferedReader(new StringReader(joined)));
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -226,7 +461,43 @@ frog wolf
 	
 	public void finalizeSpace() {
 		Properties properties = new Properties();
+		processSpace(properties);
+	}
+	
+	/**
+	 * Process the space and copy its word vectors for getDistance.
+	 * Learning anything afterwards drops the copies until the space is processed again.
+	 * @param properties
+	 */
+	protected void processSpace(Properties properties) {
+		normalized = null;
 		semanticSpace.processSpace(properties);
+		normalized = NormalizedVectors.build(semanticSpace);
+	}
+
+	/**
+	 * Save the word vectors of the processed space, so a server can answer queries without learning or processing
+	 * the space again.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void saveSnapshot(File file) throws IOException {
+		NormalizedVectors normalized = this.normalized;
+		if(normalized == null) {
+			throw new IOException("The space must be processed before it is saved.");
+		}
+		normalized.write(file);
+	}
+
+	/**
+	 * Answer queries from a snapshot saved with saveSnapshot, in place of the space.
+	 * Learning anything afterwards drops the snapshot.
+	 * @param file
+	 * @param map	If true the vectors are memory mapped rather than read onto the heap.
+	 * @throws IOException
+	 */
+	public void loadSnapshot(File file, boolean map) throws IOException {
+		normalized = NormalizedVectors.read(file, map);
 	}
 
 }
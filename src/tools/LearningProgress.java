@@ -0,0 +1,256 @@
+package tools;
+
+import java.io.PrintStream;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.swing.JLabel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * Progress and throughput of a learning run.
+ * Learners count sentences, tokens and bytes into striped counters, so many threads can update it
+ * without contending, and listeners are told at most once per report interval rather than on every update.
+ * The same object backs the progress bars of the GUI and the console output of runs without one.
+ */
+
+public class LearningProgress {
+
+	// Counters are spread over stripes by thread, each stripe on its own cache line.
+	private static final int STRIPES = 16;
+	private static final int PAD = 8;
+	private static final int SENTENCES = 0;
+	private static final int TOKENS = 1;
+	private static final int BYTES = 2;
+
+	private final AtomicLongArray counts = new AtomicLongArray(STRIPES * PAD);
+
+	// Time between reports in milliseconds.
+	private final long interval;
+	private final AtomicLong nextReport;
+
+	private final long start = System.currentTimeMillis();
+
+	// Bytes in the whole input, and bytes already learned before this run started.
+	private volatile long totalBytes = -1;
+	private volatile long startBytes = 0;
+
+	private volatile long finished = -1;
+
+	private final CopyOnWriteArrayList<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+
+	public LearningProgress() {
+		this(250);
+	}
+
+	/**
+	 * @param interval	Milliseconds between reports.
+	 */
+	public LearningProgress(long interval) {
+		this.interval = interval;
+		nextReport = new AtomicLong(start + interval);
+	}
+
+	/**
+	 * Set the size of the input for the fraction done and the time left.
+	 * @param total	Bytes in the input, negative if unknown.
+	 * @param done	Bytes learned before this run, such as when resuming.
+	 */
+	public void setTotalBytes(long total, long done) {
+		totalBytes = total;
+		startBytes = done;
+	}
+
+	/**
+	 * Count a learned sentence.
+	 * @param tokens	Words in the sentence.
+	 */
+	public void addSentence(int tokens) {
+		int base = stripe();
+		counts.incrementAndGet(base + SENTENCES);
+		counts.addAndGet(base + TOKENS, tokens);
+		update();
+	}
+
+	/**
+	 * Count input consumed.
+	 * @param bytes
+	 */
+	public void addBytes(long bytes) {
+		counts.addAndGet(stripe() + BYTES, bytes);
+		update();
+	}
+
+	/**
+	 * Mark the run as done and report a last time.
+	 */
+	public void finish() {
+		finished = System.currentTimeMillis();
+		report();
+	}
+
+	public boolean isFinished() {
+		return finished >= 0;
+	}
+
+	public long getSentences() {
+		return sum(SENTENCES);
+	}
+
+	public long getTokens() {
+		return sum(TOKENS);
+	}
+
+	/**
+	 * Bytes consumed in this run.
+	 * @return
+	 */
+	public long getBytes() {
+		return sum(BYTES);
+	}
+
+	/**
+	 * Seconds since the run started, up to when it finished.
+	 * @return
+	 */
+	public double getSeconds() {
+		long end = (finished >= 0) ? finished : System.currentTimeMillis();
+		return Math.max(1, end - start) / 1000.0;
+	}
+
+	public double getSentencesPerSecond() {
+		return getSentences() / getSeconds();
+	}
+
+	public double getTokensPerSecond() {
+		return getTokens() / getSeconds();
+	}
+
+	public double getBytesPerSecond() {
+		return getBytes() / getSeconds();
+	}
+
+	/**
+	 * Fraction of the input learned.
+	 * @return	Between 0 and 1, or 0 if the size is unknown.
+	 */
+	public double getFraction() {
+		if(finished >= 0) {
+			return 1;
+		}
+		if(totalBytes <= 0) {
+			return 0;
+		}
+		return Math.min(1, (double)(startBytes + getBytes()) / totalBytes);
+	}
+
+	/**
+	 * Estimated seconds until the input is learned.
+	 * @return	Negative if it can not be estimated.
+	 */
+	public double getSecondsLeft() {
+		if(finished >= 0) {
+			return 0;
+		}
+		double rate = getBytesPerSecond();
+		if(totalBytes <= 0 || rate == 0) {
+			return -1;
+		}
+		return Math.max(0, totalBytes - startBytes - getBytes()) / rate;
+	}
+
+	/**
+	 * Listeners are called on a learning thread with this object as the source.
+	 * @param listener
+	 */
+	public void addChangeListener(ChangeListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeChangeListener(ChangeListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Show the progress on a bar and label, updated on the event thread.
+	 * @param bar
+	 * @param label	May be null.
+	 */
+	public void showOn(final JProgressBar bar, final JLabel label) {
+		final Runnable show = new Runnable() {
+			public void run() {
+				bar.setMaximum(1000);
+				bar.setValue((int)(getFraction() * 1000));
+				if(label != null) {
+					label.setText(isFinished() ? "Done learning. " + LearningProgress.this : LearningProgress.this.toString());
+				}
+			}
+		};
+		addChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent e) {
+				SwingUtilities.invokeLater(show);
+			}
+		});
+	}
+
+	/**
+	 * Print a line of progress on every report.
+	 * @param out
+	 */
+	public void printTo(final PrintStream out) {
+		addChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent e) {
+				out.println(LearningProgress.this);
+			}
+		});
+	}
+
+	public String toString() {
+		String str = String.format("%,d sentences (%,.0f/s) %,d tokens (%,.0f/s) %.1f MB (%.2f MB/s)",
+				getSentences(), getSentencesPerSecond(), getTokens(), getTokensPerSecond(),
+				getBytes() / 1e6, getBytesPerSecond() / 1e6);
+		if(totalBytes > 0 && finished < 0) {
+			str += String.format(" %.1f%%", getFraction() * 100);
+			double left = getSecondsLeft();
+			if(left >= 0) {
+				long s = (long)left;
+				str += String.format(" ETA %d:%02d:%02d", s / 3600, (s / 60) % 60, s % 60);
+			}
+		}
+		return str;
+	}
+
+	/**
+	 * Report if the interval has passed, only one caller wins each interval.
+	 */
+	private void update() {
+		long due = nextReport.get();
+		long now = System.currentTimeMillis();
+		if(now >= due && nextReport.compareAndSet(due, now + interval)) {
+			report();
+		}
+	}
+
+	private void report() {
+		ChangeEvent e = new ChangeEvent(this);
+		for(ChangeListener listener : listeners) {
+			listener.stateChanged(e);
+		}
+	}
+
+	private long sum(int counter) {
+		long total = 0;
+		for(int s=0;s<STRIPES;s++) {
+			total += counts.get(s * PAD + counter);
+		}
+		return total;
+	}
+
+	private static int stripe() {
+		return (int)(Thread.currentThread().getId() & (STRIPES - 1)) * PAD;
+	}
+}
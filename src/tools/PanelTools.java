@@ -1,8 +1,11 @@
 package tools;
 
 import java.awt.*;
+import java.awt.event.KeyEvent;
+import java.awt.event.KeyListener;
 
 import javax.swing.*;
+import javax.swing.border.TitledBorder;
 
 public class PanelTools {
 
@@ -26,4 +29,44 @@ public class PanelTools {
 		wrappingText.setOpaque(false);
 		return wrappingText;
 	}
+	
+	/**
+	 * Sets an option from the text typed for it.
+	 */
+	public static abstract class OptionSetter {
+		public abstract void set(String value) throws NumberFormatException;
+	}
+	
+	/**
+	 * A titled text field that sets an option as it is typed, red while it can not be read.
+	 * @param name
+	 * @param description
+	 * @param start
+	 * @param setter
+	 * @return
+	 */
+	public static JPanel optionField(String name, String description, Object start, final OptionSetter setter) {
+		JPanel panel = new JPanel(new BorderLayout());
+		TitledBorder title = BorderFactory.createTitledBorder(BorderFactory.createLineBorder(Color.LIGHT_GRAY, 1), name);
+		title.setTitleJustification(TitledBorder.LEFT);
+		panel.setBorder(title);
+		panel.add(wrappingText(description),BorderLayout.CENTER);
+			JPanel internalPanel = new JPanel(new BorderLayout());
+			final JTextField text = new JTextField(start + "");
+			text.addKeyListener(new KeyListener() {
+				public void keyReleased(KeyEvent arg0) {
+					try {
+						setter.set(text.getText());
+						text.setForeground(Color.BLACK);
+					} catch(NumberFormatException e) {
+						text.setForeground(Color.RED);
+					}
+				}
+				public void keyPressed(KeyEvent arg0) {}
+				public void keyTyped(KeyEvent arg0) {}
+			});
+			internalPanel.add(text,BorderLayout.CENTER);
+			panel.add(internalPanel,BorderLayout.SOUTH);
+		return panel;
+	}
 }
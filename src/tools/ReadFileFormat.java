@@ -286,6 +286,21 @@ public class ReadFileFormat {
 		return sbuff.toString();
 	}
 
+	/**
+	 * True if a file is not one of the formats readFile converts, so it can be read a line at a time.
+	 * @param f
+	 * @return
+	 */
+	public static boolean isPlainText(File f) {
+		String name = f.getName().toLowerCase();
+		for(String extension : new String[] {".pdf", ".doc", ".rtf", ".ppt", ".xls", ".odt", ".ods", ".odp"}) {
+			if(name.endsWith(extension)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public static String readFile(File f) {
 		if(f != null && f.exists()) {
 			ReadFileFormat rff = new ReadFileFormat();
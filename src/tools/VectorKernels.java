@@ -0,0 +1,303 @@
+package tools;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Inner loops shared by the vector tools, the BEAGLE vector store and the similarity scans.
+ * Reductions keep four independent partial sums and element wise loops are kept simple,
+ * so the JIT can pipeline and auto-vectorize them. None of these allocate.
+ */
+
+public class VectorKernels {
+
+	/**
+	 * Dot product of two vectors.
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	public static double dot(double[] a, double[] b) {
+		int n = a.length;
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		for(;i+4<=n;i+=4) {
+			s0 += a[i] * b[i];
+			s1 += a[i+1] * b[i+1];
+			s2 += a[i+2] * b[i+2];
+			s3 += a[i+3] * b[i+3];
+		}
+		for(;i<n;i++) {
+			s0 += a[i] * b[i];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Dot product of part of a float array with a vector.
+	 * @param a
+	 * @param offset	Where the vector starts in a.
+	 * @param b
+	 * @param n			Length of the vectors.
+	 * @return
+	 */
+	public static double dot(float[] a, int offset, double[] b, int n) {
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		for(;i+4<=n;i+=4) {
+			s0 += a[offset+i] * b[i];
+			s1 += a[offset+i+1] * b[i+1];
+			s2 += a[offset+i+2] * b[i+2];
+			s3 += a[offset+i+3] * b[i+3];
+		}
+		for(;i<n;i++) {
+			s0 += a[offset+i] * b[i];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Dot product of parts of two float arrays.
+	 * @param a
+	 * @param aOffset
+	 * @param b
+	 * @param bOffset
+	 * @param n
+	 * @return
+	 */
+	public static double dot(float[] a, int aOffset, float[] b, int bOffset, int n) {
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		for(;i+4<=n;i+=4) {
+			s0 += a[aOffset+i] * (double)b[bOffset+i];
+			s1 += a[aOffset+i+1] * (double)b[bOffset+i+1];
+			s2 += a[aOffset+i+2] * (double)b[bOffset+i+2];
+			s3 += a[aOffset+i+3] * (double)b[bOffset+i+3];
+		}
+		for(;i<n;i++) {
+			s0 += a[aOffset+i] * (double)b[bOffset+i];
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Dot product of parts of two float buffers, such as rows of a memory mapped file.
+	 * @param a
+	 * @param aOffset
+	 * @param b
+	 * @param bOffset
+	 * @param n
+	 * @return
+	 */
+	public static double dot(FloatBuffer a, int aOffset, FloatBuffer b, int bOffset, int n) {
+		double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+		int i = 0;
+		for(;i+4<=n;i+=4) {
+			s0 += a.get(aOffset+i) * (double)b.get(bOffset+i);
+			s1 += a.get(aOffset+i+1) * (double)b.get(bOffset+i+1);
+			s2 += a.get(aOffset+i+2) * (double)b.get(bOffset+i+2);
+			s3 += a.get(aOffset+i+3) * (double)b.get(bOffset+i+3);
+		}
+		for(;i<n;i++) {
+			s0 += a.get(aOffset+i) * (double)b.get(bOffset+i);
+		}
+		return (s0 + s1) + (s2 + s3);
+	}
+
+	/**
+	 * Cosine between two vectors, the dot product and both lengths are found in one pass.
+	 * @param a
+	 * @param b
+	 * @return	The cosine, or -1 if either vector is empty.
+	 */
+	public static double cosine(double[] a, double[] b) {
+		int n = a.length;
+		double ab0 = 0, ab1 = 0, aa0 = 0, aa1 = 0, bb0 = 0, bb1 = 0;
+		int i = 0;
+		for(;i+2<=n;i+=2) {
+			double x0 = a[i], y0 = b[i];
+			double x1 = a[i+1], y1 = b[i+1];
+			ab0 += x0 * y0;
+			ab1 += x1 * y1;
+			aa0 += x0 * x0;
+			aa1 += x1 * x1;
+			bb0 += y0 * y0;
+			bb1 += y1 * y1;
+		}
+		for(;i<n;i++) {
+			ab0 += a[i] * b[i];
+			aa0 += a[i] * a[i];
+			bb0 += b[i] * b[i];
+		}
+		double len = Math.sqrt(aa0 + aa1) * Math.sqrt(bb0 + bb1);
+		if(len == 0) {
+			return -1;
+		}
+		return (ab0 + ab1) / len;
+	}
+
+	/**
+	 * Cosine between part of a float array and a vector whose length is known.
+	 * @param a
+	 * @param offset
+	 * @param b
+	 * @param bLength	Length of b.
+	 * @param n
+	 * @return	The cosine, or -1 if either vector is empty.
+	 */
+	public static double cosine(float[] a, int offset, double[] b, double bLength, int n) {
+		double ab0 = 0, ab1 = 0, aa0 = 0, aa1 = 0;
+		int i = 0;
+		for(;i+2<=n;i+=2) {
+			double x0 = a[offset+i];
+			double x1 = a[offset+i+1];
+			ab0 += x0 * b[i];
+			ab1 += x1 * b[i+1];
+			aa0 += x0 * x0;
+			aa1 += x1 * x1;
+		}
+		for(;i<n;i++) {
+			double x = a[offset+i];
+			ab0 += x * b[i];
+			aa0 += x * x;
+		}
+		double len = Math.sqrt(aa0 + aa1) * bLength;
+		if(len == 0) {
+			return -1;
+		}
+		return (ab0 + ab1) / len;
+	}
+
+	/**
+	 * Squared length of a vector.
+	 * @param a
+	 * @return
+	 */
+	public static double squaredLength(double[] a) {
+		return dot(a, a);
+	}
+
+	/**
+	 * Squared length of part of a float array.
+	 * @param a
+	 * @param offset
+	 * @param n
+	 * @return
+	 */
+	public static double squaredLength(float[] a, int offset, int n) {
+		return dot(a, offset, a, offset, n);
+	}
+
+	/**
+	 * In place y += scale * x.
+	 * @param scale
+	 * @param x
+	 * @param y
+	 */
+	public static void axpy(double scale, double[] x, double[] y) {
+		int n = x.length;
+		for(int i=0;i<n;i++) {
+			y[i] += x[i] * scale;
+		}
+	}
+
+	/**
+	 * In place y += scale * x where y is part of a float array.
+	 * @param scale
+	 * @param x
+	 * @param y
+	 * @param offset	Where the vector starts in y.
+	 * @param n
+	 */
+	public static void axpy(double scale, double[] x, float[] y, int offset, int n) {
+		for(int i=0;i<n;i++) {
+			y[offset+i] += x[i] * scale;
+		}
+	}
+
+	/**
+	 * In place y += scale * x where x is part of a float array.
+	 * @param scale
+	 * @param x
+	 * @param offset	Where the vector starts in x.
+	 * @param y
+	 * @param n
+	 */
+	public static void axpy(double scale, float[] x, int offset, double[] y, int n) {
+		for(int i=0;i<n;i++) {
+			y[i] += x[offset+i] * scale;
+		}
+	}
+
+	/**
+	 * Pointwise multiply accumulate, to += a * b.
+	 * @param a
+	 * @param b
+	 * @param to
+	 */
+	public static void multiplyAdd(double[] a, double[] b, double[] to) {
+		int n = a.length;
+		for(int i=0;i<n;i++) {
+			to[i] += a[i] * b[i];
+		}
+	}
+
+	/**
+	 * Pointwise multiply, out = a * b.
+	 * @param a
+	 * @param b
+	 * @param out	May be a or b.
+	 * @return out
+	 */
+	public static double[] multiply(double[] a, double[] b, double[] out) {
+		int n = a.length;
+		for(int i=0;i<n;i++) {
+			out[i] = a[i] * b[i];
+		}
+		return out;
+	}
+
+	/**
+	 * Scaled product of a difference and a vector, out = (a - b) * c * scale.
+	 * @param a
+	 * @param b
+	 * @param c
+	 * @param scale
+	 * @param out	May be any of the others.
+	 * @return out
+	 */
+	public static double[] multiplyDifference(double[] a, double[] b, double[] c, double scale, double[] out) {
+		int n = a.length;
+		for(int i=0;i<n;i++) {
+			out[i] = (a[i] - b[i]) * c[i] * scale;
+		}
+		return out;
+	}
+
+	/**
+	 * Scale a vector, out = a * scale.
+	 * @param a
+	 * @param scale
+	 * @param out	May be a.
+	 * @return out
+	 */
+	public static double[] scale(double[] a, double scale, double[] out) {
+		int n = a.length;
+		for(int i=0;i<n;i++) {
+			out[i] = a[i] * scale;
+		}
+		return out;
+	}
+
+	/**
+	 * Scale part of a float array in place.
+	 * @param a
+	 * @param offset
+	 * @param scale
+	 * @param n
+	 */
+	public static void scale(float[] a, int offset, double scale, int n) {
+		for(int i=0;i<n;i++) {
+			a[offset+i] *= scale;
+		}
+	}
+}
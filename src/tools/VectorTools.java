@@ -83,11 +83,7 @@ public class VectorTools {
 	 * @return
 	 */
 	public static double[] getPointwiseMultiply(double[] v1, double[] v2) {
-		double[] ret = new double[v1.length];
-		for(int i=0;i<v1.length;i++) {
-			ret[i] = v1[i] * v2[i];
-		}
-		return ret;
+		return VectorKernels.multiply(v1, v2, new double[v1.length]);
 	}
 	
 	/**
@@ -206,9 +202,7 @@ public class VectorTools {
 	 * @param to
 	 */
 	public static void setAdd(double[] from, double[] to) {
-		for(int i=0;i<from.length;i++) {
-			to[i] += from[i];
-		}
+		VectorKernels.axpy(1, from, to);
 	}
 	
 	/**
@@ -503,11 +497,7 @@ public class VectorTools {
 	 * @return
 	 */
 	public static double dist(double[] a) {
-		double sum = 0;
-		for(int i=0;i<a.length;i++) {
-			sum += (a[i] * a[i]);
-		}
-		return Math.sqrt(sum);
+		return Math.sqrt(VectorKernels.squaredLength(a));
 	}
 	
 	/**
@@ -517,11 +507,7 @@ public class VectorTools {
 	 * @return
 	 */
 	public static double dot(double[] a, double[] b) {
-		double sum = 0;
-		for(int i=0;i<a.length;i++) {
-			sum += a[i] * b[i];
-		}
-		return sum;
+		return VectorKernels.dot(a, b);
 	}
 	
 	/**
@@ -531,11 +517,7 @@ public class VectorTools {
 	 * @return
 	 */
 	public static double[] mult(double[] a, double b) {
-		double[] ret = new double[a.length];
-		for(int i=0;i<a.length;i++) {
-			ret[i] = a[i] * b;
-		}
-		return ret;
+		return VectorKernels.scale(a, b, new double[a.length]);
 	}
 	
 	/**
@@ -683,11 +665,11 @@ public class VectorTools {
 	 * @return
 	 */
 	public static double getCosine(double[] a, double[] b) {
-		double sum = dist(a) * dist(b);
-		if(sum == 0) {
+		double cosine = VectorKernels.cosine(a, b);
+		if(cosine == -1 && (dot(a,a) == 0 || dot(b,b) == 0)) {
 			return -1;
 		}
-		return Math.acos(dot(a,b) / sum);
+		return Math.acos(cosine);
 	}
 	
 	/**